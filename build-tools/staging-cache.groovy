@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+/*
+ * Content-addressed staging cache for archives used by SEE builds (see README).
+ *
+ * Executed by groovy-maven-plugin ('properties' and 'project' bindings) or from the command line
+ * (configuration is read from system properties). The goal is selected by 'staging.goal' property:
+ *
+ *  stage           - extracts 'staging.archives' (comma separated) into 'staging.dest', stripping 'staging.strip' prefix
+ *                    from entry names (entries without the prefix are skipped). Archives are extracted once per checksum into
+ *                    'staging.cache.dir', the extracted files are copied (or hard linked if 'staging.link' is true) into the
+ *                    destination. Files staged before are staged again only if they are missing or were modified (their size
+ *                    or modification time differs from the staged one).
+ *  check-assembly  - sets 'assembly.skipAssembly' project property to true if 'staging.assembly.file' exists and none of
+ *                    'staging.assembly.inputs' (comma separated files or directories) nor 'staging.assembly.key' (e.g. values
+ *                    of properties the assembly is filtered with) changed since it was built
+ *  record-assembly - records the inputs of the just built 'staging.assembly.file'
+ */
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+class StagingCache {
+    static final String MANIFEST_EXT = '.staged'
+    static final String COMPLETE_EXT = '.complete'
+    final File cacheDir
+    final File stateDir
+    final long maxSize
+    final int threads
+    final Closure info
+
+    StagingCache(File cacheDir, File stateDir, long maxSize, int threads, Closure info) {
+        this.cacheDir = cacheDir
+        this.stateDir = stateDir
+        this.maxSize = maxSize
+        this.threads = threads
+        this.info = info
+    }
+
+    /**
+     * Stages the archive into the destination directory. Files the destination already holds unchanged (same size and
+     * modification time as when they were staged) are kept, missing or modified files are staged again.
+     */
+    void stage(File archive, File dest, String strip, boolean link) {
+        if (!archive.isFile()) {
+            throw new IllegalArgumentException("Archive ${archive} does not exist.")
+        }
+        String checksum = checksum(archive)
+        File manifest = new File(stateDir, "${sha1(dest.canonicalPath)}-${archive.name}${MANIFEST_EXT}")
+        List<String> staged = manifest.exists() ? manifest.readLines('UTF-8') : []
+        boolean sameArchive = staged && staged[0] == "${checksum} ${strip}".toString()
+        Set<String> stale = null
+        if (sameArchive) {
+            stale = staged.drop(1).findAll { !isUnchanged(dest, it) }.collect { it.split(' ', 3).last() } as Set
+            if (!stale) {
+                info "${archive.name} (${checksum.take(12)}) is already staged in ${dest}, skipping."
+                return
+            }
+        } else {
+            // files of a previously staged version of the archive must not be left behind
+            staged.drop(1).each { new File(dest, it.split(' ', 3).last()).delete() }
+        }
+        File extracted = extract(archive, checksum)
+        Map<String, String> files = copy(extracted, dest, strip, link, stale)
+        if (stale != null) {
+            // entries of the unchanged files are kept as they are
+            staged.drop(1).each { String entry ->
+                String name = entry.split(' ', 3).last()
+                if (!files.containsKey(name) && !stale.contains(name)) {
+                    files[name] = entry
+                }
+            }
+        }
+        stateDir.mkdirs()
+        manifest.withWriter('UTF-8') { w ->
+            w.writeLine("${checksum} ${strip}")
+            files.values().sort().each { w.writeLine(it) }
+        }
+        info(stale != null ? "Restaged ${stale.size()} missing or modified files of ${archive.name} (${checksum.take(12)}) in ${dest}."
+            : "Staged ${files.size()} files of ${archive.name} (${checksum.take(12)}) in ${dest}.")
+        prune(extracted)
+    }
+
+    /**
+     * @param entry - manifest entry of a staged file, '&lt;size&gt; &lt;modification time&gt; &lt;path relative to the destination&gt;'
+     * @return true if the staged file still exists with the size and the modification time it was staged with
+     */
+    static boolean isUnchanged(File dest, String entry) {
+        String[] fields = entry.split(' ', 3)
+        if (fields.length != 3 || !fields[0].isLong() || !fields[1].isLong()) {
+            // manifest written by an older version of the script
+            return false
+        }
+        File file = new File(dest, fields[2])
+        return file.isFile() && file.length() == (fields[0] as long) && file.lastModified() == (fields[1] as long)
+    }
+
+    static String manifestEntry(File file, String name) {
+        return "${file.length()} ${file.lastModified()} ${name}".toString()
+    }
+
+    /**
+     * @return directory holding the extracted archive, it is extracted only if the cache does not hold it yet
+     */
+    File extract(File archive, String checksum) {
+        File extractedRoot = new File(cacheDir, 'extracted')
+        File extracted = new File(extractedRoot, checksum)
+        File complete = new File(extractedRoot, checksum + COMPLETE_EXT)
+        if (complete.exists() && extracted.isDirectory()) {
+            // the marker's modification time is used to evict the least recently used archives
+            complete.setLastModified(System.currentTimeMillis())
+            info "${archive.name} (${checksum.take(12)}) found in the staging cache."
+            return extracted
+        }
+        File tmp = new File(extractedRoot, "${checksum}.tmp-${System.nanoTime()}")
+        long started = System.currentTimeMillis()
+        long size = 0
+        ZipFile zip = new ZipFile(archive)
+        try {
+            List<ZipEntry> entries = Collections.list(zip.entries())
+            String root = tmp.canonicalPath + File.separator
+            entries.each { ZipEntry entry ->
+                // entries must not be extracted outside of the cache (e.g. '../../file')
+                if (!new File(tmp, entry.name).canonicalPath.startsWith(root)) {
+                    throw new IllegalArgumentException("Entry ${entry.name} of ${archive} points outside of the extraction directory.")
+                }
+            }
+            entries.findAll { it.isDirectory() }.each { new File(tmp, it.name).mkdirs() }
+            size = parallel(entries.findAll { !it.isDirectory() }) { ZipEntry entry ->
+                File file = new File(tmp, entry.name)
+                file.parentFile.mkdirs()
+                zip.getInputStream(entry).withStream { is -> Files.copy(is, file.toPath()) }
+                if (entry.time > 0) {
+                    file.setLastModified(entry.time)
+                }
+                file.length()
+            }.sum(0L)
+        } finally {
+            zip.close()
+        }
+        if (extracted.exists() && !complete.exists()) {
+            // left behind by a build which died while extracting or evicting the archive, it may be incomplete
+            extracted.deleteDir()
+        }
+        if (!tmp.renameTo(extracted)) {
+            // extracted concurrently by another build
+            tmp.deleteDir()
+        }
+        complete.text = String.valueOf(size)
+        info "Extracted ${archive.name} (${checksum.take(12)}) to the staging cache in ${(System.currentTimeMillis() - started) / 1000} s."
+        return extracted
+    }
+
+    /**
+     * @param only - paths (relative to the destination) of the files to stage, all files are staged if null
+     * @return manifest entries of the staged files by their paths relative to the destination
+     */
+    Map<String, String> copy(File extracted, File dest, String strip, boolean link, Set<String> only) {
+        List<String[]> files = []
+        String root = extracted.canonicalPath + File.separator
+        extracted.eachFileRecurse(groovy.io.FileType.FILES) { File file ->
+            String name = file.canonicalPath.substring(root.length()).replace(File.separator, '/')
+            if (name.startsWith(strip) && (only == null || only.contains(name.substring(strip.length())))) {
+                files << ([file.path, name.substring(strip.length())] as String[])
+            }
+        }
+        List<String> entries = parallel(files) { String[] file ->
+            File source = new File(file[0])
+            File target = new File(dest, file[1])
+            target.parentFile.mkdirs()
+            Files.deleteIfExists(target.toPath())
+            boolean linked = false
+            if (link) {
+                try {
+                    Files.createLink(target.toPath(), source.toPath())
+                    linked = true
+                } catch (IOException | UnsupportedOperationException e) {
+                    // e.g. the cache is on a different file system, falls back to copy
+                }
+            }
+            if (!linked) {
+                Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING)
+                target.setLastModified(source.lastModified())
+            }
+            manifestEntry(target, file[1])
+        }
+        Map<String, String> result = [:]
+        files.eachWithIndex { String[] file, int i -> result[file[1]] = entries[i] }
+        return result
+    }
+
+    /**
+     * Evicts the least recently used archives from the cache until it fits 'staging.cache.maxSize'.
+     */
+    void prune(File keep) {
+        File extractedRoot = new File(cacheDir, 'extracted')
+        // directories of evicted archives left behind by builds which died while deleting them
+        (extractedRoot.listFiles({ File f -> f.name.contains('.trash-') } as FileFilter) ?: []).each { it.deleteDir() }
+        List<File> markers = (extractedRoot.listFiles({ File f -> f.name.endsWith(COMPLETE_EXT) } as FileFilter) ?: []).sort { it.lastModified() }
+        long total = markers.collect { it.text.trim() as long }.sum(0L)
+        for (File marker : markers) {
+            if (total <= maxSize) {
+                break
+            }
+            File extracted = new File(extractedRoot, marker.name - COMPLETE_EXT)
+            if (extracted == keep) {
+                continue
+            }
+            total -= marker.text.trim() as long
+            // the directory is moved away before the marker is deleted, so that a partially deleted directory is never taken for the archive
+            File trash = new File(extractedRoot, "${extracted.name}.trash-${System.nanoTime()}")
+            if (extracted.exists() && !extracted.renameTo(trash)) {
+                info "Could not evict ${extracted.name.take(12)} from the staging cache, it may be in use."
+                continue
+            }
+            marker.delete()
+            trash.deleteDir()
+            info "Evicted ${extracted.name.take(12)} from the staging cache."
+        }
+    }
+
+    /**
+     * @return fingerprint of the inputs, staged directories are represented by checksums of the archives staged in them
+     */
+    String fingerprint(List<File> inputs, String key) {
+        List<String> lines = [key]
+        inputs.each { File input ->
+            String prefix = sha1(input.canonicalPath)
+            List<File> manifests = (stateDir.listFiles({ File f -> f.name.startsWith(prefix) && f.name.endsWith(MANIFEST_EXT) } as FileFilter) ?: []) as List
+            if (manifests) {
+                manifests.sort { it.name }.each { lines << "${input.name} ${it.name} ${it.readLines('UTF-8')[0]}" }
+            } else if (input.isDirectory()) {
+                String root = input.canonicalPath + File.separator
+                input.eachFileRecurse(groovy.io.FileType.FILES) { File file ->
+                    lines << "${input.name} ${file.canonicalPath.substring(root.length()).replace(File.separator, '/')} ${sha256(file)}"
+                }
+            } else {
+                lines << "${input.name} ${input.exists() ? sha256(input) : 'missing'}"
+            }
+        }
+        return sha256(lines.sort().join('\n'))
+    }
+
+    /**
+     * @return SHA-256 checksum of the file, remembered for the file's size and modification time, so unchanged archives are not read again
+     */
+    String checksum(File file) {
+        File memo = new File(cacheDir, "checksums/${sha1(file.canonicalPath)}")
+        String key = "${file.length()} ${file.lastModified()}"
+        if (memo.exists()) {
+            List<String> fields = memo.text.trim().split(' ')
+            if (fields.size() == 3 && "${fields[0]} ${fields[1]}" == key) {
+                return fields[2]
+            }
+        }
+        String checksum = sha256(file)
+        memo.parentFile.mkdirs()
+        memo.text = "${key} ${checksum}"
+        return checksum
+    }
+
+    /**
+     * Applies the action to all elements using 'staging.threads' threads.
+     *
+     * @return results of the action
+     */
+    List parallel(List elements, Closure action) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads)
+        try {
+            return executor.invokeAll(elements.collect { element -> { -> action(element) } as Callable })*.get()
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    static String sha256(File file) {
+        MessageDigest digest = MessageDigest.getInstance('SHA-256')
+        file.eachByte(1024 * 1024) { byte[] buffer, int length -> digest.update(buffer, 0, length) }
+        return digest.digest().encodeHex().toString()
+    }
+
+    static String sha256(String text) {
+        return MessageDigest.getInstance('SHA-256').digest(text.getBytes('UTF-8')).encodeHex().toString()
+    }
+
+    static String sha1(String text) {
+        return MessageDigest.getInstance('SHA-1').digest(text.getBytes('UTF-8')).encodeHex().toString()
+    }
+}
+
+Map config = binding.variables.containsKey('properties') ? properties : System.properties
+Closure setting = { String name, String defaultValue = null ->
+    String value = config[name] ?: defaultValue
+    if (value == null) {
+        throw new IllegalArgumentException("Property ${name} must be set.")
+    }
+    return value.trim()
+}
+Closure info = binding.variables.containsKey('log') ? { log.info(it.toString()) } : { println it }
+Closure files = { String name -> setting(name).split(',').findAll { it.trim() }.collect { new File(it.trim()).absoluteFile } }
+
+StagingCache cache = new StagingCache(new File(setting('staging.cache.dir', "${System.getProperty('user.home')}/.see/staging-cache")).absoluteFile,
+    new File(setting('staging.state.dir')).absoluteFile,
+    (setting('staging.cache.maxSize', '20') as long) * 1024 * 1024 * 1024,
+    setting('staging.threads', String.valueOf(Runtime.runtime.availableProcessors())) as int,
+    info)
+
+switch (setting('staging.goal')) {
+    case 'stage':
+        File dest = new File(setting('staging.dest')).absoluteFile
+        String strip = config['staging.strip'] ?: ''
+        boolean link = Boolean.parseBoolean(setting('staging.link', 'false'))
+        files('staging.archives').each { cache.stage(it, dest, strip, link) }
+        break
+    case 'check-assembly':
+        File assembly = new File(setting('staging.assembly.file')).absoluteFile
+        String fingerprint = cache.fingerprint(files('staging.assembly.inputs'), config['staging.assembly.key'] ?: '')
+        File recorded = new File(cache.stateDir, "${assembly.name}.fingerprint")
+        boolean skip = assembly.exists() && recorded.exists() && recorded.text == fingerprint
+        if (binding.variables.containsKey('project')) {
+            project.properties['assembly.skipAssembly'] = String.valueOf(skip)
+        }
+        cache.stateDir.mkdirs()
+        new File(cache.stateDir, "${assembly.name}.fingerprint.pending").text = fingerprint
+        info(skip ? "Inputs of ${assembly.name} did not change, skipping the assembly." : "Inputs of ${assembly.name} changed, it will be assembled.")
+        break
+    case 'record-assembly':
+        File assembly = new File(setting('staging.assembly.file')).absoluteFile
+        File pending = new File(cache.stateDir, "${assembly.name}.fingerprint.pending")
+        if (assembly.exists() && pending.exists()) {
+            Files.move(pending.toPath(), new File(cache.stateDir, "${assembly.name}.fingerprint").toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        break
+    default:
+        throw new IllegalArgumentException("Unknown staging.goal ${setting('staging.goal')}.")
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of test scripts discovery ({@link TestScriptDiscovery}) and header parsing ({@link TestScriptMetadata}),
+ * with and without up-to-date test scripts index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiscoveryBenchmark {
+    private static final String TEST_SCRIPT_NAME_PATTERN = "test\\..*\\.[Rr]";
+    private static final String SKIP_DIRECTORIES_PATTERN = "\\..+|.+\\.Rtmp";
+
+    @Param({ "10", "100" })
+    public int projects;
+
+    @Param({ "5", "20" })
+    public int scriptsPerProject;
+
+    @Param({ "5", "100" })
+    public int headerLines;
+
+    private File root;
+    private File testProjects;
+    private TestScriptMetadataIndex warmIndex;
+    private Path testScript;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("see-at-discovery").toFile();
+        testProjects = new File(root, "projects");
+        new SyntheticTestProjects(projects, scriptsPerProject, headerLines, 1, 1024).generate(testProjects);
+        warmIndex = new TestScriptMetadataIndex(new File(root, TestScriptMetadataIndex.INDEX_FILE_NAME));
+        Map<File, List<Path>> discovered = discover(warmIndex);
+        warmIndex.save();
+        testScript = discovered.values().iterator().next().get(0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        WorkspaceProvisioner.delete(root);
+    }
+
+    private Map<File, List<Path>> discover(TestScriptMetadataIndex index) {
+        return new TestScriptDiscovery(TEST_SCRIPT_NAME_PATTERN, SKIP_DIRECTORIES_PATTERN, Collections.<File> emptyList(),
+            TagSelection.regex(".*daily.*", ""), index)
+                .discover(testProjects);
+    }
+
+    /**
+     * Discovery reading headers of all test scripts
+     */
+    @Benchmark
+    public Map<File, List<Path>> discoverWithEmptyIndex() {
+        return discover(new TestScriptMetadataIndex(new File(root, "empty.index")));
+    }
+
+    /**
+     * Discovery with all test scripts' headers already in the index
+     */
+    @Benchmark
+    public Map<File, List<Path>> discoverWithUpToDateIndex() {
+        return discover(warmIndex);
+    }
+
+    /**
+     * Loading and saving of the test scripts index
+     */
+    @Benchmark
+    public TestScriptMetadataIndex loadAndSaveIndex() throws IOException {
+        TestScriptMetadataIndex index = TestScriptMetadataIndex.load(root);
+        index.save();
+        return index;
+    }
+
+    /**
+     * Parsing of a single test script's header
+     */
+    @Benchmark
+    public TestScriptMetadata readHeader() throws IOException {
+        return TestScriptMetadata.read(testScript, Files.readAttributes(testScript, BasicFileAttributes.class));
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of {@link ExecuteTestProjectAT#discoverTestProjects()} - i.e. what the harness does before the first test script is executed
+ * once its configuration and caches are loaded: test scripts discovery, ordering and selection of the test scripts. The configuration is
+ * loaded once per trial, so that the resources it creates (e.g. the artifact archive's threads) are neither measured nor leaked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParametersBenchmark {
+
+    @Param({ "10", "100" })
+    public int projects;
+
+    @Param({ "5", "20" })
+    public int scriptsPerProject;
+
+    @Param({ "1", "4" })
+    public int parallelism;
+
+    private File root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("see-at-parameters").toFile();
+        File testProjects = new File(root, "projects");
+        new SyntheticTestProjects(projects, scriptsPerProject, 10, 1, 1024).generate(testProjects);
+        System.setProperty("test.projects", testProjects.getAbsolutePath());
+        System.setProperty("cache.path", new File(root, "cache").getAbsolutePath());
+        System.setProperty(ParallelProjectsRunner.PARALLELISM_PROPERTY, String.valueOf(parallelism));
+        ExecuteTestProjectAT.setUp();
+        // populates the test scripts index
+        ExecuteTestProjectAT.discoverTestProjects();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ExecuteTestProjectAT.closeArtifactArchive();
+        ExecuteTestProjectAT.closeStatusBoard();
+        ExecuteTestProjectAT.stopFakeSee();
+        WorkspaceProvisioner.delete(root);
+    }
+
+    @Benchmark
+    public List<Object[]> discoverTestProjects() throws Exception {
+        return ExecuteTestProjectAT.discoverTestProjects();
+    }
+}
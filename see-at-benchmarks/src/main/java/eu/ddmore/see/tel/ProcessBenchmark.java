@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Benchmark of the overhead of test script execution by {@link TestScriptPerformer} - process spawning, supervision and
+ * pumping of the process output to the log files.
+ * <p>
+ * Rscript is replaced by a shell script which ignores the test script and just writes the given number of lines to its standard output
+ * and error, so the benchmark runs on Linux without SEE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessBenchmark {
+    private static final String DUMMY_RSCRIPT = "#!/bin/sh\n"
+            + "# Rscript stand-in, writes lines to standard output and error\n"
+            + "yes 'Iteration 1: OBJ = 1234.5678 ## a line of NONMEM-like output' | head -n %1$s\n"
+            + "yes 'Warning message: a line of R-like warning' | head -n %1$s >&2\n"
+            + "exit 0\n";
+
+    @Param({ "0", "1000", "100000" })
+    public int outputLines;
+
+    @Param({ "OFF", "PREFIXED" })
+    public String console;
+
+    @Param({ "false", "true" })
+    public boolean compress;
+
+    private File root;
+    private File rscript;
+    private File wrapper;
+
+    @Setup
+    public void setUp() throws IOException {
+        // the performer reads its configuration when it is loaded, each benchmark is executed in a new JVM
+        System.setProperty("testscript.timeout", "10");
+        System.setProperty("at.output.console", console);
+        System.setProperty("at.output.compress", String.valueOf(compress));
+        root = Files.createTempDirectory("see-at-process").toFile();
+        rscript = new File(root, "Rscript");
+        Files.write(rscript.toPath(), String.format(DUMMY_RSCRIPT, outputLines).getBytes(Charset.defaultCharset()));
+        Preconditions.checkState(rscript.setExecutable(true), String.format("Could not make %s executable.", rscript));
+        wrapper = new File(new File(root, "Project"), "wrapper.test.script.R");
+        Files.createDirectories(wrapper.getParentFile().toPath());
+        Files.write(wrapper.toPath(), "q('no', 0, FALSE)\n".getBytes(Charset.defaultCharset()));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        WorkspaceProvisioner.delete(root);
+    }
+
+    @Benchmark
+    public long executeTestScript() throws Exception {
+        TestScriptPerformer performer = new TestScriptPerformer(wrapper, root);
+        performer.setRscriptExecutable(rscript);
+        performer.run();
+        return performer.getDuration();
+    }
+}
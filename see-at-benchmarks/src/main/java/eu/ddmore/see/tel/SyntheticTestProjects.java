@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Generates a tree of synthetic test projects, resembling the real ones:
+ * <pre>
+ * &lt;root&gt;/
+ *   Shared/                  - a shared project (with '.shared' marker file allowing any workspace mode) holding data files
+ *   Project-N/
+ *     models/data-M.csv      - data files
+ *     scripts/test.script-K.R - test scripts with a header declaring tags and order, followed by R code
+ *     scripts/utils.R         - a script which is not a test script
+ * </pre>
+ * The generation is deterministic, so benchmark runs are comparable.
+ */
+class SyntheticTestProjects {
+    static final String SHARED_PROJECT_NAME = "Shared";
+    private static final String SHARED_PROJECT_MARKER_FILE = ".shared";
+    private static final String[] TAGS = { "daily", "weekly", "slow", "nonmem", "monolix", "psn", "mdl", "UseCase1", "UseCase2" };
+    private final int projects;
+    private final int scriptsPerProject;
+    private final int headerLines;
+    private final int dataFilesPerProject;
+    private final int dataFileSize;
+
+    /**
+     * @param projects - number of test projects (in addition to the shared project)
+     * @param scriptsPerProject - number of test scripts in each project
+     * @param headerLines - number of comment lines in each test script's header
+     * @param dataFilesPerProject - number of data files in each project (including the shared one)
+     * @param dataFileSize - size of each data file (in bytes)
+     */
+    SyntheticTestProjects(int projects, int scriptsPerProject, int headerLines, int dataFilesPerProject, int dataFileSize) {
+        Preconditions.checkArgument(headerLines >= 2, "The header must have at least 2 lines (for tags and order).");
+        this.projects = projects;
+        this.scriptsPerProject = scriptsPerProject;
+        this.headerLines = headerLines;
+        this.dataFilesPerProject = dataFilesPerProject;
+        this.dataFileSize = dataFileSize;
+    }
+
+    /**
+     * Generates the projects into the given directory, which is deleted first.
+     */
+    void generate(File root) throws IOException {
+        if (root.exists()) {
+            WorkspaceProvisioner.delete(root);
+        }
+        Random random = new Random(projects * 31 + scriptsPerProject);
+        File shared = new File(root, SHARED_PROJECT_NAME);
+        generateDataFiles(new File(shared, "data"), random);
+        // the shared project opts in to linking, so that the benchmarks' provisioning mode applies to it
+        write(new File(shared, SHARED_PROJECT_MARKER_FILE), WorkspaceProvisioner.MODE_SETTING + "=" + WorkspaceProvisioner.Mode.SYMLINK + "\n");
+        for (int p = 1; p <= projects; p++) {
+            File project = new File(root, String.format("Project-%s", p));
+            generateDataFiles(new File(project, "models"), random);
+            File scripts = new File(project, "scripts");
+            for (int s = 1; s <= scriptsPerProject; s++) {
+                write(new File(scripts, String.format("test.script-%s.R", s)), testScript(s, random));
+            }
+            write(new File(scripts, "utils.R"), "utilityFunction <- function(x) { x }\n");
+        }
+    }
+
+    private String testScript(int order, Random random) {
+        StringBuilder script = new StringBuilder();
+        script.append(String.format("# Tags: %s %s\n", TAGS[random.nextInt(TAGS.length)], TAGS[random.nextInt(TAGS.length)]));
+        script.append(String.format("# Order: %s\n", order));
+        for (int i = 2; i < headerLines; i++) {
+            script.append(String.format("# Description line %s of the test script, %s\n", i, StringUtils.repeat("x", random.nextInt(60))));
+        }
+        script.append("\n");
+        for (int i = 0; i < 50; i++) {
+            script.append(String.format("result%s <- estimate(model, data = 'data-%s.csv') # Order: not a tag\n", i, i));
+        }
+        return script.toString();
+    }
+
+    private void generateDataFiles(File directory, Random random) throws IOException {
+        for (int d = 1; d <= dataFilesPerProject; d++) {
+            StringBuilder data = new StringBuilder("ID,TIME,DV\n");
+            while (data.length() < dataFileSize) {
+                data.append(String.format("%s,%s,%.4f\n", random.nextInt(100), random.nextInt(24), random.nextDouble()));
+            }
+            data.setLength(dataFileSize);
+            write(new File(directory, String.format("data-%s.csv", d)), data.toString());
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(Charset.defaultCharset()));
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of test project's working directory preparation ({@link WorkspaceProvisioner}) and of test script wrapper generation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WorkspaceBenchmark {
+
+    @Param({ "COPY", "LINK", "SYMLINK" })
+    public String mode;
+
+    @Param({ "10", "200" })
+    public int dataFiles;
+
+    @Param({ "10240", "1048576" })
+    public int dataFileSize;
+
+    private File root;
+    private File testProject;
+    private File sharedProject;
+    private File workspaces;
+    private WorkspaceProvisioner provisioner;
+    private ExecuteTestProjectAT harness;
+    private File testScript;
+    private final AtomicInteger workspaceCounter = new AtomicInteger();
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("see-at-workspace").toFile();
+        File testProjects = new File(root, "projects");
+        new SyntheticTestProjects(1, 5, 10, dataFiles, dataFileSize).generate(testProjects);
+        testProject = new File(testProjects, "Project-1");
+        sharedProject = new File(testProjects, SyntheticTestProjects.SHARED_PROJECT_NAME);
+        workspaces = new File(root, "workspaces");
+        provisioner = new WorkspaceProvisioner(new File(workspaces, WorkspaceProvisioner.SNAPSHOTS_DIRECTORY_NAME),
+            WorkspaceProvisioner.Mode.valueOf(mode), "");
+        // the harness reads SEE location in its constructor, SEE does not need to exist
+        System.setProperty("see.home", new File(root, "SEE").getAbsolutePath());
+        System.setProperty("see.RScript", "R/bin/Rscript");
+        Object[] parameter = new Object[] { testProject.toPath(), testProject.getName(), Paths.get("scripts", "test.script-1.R") };
+        List<Object[]> parameters = Collections.singletonList(parameter);
+        TestScriptGraph.Node node = (TestScriptGraph.Node) TestScriptGraph.build(parameters, Collections.<Path, TestScriptMetadata> emptyMap())
+            .order(parameters).get(0)[3];
+        harness = new ExecuteTestProjectAT((Path) parameter[0], (String) parameter[1], (Path) parameter[2], node);
+        testScript = new File(new File(testProject, "scripts"), "test.script-1.R");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteWorkspaces() throws IOException {
+        File[] created = workspaces.listFiles();
+        if (created != null) {
+            for (File workspace : created) {
+                if (!workspace.getName().equals(WorkspaceProvisioner.SNAPSHOTS_DIRECTORY_NAME)) {
+                    WorkspaceProvisioner.delete(workspace);
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        WorkspaceProvisioner.delete(root);
+    }
+
+    /**
+     * Provisioning of a working directory with the test project and the shared project, the snapshot of the shared project
+     * (in LINK and SYMLINK modes) is created by the first invocation
+     */
+    @Benchmark
+    public File provisionWorkspace() throws IOException {
+        File workspace = new File(workspaces, String.valueOf(workspaceCounter.incrementAndGet()));
+        provisioner.provision(testProject, workspace, false);
+        provisioner.provision(sharedProject, workspace, true);
+        return workspace;
+    }
+
+    @Benchmark
+    public File prepareScriptWrapper() throws IOException {
+        File wrapper = new File(root, "wrapper.test.script-1.R");
+        harness.prepareScriptWrapper(testScript, wrapper, testProject);
+        return wrapper;
+    }
+}
@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Handles test scripts' artifacts (R workspace image, stdout and stderr logs and R tmp directory) once a test script has finished.
+ * <p>
+ * Depending on the {@link Retention} policy the artifacts are either deleted or kept, kept artifacts are compressed and accounted against
+ * the disk quota. When the quota is exceeded, artifacts of the oldest passing test scripts are deleted first, then the ones of the oldest
+ * failed test scripts. All of this happens in background, so that it does not delay execution of the next test script.
+ * <p>
+ * R workspace images are compressed in place (so that the test scripts loading them find them under the same name) only once all test
+ * scripts have finished, by {@link #close()}, since the next test script of the test project may be loading the image meanwhile.
+ * <p>
+ * Instances are thread-safe.
+ */
+class ArtifactArchive {
+    private static final Logger LOG = Logger.getLogger(ArtifactArchive.class);
+    static final String GZIP_FILE_EXT = "gz";
+    static final String ZIP_FILE_EXT = "zip";
+    private final Retention retention;
+    private final boolean compress;
+    private final long quota;
+    private final ExecutorService executor;
+    /** Kept artifacts, oldest first */
+    private final List<Artifacts> kept = Lists.newLinkedList();
+    /** Kept R workspace images to be compressed once all test scripts have finished */
+    private final Map<File, Artifacts> deferredImages = Maps.newLinkedHashMap();
+    private long keptSize = 0;
+    private int deleted = 0;
+    private int evicted = 0;
+
+    enum Retention {
+        /**
+         * Artifacts of all test scripts are kept
+         */
+        ALWAYS("TRUE"),
+        /**
+         * Only artifacts of failed test scripts are kept, passing test scripts don't save R workspace image at all
+         */
+        ON_FAILURE("!exists('.seeAtPassed')"),
+        /**
+         * No artifacts are kept, test scripts don't save R workspace image at all
+         */
+        NEVER("FALSE");
+
+        private final String saveImageCondition;
+
+        private Retention(String saveImageCondition) {
+            this.saveImageCondition = saveImageCondition;
+        }
+
+        /**
+         * @return R expression deciding if the wrapper script saves R workspace image, see the wrapper script templates
+         */
+        String getSaveImageCondition() {
+            return saveImageCondition;
+        }
+
+        boolean keeps(boolean passed) {
+            return this == ALWAYS || (this == ON_FAILURE && !passed);
+        }
+    }
+
+    /**
+     * @param retention - which test scripts' artifacts are kept
+     * @param compress - if kept artifacts are compressed
+     * @param quota - maximum size (in bytes) of kept artifacts, 0 for no limit
+     * @param threads - number of threads processing the artifacts
+     */
+    ArtifactArchive(Retention retention, boolean compress, long quota, int threads) {
+        Preconditions.checkArgument(quota >= 0, "Quota must not be negative.");
+        Preconditions.checkArgument(threads > 0, "Number of threads must be positive.");
+        this.retention = retention;
+        this.compress = compress;
+        this.quota = quota;
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "artifact-archive-" + threadCounter.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    static ArtifactArchive fromSystemProperties() {
+        return new ArtifactArchive(Retention.valueOf(System.getProperty("at.artifacts.retention", Retention.ALWAYS.name())),
+            Boolean.parseBoolean(System.getProperty("at.artifacts.compress", "false")),
+            Long.parseLong(System.getProperty("at.artifacts.quota", "0")) * FileUtils.ONE_MB,
+            Integer.parseInt(System.getProperty("at.artifacts.threads", "1")));
+    }
+
+    Retention getRetention() {
+        return retention;
+    }
+
+    /**
+     * @return true if R workspace images are compressed by the archive rather than by R
+     */
+    boolean isCompressing() {
+        return compress;
+    }
+
+    /**
+     * Schedules handling of artifacts of a finished test script.
+     *
+     * @param name - name of the test script
+     * @param passed - if the test script passed
+     * @param files - the test script's artifacts, files or directories, the ones that don't exist are ignored
+     */
+    void submit(final String name, final boolean passed, final Collection<File> files) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    process(name, passed, files);
+                } catch (RuntimeException e) {
+                    LOG.warn(String.format("Could not process artifacts of %s.", name), e);
+                }
+            }
+        });
+    }
+
+    private void process(String name, boolean passed, Collection<File> files) {
+        if (!retention.keeps(passed)) {
+            for (File file : files) {
+                delete(file);
+            }
+            synchronized (this) {
+                deleted++;
+            }
+            LOG.debug(String.format("Deleted artifacts of %s (retention %s).", name, retention));
+            return;
+        }
+        Artifacts artifacts = new Artifacts(name, passed);
+        for (File file : files) {
+            if (!file.exists()) {
+                continue;
+            }
+            File archived = file;
+            if (compress && isImage(file)) {
+                synchronized (this) {
+                    deferredImages.put(file, artifacts);
+                }
+                artifacts.files.add(file);
+                continue;
+            }
+            try {
+                archived = compress ? compress(file) : file;
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not compress %s, keeping it uncompressed.", file), e);
+            }
+            if (archived.exists()) {
+                artifacts.files.add(archived);
+            }
+        }
+        for (File file : artifacts.files) {
+            artifacts.size += FileUtils.sizeOf(file);
+        }
+        synchronized (this) {
+            kept.add(artifacts);
+            keptSize += artifacts.size;
+            enforceQuota();
+        }
+    }
+
+    private static boolean isImage(File file) {
+        return file.isFile() && file.getName().endsWith("." + TestScriptPerformer.RDATA_FILE_EXT);
+    }
+
+    /**
+     * @return the compressed file, which is the given file if it is not compressed or if it is compressed in place (R workspace images)
+     */
+    private File compress(File file) throws IOException {
+        if (file.isDirectory()) {
+            if (FileUtils.listFiles(file, null, true).isEmpty()) {
+                // R tmp directories are usually empty
+                FileUtils.deleteDirectory(file);
+                return file;
+            }
+            File zipFile = new File(file.getPath() + "." + ZIP_FILE_EXT);
+            zip(file, zipFile);
+            FileUtils.deleteDirectory(file);
+            return zipFile;
+        }
+        if (file.getName().endsWith("." + GZIP_FILE_EXT) || file.length() == 0) {
+            return file;
+        }
+        if (isImage(file)) {
+            // R reads gzip compressed images regardless of the file name, so the image is compressed in place
+            File tmpFile = new File(file.getPath() + ".tmp");
+            gzip(file, tmpFile);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return file;
+        }
+        File gzipFile = new File(file.getPath() + "." + GZIP_FILE_EXT);
+        gzip(file, gzipFile);
+        Preconditions.checkState(file.delete(), String.format("Could not delete %s.", file));
+        return gzipFile;
+    }
+
+    private static void gzip(File file, File gzipFile) throws IOException {
+        try (InputStream is = new FileInputStream(file); OutputStream os = new GZIPOutputStream(new FileOutputStream(gzipFile))) {
+            IOUtils.copy(is, os);
+        }
+    }
+
+    private static void zip(File directory, File zipFile) throws IOException {
+        try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            for (File file : FileUtils.listFiles(directory, null, true)) {
+                os.putNextEntry(new ZipEntry(directory.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/')));
+                try (InputStream is = new FileInputStream(file)) {
+                    IOUtils.copy(is, os);
+                }
+                os.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Deletes artifacts of the oldest passing test scripts and then of the oldest failed ones until kept artifacts fit the quota.
+     */
+    private synchronized void enforceQuota() {
+        if (quota == 0) {
+            return;
+        }
+        for (boolean passed : new boolean[] { true, false }) {
+            for (Iterator<Artifacts> it = kept.iterator(); it.hasNext() && keptSize > quota;) {
+                Artifacts artifacts = it.next();
+                if (artifacts.passed != passed) {
+                    continue;
+                }
+                for (File file : artifacts.files) {
+                    delete(file);
+                    deferredImages.remove(file);
+                }
+                it.remove();
+                keptSize -= artifacts.size;
+                evicted++;
+                LOG.info(String.format("Deleted artifacts of %s (%s) to fit the artifacts quota of %s.", artifacts.name,
+                    FileUtils.byteCountToDisplaySize(artifacts.size), FileUtils.byteCountToDisplaySize(quota)));
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !FileUtils.deleteQuietly(file)) {
+            LOG.warn(String.format("Could not delete %s.", file));
+        }
+    }
+
+    /**
+     * Waits until artifacts of all finished test scripts are processed and compresses the kept R workspace images.
+     * To be called once no test script is running.
+     */
+    void close() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+            LOG.warn("Timed out waiting for test scripts' artifacts to be processed.");
+        }
+        synchronized (this) {
+            compressImages();
+            LOG.info(String.format("Kept artifacts of %s test scripts (%s), deleted artifacts of %s test scripts (retention %s) and of %s test "
+                + "scripts (quota).", kept.size(), FileUtils.byteCountToDisplaySize(keptSize), deleted, retention, evicted));
+        }
+    }
+
+    /**
+     * Compresses the kept R workspace images in place
+     */
+    private synchronized void compressImages() {
+        for (Map.Entry<File, Artifacts> en : deferredImages.entrySet()) {
+            File image = en.getKey();
+            if (!image.exists()) {
+                continue;
+            }
+            long size = image.length();
+            try {
+                compress(image);
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not compress %s, keeping it uncompressed.", image), e);
+            }
+            en.getValue().size += image.length() - size;
+            keptSize += image.length() - size;
+        }
+        deferredImages.clear();
+    }
+
+    /**
+     * Kept artifacts of a test script
+     */
+    private static class Artifacts {
+        private final String name;
+        private final boolean passed;
+        private final List<File> files = Lists.newArrayList();
+        private long size = 0;
+
+        private Artifacts(String name, boolean passed) {
+            this.name = name;
+            this.passed = passed;
+        }
+    }
+}
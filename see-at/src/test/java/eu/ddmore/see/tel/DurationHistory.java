@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * History of test scripts' execution durations and outcomes.
+ * <p>
+ * The history is used to estimate how long a test script takes (so that the longest test projects can be started first) and to derive
+ * test script's timeout: a percentile of durations of the recent passed executions multiplied by a factor.
+ * <p>
+ * The history is stored in a file (by default in 'cache.path' directory) holding a line per test script with tab-separated fields,
+ * the most recent {@value #MAX_SAMPLES} executions are kept:
+ * <pre>
+ * project/script outcome:duration:timestamp...
+ * </pre>
+ * Instances are thread-safe.
+ */
+class DurationHistory {
+    private static final Logger LOG = Logger.getLogger(DurationHistory.class);
+    static final String HISTORY_FILE_NAME = "see-at/durations.history";
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char SAMPLE_FIELD_SEPARATOR = ':';
+    static final int MAX_SAMPLES = 20;
+    private final File historyFile;
+    private final ConcurrentMap<String, List<Sample>> entries = Maps.newConcurrentMap();
+
+    enum Outcome {
+        PASSED, FAILED, TIMED_OUT
+    }
+
+    DurationHistory(File historyFile) {
+        this.historyFile = historyFile;
+    }
+
+    /**
+     * Creates history backed by the file located in the given cache directory and loads its contents.
+     */
+    static DurationHistory load(File cacheDirectory) {
+        DurationHistory history = new DurationHistory(new File(cacheDirectory, HISTORY_FILE_NAME));
+        history.load();
+        return history;
+    }
+
+    /**
+     * Loads the history file, a corrupted or unreadable history file results in empty history.
+     */
+    void load() {
+        entries.clear();
+        if (!historyFile.exists()) {
+            LOG.debug(String.format("Durations history %s does not exist.", historyFile));
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(historyFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                List<String> fields = Lists.newArrayList(Splitter.on(FIELD_SEPARATOR).split(line));
+                List<Sample> samples = Lists.newArrayList();
+                for (String field : fields.subList(1, fields.size())) {
+                    samples.add(Sample.parse(field));
+                }
+                entries.put(fields.get(0), ImmutableList.copyOf(samples));
+            }
+            LOG.debug(String.format("Loaded durations history of %s test scripts from %s.", entries.size(), historyFile));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(String.format("Could not load durations history %s, the history will be rebuilt.", historyFile), e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Records execution of the test script and updates the history file.
+     */
+    void record(File project, File script, long duration, Outcome outcome) throws IOException {
+        String key = key(project, script);
+        synchronized (this) {
+            List<Sample> samples = Lists.newArrayList();
+            if (entries.containsKey(key)) {
+                samples.addAll(entries.get(key));
+            }
+            samples.add(new Sample(outcome, duration, System.currentTimeMillis()));
+            if (samples.size() > MAX_SAMPLES) {
+                samples = samples.subList(samples.size() - MAX_SAMPLES, samples.size());
+            }
+            entries.put(key, ImmutableList.copyOf(samples));
+        }
+        save();
+    }
+
+    /**
+     * @return estimated duration (in milliseconds) of the test script, i.e. the median duration of its recorded executions,
+     * or null if there is no history of the test script
+     */
+    Long estimate(File project, File script) {
+        List<Long> durations = durations(project, script, null);
+        if (durations.isEmpty()) {
+            return null;
+        }
+        return percentile(durations, 50);
+    }
+
+    /**
+     * @param percentile - percentile of durations of passed executions
+     * @param factor - the percentile is multiplied by the factor
+     * @param minSamples - minimum number of passed executions in the history
+     * @param min - the minimum timeout
+     * @param max - the maximum timeout, used if the history does not contain enough passed executions
+     * @return timeout (in milliseconds) of the test script
+     */
+    long timeout(File project, File script, int percentile, double factor, int minSamples, long min, long max) {
+        List<Long> durations = durations(project, script, Outcome.PASSED);
+        if (durations.size() < minSamples) {
+            return max;
+        }
+        long timeout = (long) (percentile(durations, percentile) * factor);
+        return Math.min(max, Math.max(min, timeout));
+    }
+
+    /**
+     * Stores the history in the file.
+     */
+    synchronized void save() throws IOException {
+        File parent = historyFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException(String.format("Could not create directory %s.", parent));
+        }
+        File tmpFile = new File(parent, historyFile.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, List<Sample>> en : entries.entrySet()) {
+                List<Object> fields = Lists.<Object> newArrayList(en.getKey());
+                fields.addAll(en.getValue());
+                writer.write(Joiner.on(FIELD_SEPARATOR).join(fields));
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile.toPath(), historyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    File getHistoryFile() {
+        return historyFile;
+    }
+
+    /**
+     * @param outcome - outcome of the executions, null for all executions
+     */
+    private List<Long> durations(File project, File script, Outcome outcome) {
+        List<Long> result = Lists.newArrayList();
+        List<Sample> samples = entries.get(key(project, script));
+        if (samples != null) {
+            for (Sample sample : samples) {
+                if (outcome == null || sample.outcome == outcome) {
+                    result.add(sample.duration);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the given percentile (nearest-rank method) of the values
+     */
+    private static long percentile(List<Long> values, int percentile) {
+        Preconditions.checkArgument(percentile > 0 && percentile <= 100, "Percentile must be between 1 and 100.");
+        List<Long> sorted = Lists.newArrayList(values);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static String key(File project, File script) {
+        return FilenameUtils.separatorsToUnix(new File(project.getName(), script.getPath()).getPath());
+    }
+
+    private static class Sample {
+        private final Outcome outcome;
+        private final long duration;
+        private final long timestamp;
+
+        Sample(Outcome outcome, long duration, long timestamp) {
+            this.outcome = outcome;
+            this.duration = duration;
+            this.timestamp = timestamp;
+        }
+
+        static Sample parse(String value) {
+            List<String> fields = Lists.newArrayList(Splitter.on(SAMPLE_FIELD_SEPARATOR).split(value));
+            if (fields.size() != 3) {
+                throw new IllegalArgumentException(String.format("Malformed durations history sample [%s].", value));
+            }
+            return new Sample(Outcome.valueOf(fields.get(0)), Long.parseLong(fields.get(1)), Long.parseLong(fields.get(2)));
+        }
+
+        @Override
+        public String toString() {
+            return Joiner.on(SAMPLE_FIELD_SEPARATOR).join(outcome, duration, timestamp);
+        }
+    }
+}
@@ -15,43 +15,45 @@
  *******************************************************************************/
 package eu.ddmore.see.tel;
 
-import static java.nio.file.FileVisitResult.CONTINUE;
-
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
+import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
+import org.junit.runners.Parameterized.UseParametersRunnerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 
 /**
@@ -69,27 +71,68 @@ import com.google.common.collect.Maps;
  * </ol>
  * This Test Harness supports both - execution from Maven and from IDE but the latter requires that at least Maven's 'pre-integration-test' phase 
  * has been executed first.
+ * <p>
+ * Test scripts of different test projects can be executed concurrently, see {@link ParallelProjectsRunner}.
  * 
  */
-@RunWith(Parameterized.class)
+@RunWith(ParallelProjectsRunner.class)
+@UseParametersRunnerFactory(ParallelProjectsRunner.LaneRunnerFactory.class)
 public class ExecuteTestProjectAT {
     final static Logger LOG = Logger.getLogger(ExecuteTestProjectAT.class);
-    private static final String TEST_SCRIPT_NAME_PATTERN = "regex:test\\..*\\.[Rr]";
+    static final String TEST_SCRIPT_NAME_PATTERN = "test\\..*\\.[Rr]";
+    static final String AT_WORKING_DIRECTORY = "t/at";
+    /** Directories that can't contain test scripts - hidden directories and R temporary directories */
+    static final String SKIP_DIRECTORIES_PATTERN = "\\..+|.+\\.Rtmp";
     private static final String TEST_SCRIPT_WRAPPER_TEMPLATE = "/TestScriptWrapperTemplate.template";
+    private static final String TEST_SCRIPT_WORKER_WRAPPER_TEMPLATE = "/TestScriptWorkerWrapperTemplate.template";
+    private static final String R_WORKERS_DIRECTORY_NAME = ".rworkers";
     private static final String TEST_SCRIPT_WRAPPER_FILE_NAME_TEMPLATE = "wrapper.%s";
-    private static final String COMMON_PROJECT_MARKER_FILE = ".shared";
-    private static final String RDATA_FILE_EXT = "RData";
+    private static final String COMMON_PROJECT_MARKER_FILE = WorkspaceProvisioner.SHARED_MARKER_FILE_NAME;
+    private static final String RESOURCE_USAGE_REPORT_FILE_NAME = "resource-usage.txt";
+    private static final String RUN_REPORTS_DIRECTORY_NAME = "run-reports";
+    private static final String SELECTION_FILE_NAME = "selection.txt";
+    /** File of SEE installation that records versions of SEE and its components */
+    private static final String SEE_VERSION_FILE = "README.txt";
+    private static final String FAKE_SEE_DIRECTORY_NAME = ".fake/SEE";
+    private static final String DETACHED_WORKING_DIRECTORY_NAME_TEMPLATE = "%s@%s";
+    /** Test script wrappers and their artifacts, which are not copied to working directories of the dependent test scripts */
+    private static final String WRAPPER_ARTIFACTS_PATTERN = "wrapper\\..*";
 
-    private static String tagsInclusionPattern = null;
-    private static String tagsExclusionPattern = null;
+    private static TagSelection tagSelection = null;
+    private static WorkspaceProvisioner workspaceProvisioner = null;
+    private static RWorkerPool workerPool = null;
+    private static ResultCache resultCache = null;
+    private static ResourcePools resourcePools = null;
+    private static DurationHistory durationHistory = null;
+    private static boolean FORCE_RERUN = false;
+    /** Test scripts of each test project, in execution order */
+    private static final ListMultimap<File, File> projectScripts = ArrayListMultimap.create();
+    /** Test projects whose test scripts are all cached passes */
+    private static final ConcurrentMap<File, Boolean> cachedProjects = Maps.newConcurrentMap();
+    private static final ResourceUsageReport resourceUsageReport = new ResourceUsageReport();
+    private static TestSuiteShard shard = null;
+    private static TimingsReport timingsReport = null;
+    private static RunReport runReport = null;
+    private static FakeSee fakeSee = null;
+    private static ArtifactArchive artifactArchive = null;
+    private static TestScriptGraph scriptGraph = null;
+    private static OutputAnalyzer.Config outputAnalysis = null;
+    private static ScriptStatusBoard statusBoard = null;
+    /** Outcomes of the executed test scripts by {@link TestScriptGraph.Node#getId()}, true if passed */
+    private static final ConcurrentMap<String, Boolean> scriptOutcomes = Maps.newConcurrentMap();
+    /** Test scripts of the current round of the watch mode (see {@link TestScriptWatcher}), null if the test scripts are discovered */
+    private static List<Object[]> watchRound = null;
     
-    private final File atWorkingDirectoryParent = new File("t/at").getAbsoluteFile();
+    private final File atWorkingDirectoryParent = new File(AT_WORKING_DIRECTORY).getAbsoluteFile();
     private final File rBinary = new File(System.getProperty("see.home"), System.getProperty("see.RScript"));
     private final File seeHome = new File(System.getProperty("see.home")).getAbsoluteFile();
     private final String buildId = System.getProperty("build.id", "NO_ID");
-    private final File cachePath = new File(System.getProperty("cache.path", "t/cache")).getAbsoluteFile();
+    private final File cachePath = getCacheLocation();
     private final File testProject;
     private final File testScript;
+    private final TestScriptGraph.Node node;
+    /** Time (in milliseconds) the test script waited for resource slots */
+    private long queueWait = 0;
     /*
     * Attributes controlling test harness behaviour
     */
@@ -109,6 +152,17 @@ public class ExecuteTestProjectAT {
          */
         PrintDebugAndSucceed
     }
+    private static ExecutionMode EXECUTION_MODE = ExecutionMode.PROCESS;
+    private enum ExecutionMode {
+        /**
+         * Each Test Script is executed by a new Rscript process
+         */
+        PROCESS,
+        /**
+         * Test Scripts are executed by a pool of R processes with SEE R console already initialised, see {@link RWorkerPool}
+         */
+        WORKER_POOL
+    }
     
     public static void setUp() throws Exception {
         Properties properties = new Properties();
@@ -119,12 +173,48 @@ public class ExecuteTestProjectAT {
                 System.setProperty(key, (String) en.getValue());
             }
         }
+        if (Boolean.parseBoolean(System.getProperty(FakeSee.ENABLED_PROPERTY, "false")) && fakeSee == null) {
+            // has to be set up before test instances are created, it replaces 'see.home' and 'see.RScript'
+            fakeSee = FakeSee.create(new File(AT_WORKING_DIRECTORY, FAKE_SEE_DIRECTORY_NAME).getAbsoluteFile());
+        }
         TEST_SCRIPT_MODE = TestScriptMode.valueOf(System.getProperty("testScriptMode", TestScriptMode.RunTestScript.name()));
         DRY_RUN = Boolean.parseBoolean(System.getProperty("dryRun", "false"));
+        EXECUTION_MODE = ExecutionMode.valueOf(System.getProperty("at.execution.mode", ExecutionMode.PROCESS.name()));
 
-        tagsInclusionPattern = System.getProperty("tagsInclusionPattern", ".*");
-        tagsExclusionPattern = System.getProperty("tagsExclusionPattern", "");
+        tagSelection = TagSelection.fromSystemProperties();
+        workspaceProvisioner = new WorkspaceProvisioner(new File(AT_WORKING_DIRECTORY, WorkspaceProvisioner.SNAPSHOTS_DIRECTORY_NAME),
+            WorkspaceProvisioner.Mode.valueOf(System.getProperty("at.workspace.mode", WorkspaceProvisioner.Mode.COPY.name())),
+            System.getProperty("at.workspace.copyPatterns", ""));
+        durationHistory = DurationHistory.load(getCacheLocation());
+        if (artifactArchive == null) {
+            // its threads are stopped by closeArtifactArchive()
+            artifactArchive = ArtifactArchive.fromSystemProperties();
+        }
+        outputAnalysis = OutputAnalyzer.Config.fromSystemProperties();
+        shard = TestSuiteShard.fromSystemProperties();
+        resourcePools = ResourcePools.fromSystemProperties();
+        ParallelProjectsRunner.setResourcePools(DRY_RUN ? null : resourcePools);
+        File atWorkingDirectory = new File(AT_WORKING_DIRECTORY).getAbsoluteFile();
+        if (!atWorkingDirectory.exists()) {
+            Preconditions.checkState(atWorkingDirectory.mkdirs(), String.format("Could not create directory %s.", atWorkingDirectory));
+        }
+        timingsReport = TimingsReport.create(new File(atWorkingDirectory, TimingsReport.FILE_NAME));
+        runReport = RunReport.create(new File(atWorkingDirectory, RunReport.FILE_NAME), System.getProperty("build.id", "NO_ID"), shard);
+        if (statusBoard == null) {
+            statusBoard = new ScriptStatusBoard(new File(atWorkingDirectory, ScriptStatusBoard.FILE_NAME),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("at.analyzer.statusInterval", "30"))));
+        }
+        if (Boolean.parseBoolean(System.getProperty("at.cache.enabled", "false"))) {
+            resultCache = ResultCache.load(getCacheLocation(), TimeUnit.DAYS.toMillis(Long.parseLong(System.getProperty("at.cache.maxAge", "0"))),
+                Lists.newArrayList(new File(AT_WORKING_DIRECTORY).getAbsoluteFile(), getCacheLocation()));
+            FORCE_RERUN = Boolean.parseBoolean(System.getProperty("at.cache.force", "false"));
+        }
     }
+
+    static File getCacheLocation() {
+        return new File(System.getProperty("cache.path", "t/cache")).getAbsoluteFile();
+    }
+
     /**
      * The method that produces the parameters to be passed to each construction of the test class.
      * In this case, the {@link Path}s that are the test projects and test scripts.
@@ -133,79 +223,249 @@ public class ExecuteTestProjectAT {
      */
     @Parameters(name = "{index}: {1} -> {2}")
     public static Iterable<Object[]> getTestProjects() throws Exception {
+        if (watchRound != null) {
+            return watchRound;
+        }
         setUp();
+        return discoverTestProjects();
+    }
+
+    /**
+     * Discovers, orders and selects the test scripts, with the configuration loaded by {@link #setUp()}.
+     */
+    static List<Object[]> discoverTestProjects() throws IOException {
         File testProjectsLocation = new File(System.getProperty("test.projects")).getAbsoluteFile();
 
         LOG.debug(String.format("Looking for all files in [%s] matching : [%s]", testProjectsLocation, TEST_SCRIPT_NAME_PATTERN));
         
-        File[] testProjects = testProjectsLocation.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return new File(dir, name).isDirectory();
-            }
-        });
-        Preconditions.checkNotNull(testProjects, String.format("No test projects found in %s", testProjectsLocation));
-        Map<File, Set<Path>> projectsAndFiles = Maps.newHashMap();
-        for(File testProject : testProjects){
-            TestScriptFinder testScriptFinder = new TestScriptFinder(TEST_SCRIPT_NAME_PATTERN, tagsInclusionPattern, tagsExclusionPattern);
-            LOG.debug(String.format("Test Script include pattern : [%s]", tagsInclusionPattern));
-            LOG.debug(String.format("Test Script exclude pattern : [%s]", tagsExclusionPattern));
-            Files.walkFileTree(testProject.getAbsoluteFile().toPath(), testScriptFinder);
-            projectsAndFiles.put(testProject, testScriptFinder.getScripts());
-        }
+        final TestScriptMetadataIndex scriptsIndex = TestScriptMetadataIndex.load(getCacheLocation());
+        TestScriptDiscovery discovery = new TestScriptDiscovery(TEST_SCRIPT_NAME_PATTERN, System.getProperty("at.discovery.skipDirectories", SKIP_DIRECTORIES_PATTERN),
+            Lists.newArrayList(new File(AT_WORKING_DIRECTORY).getAbsoluteFile(), getCacheLocation()), tagSelection, scriptsIndex);
+        Map<File, List<Path>> projectsAndFiles = discovery.discover(testProjectsLocation);
         
         List<Object[]> parameters = Lists.newArrayList();
-        for(Entry<File, Set<Path>> en : projectsAndFiles.entrySet()) {
+        for(Entry<File, List<Path>> en : projectsAndFiles.entrySet()) {
             Path testProject = en.getKey().toPath();
             for(Path testScript : en.getValue()) {
                 Path relativeTestScript = testProject.relativize(testScript);
                 parameters.add(new Object[] {testProject, testProject.getFileName().toString(), relativeTestScript});
             }
         }
+        if (!shard.isWholeSuite()) {
+            parameters = selectShard(parameters);
+        }
+        final Map<String, Long> projectEstimates = Integer.parseInt(System.getProperty(ParallelProjectsRunner.PARALLELISM_PROPERTY, "1")) > 1
+            ? estimateProjectDurations(parameters, durationHistory) : Collections.<String, Long> emptyMap();
         Collections.sort(parameters, new Comparator<Object[]> () {
 
             @Override
             public int compare(Object[] left, Object[] right) {
+                if(!projectEstimates.isEmpty()) {
+                    // longest test projects first
+                    int durationOrder = Long.compare(projectEstimates.get(right[1]), projectEstimates.get(left[1]));
+                    if(durationOrder!=0) {
+                        return durationOrder;
+                    }
+                }
                 int projectOrder = ((String)left[1]).compareTo((String)right[1]);
                 if(projectOrder!=0) {
                     return projectOrder;
                 }
-                File lTestScript = getScriptFile(left);
-                int lOrder = extractOrder(lTestScript);
-                File rTestScript = getScriptFile(right);
-                int rOrder = extractOrder(rTestScript);
+                int lOrder = getScriptMetadata(left).getOrder();
+                int rOrder = getScriptMetadata(right).getOrder();
                 return Integer.compare(lOrder, rOrder);
             }
 
-            private File getScriptFile(Object[] element) {
+            private TestScriptMetadata getScriptMetadata(Object[] element) {
                 Path projectPath = (Path)element[0];
                 Path testScriptPath = (Path)element[2];
-                File testScript = projectPath.resolve(testScriptPath).toFile();
-                return testScript;
-            }
-
-            private int extractOrder(File testScript) {
-                int order = Integer.MAX_VALUE;
-                    String value = extractTag(testScript, "Order");
-                    if(!StringUtils.isBlank(value)) {
-                        order = Integer.parseInt(value);
-                    }
-                return order;
+                return scriptsIndex.get(projectPath.resolve(testScriptPath));
             }
 
         });
+        scriptGraph = TestScriptGraph.build(parameters, getScriptsMetadata(parameters, scriptsIndex));
+        parameters = scriptGraph.order(parameters);
+        for (Entry<String, Collection<TestScriptGraph.Node>> en : scriptGraph.getDetached().asMap().entrySet()) {
+            LOG.info(String.format("Test scripts %s of test project %s are executed in their own working directories.", en.getValue(), en.getKey()));
+        }
+        projectScripts.clear();
+        for(Object[] parameter : parameters) {
+            projectScripts.put(((Path)parameter[0]).toFile().getAbsoluteFile(), ((Path)parameter[2]).toFile());
+        }
+        try {
+            scriptsIndex.save();
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not save test scripts index %s.", scriptsIndex.getIndexFile()), e);
+        }
+        if (Boolean.parseBoolean(System.getProperty("at.tags.list", "false"))) {
+            listSelection(parameters, discovery.getExcluded(), scriptsIndex);
+            // the selection is only listed, no test script is executed
+            return Collections.emptyList();
+        }
         return parameters;
     }
 
+    /**
+     * Makes the following executions of the test class execute the given test scripts (as produced by {@link #getTestProjects()}) rather
+     * than discover them, and keeps the resources shared by test scripts (fake SEE, status board, artifact archive) open after each execution.
+     * Test scripts' outcomes are kept between the rounds, so a test script depending on a test script which is not executed in the round
+     * relies on its last outcome.
+     */
+    static void startRound(List<Object[]> parameters) {
+        watchRound = parameters;
+        // the test projects have changed since the previous round
+        cachedProjects.clear();
+    }
+
+    /**
+     * Closes the resources kept open between the rounds of the watch mode.
+     */
+    static void endRounds() throws InterruptedException, IOException {
+        watchRound = null;
+        closeWorkspaceProvisioner();
+        closeArtifactArchive();
+        closeStatusBoard();
+        stopFakeSee();
+    }
+
+    /**
+     * Updates a changed file of a test project in all working directories the test project has been copied into, so the working directories
+     * are reused by the next round of the watch mode, and makes the results cache compute the project's fingerprint again.
+     * @param project - the test project or the shared project
+     * @param file - path of the changed file relative to the project, the file is removed from the working directories if it was deleted
+     */
+    static void updateWorkspaces(File project, Path file) throws IOException {
+        List<File> workspaces = Lists.newArrayList();
+        File[] directories = new File(AT_WORKING_DIRECTORY).getAbsoluteFile().listFiles((FileFilter) FileFilterUtils.directoryFileFilter());
+        for (File directory : directories == null ? new File[0] : directories) {
+            // snapshots, R workers and fake SEE directories are hidden
+            if (!directory.getName().startsWith(".") && new File(directory, project.getName()).exists()) {
+                workspaces.add(directory);
+            }
+        }
+        workspaceProvisioner.update(project, file, workspaces, isSharedProject(project));
+        if (resultCache != null) {
+            resultCache.invalidate(project, file);
+        }
+    }
+
+    /**
+     * Logs and writes to {@value #SELECTION_FILE_NAME} test scripts which would be executed (in the execution order) and the ones which
+     * were not selected by their tags.
+     */
+    private static void listSelection(List<Object[]> parameters, List<Path> excluded, TestScriptMetadataIndex scriptsIndex) throws IOException {
+        List<String> lines = Lists.newArrayList(String.format("# %s test scripts selected by [%s] (test scripts without tags are always selected)",
+            parameters.size(), tagSelection));
+        for (Object[] parameter : parameters) {
+            Path testScript = ((Path) parameter[0]).resolve((Path) parameter[2]);
+            lines.add(String.format("%s\t%s", ((TestScriptGraph.Node) parameter[3]).getId(),
+                scriptsIndex.get(testScript).getTag(TestScriptMetadata.TAGS_TAG)));
+        }
+        lines.add(String.format("# %s test scripts not selected", excluded.size()));
+        File testProjectsLocation = new File(System.getProperty("test.projects")).getAbsoluteFile();
+        for (Path testScript : excluded) {
+            lines.add(String.format("# %s\t%s", FilenameUtils.separatorsToUnix(testProjectsLocation.toPath().relativize(testScript).toString()),
+                scriptsIndex.get(testScript).getTag(TestScriptMetadata.TAGS_TAG)));
+        }
+        File selectionFile = new File(AT_WORKING_DIRECTORY, SELECTION_FILE_NAME).getAbsoluteFile();
+        FileUtils.writeLines(selectionFile, StandardCharsets.UTF_8.name(), lines);
+        LOG.info(String.format("Test scripts selection (written to %s):\n%s", selectionFile, StringUtils.join(lines, "\n")));
+    }
+
+    private static Map<Path, TestScriptMetadata> getScriptsMetadata(List<Object[]> parameters, TestScriptMetadataIndex scriptsIndex) {
+        Map<Path, TestScriptMetadata> result = Maps.newHashMap();
+        for (Object[] parameter : parameters) {
+            Path testScript = ((Path) parameter[0]).resolve((Path) parameter[2]);
+            result.put(testScript, scriptsIndex.get(testScript));
+        }
+        return result;
+    }
+
+    /**
+     * Estimates test projects' durations from the durations history, so that the longest test projects can be started first
+     * and a parallel run finishes as early as possible. Test scripts without history are assumed to take the average time.
+     * 
+     * @return test project name to its estimated duration, empty if test projects are not executed concurrently
+     */
+    private static Map<String, Long> estimateProjectDurations(List<Object[]> parameters, DurationHistory history) {
+        Map<String, Long> result = Maps.newHashMap();
+        Map<Object[], Long> estimates = Maps.newHashMap();
+        long known = 0;
+        for (Object[] parameter : parameters) {
+            Long estimate = history.estimate(((Path)parameter[0]).toFile(), ((Path)parameter[2]).toFile());
+            if (estimate != null) {
+                estimates.put(parameter, estimate);
+                known += estimate;
+            }
+        }
+        // without any history test projects are estimated by their number of test scripts
+        long average = estimates.isEmpty() ? 1 : Math.max(1, known / estimates.size());
+        for (Object[] parameter : parameters) {
+            String project = (String)parameter[1];
+            long estimate = estimates.containsKey(parameter) ? estimates.get(parameter) : average;
+            result.put(project, (result.containsKey(project) ? result.get(project) : 0) + estimate);
+        }
+        LOG.debug(String.format("Estimated test projects durations (in ms): %s", result));
+        return result;
+    }
+
+    /**
+     * Test projects are balanced by their estimates from the shared durations history ('at.shard.history') if it is given, otherwise
+     * by their number of test scripts, so that all nodes compute the same partition (local histories differ between nodes).
+     * 
+     * @return parameters of test projects belonging to this node's shard of the test suite
+     */
+    private static List<Object[]> selectShard(List<Object[]> parameters) throws IOException {
+        String historyFile = System.getProperty("at.shard.history", "").trim();
+        Map<String, Long> projectEstimates;
+        if (!historyFile.isEmpty()) {
+            DurationHistory history = new DurationHistory(new File(historyFile).getAbsoluteFile());
+            history.load();
+            projectEstimates = estimateProjectDurations(parameters, history);
+        } else {
+            LOG.info("No shared durations history (at.shard.history) given, test projects are balanced across shards by their number of test scripts.");
+            projectEstimates = Maps.newHashMap();
+            for (Object[] parameter : parameters) {
+                String project = (String)parameter[1];
+                projectEstimates.put(project, (projectEstimates.containsKey(project) ? projectEstimates.get(project) : 0) + 1);
+            }
+        }
+        List<List<String>> partition = shard.partition(projectEstimates);
+        String fingerprint = TestSuiteShard.fingerprint(partition);
+        FileUtils.writeStringToFile(new File(AT_WORKING_DIRECTORY, TestSuiteShard.PARTITION_FILE_NAME).getAbsoluteFile(), fingerprint + "\n",
+            StandardCharsets.UTF_8);
+        Set<String> selected = Sets.newHashSet(partition.get(shard.getIndex()));
+        List<Object[]> result = Lists.newArrayList();
+        long estimate = 0;
+        for (Object[] parameter : parameters) {
+            if (selected.contains(parameter[1])) {
+                result.add(parameter);
+            }
+        }
+        for (String project : selected) {
+            estimate += projectEstimates.get(project);
+        }
+        long total = 0;
+        for (Long projectEstimate : projectEstimates.values()) {
+            total += projectEstimate;
+        }
+        LOG.info(String.format("Executing %s (partition %s): %s of %s test projects, %s of %s test scripts (%s%% of the estimated duration).", shard,
+            fingerprint, selected.size(), projectEstimates.size(), result.size(), parameters.size(), total == 0 ? 0 : estimate * 100 / total));
+        LOG.debug(String.format("Test projects of %s: %s", shard, selected));
+        return result;
+    }
+
     /**
      * Invoked by the {@link Parameterized} runner
      * @param testProject - path of the test project
      * @param projectName - project name - used just of pretty JUnit test report
      * @param testScrip - path of the test script
+     * @param node - the test script's node in the dependency graph
      */
-    public ExecuteTestProjectAT(Path testProject, String projectName, Path testScript) {
+    public ExecuteTestProjectAT(Path testProject, String projectName, Path testScript, TestScriptGraph.Node node) {
         this.testProject = testProject.toFile().getAbsoluteFile();
         this.testScript = testScript.toFile();
+        this.node = node;
     }
 
     /**
@@ -220,39 +480,361 @@ public class ExecuteTestProjectAT {
      *   <li>the test project that contains the script being executed</li>
      *   <li>all test projects that contain COMMON_PROJECT_MARKER_FILE marker file</li>
      * </ol>
+     * Test Scripts with 'DependsOn:' or 'Isolated: true' header are executed in their own working directories, see {@link TestScriptGraph}.
+     * They are skipped if any of the test scripts they depend on did not pass.
+     * <p>
      * The test is considered successful if it completes without exception.
      */
     @Test
     public void shouldSuccessfulyExecuteTestScript() throws Exception {
+        for (String prerequisite : node.getPrerequisites()) {
+            if (!Boolean.TRUE.equals(scriptOutcomes.get(prerequisite))) {
+                recordRun(RunReport.Outcome.SKIPPED, 0, null);
+                Assume.assumeTrue(String.format("Test script %s depends on %s which did not pass.", node, prerequisite), false);
+            }
+        }
+        String fingerprint = null;
+        if (resultCache != null && !DRY_RUN) {
+            fingerprint = resultCache.fingerprint(testProject, testScript, getSharedProjects(testProject), getEnvironmentFingerprint());
+            if (!FORCE_RERUN && isCachedPass()) {
+                LOG.info(String.format("Test Script [%s/%s] passed before and neither its test project nor its dependencies changed since, "
+                    + "not executed (cached pass).", testProject.getName(), testScript));
+                scriptOutcomes.put(node.getId(), true);
+                recordRun(RunReport.Outcome.CACHED, 0, null);
+                return;
+            }
+        }
         File workingDirectory = prepareWorkspace(testProject, testScript);
         File testScriptPath = new File(new File(workingDirectory, testProject.getName()),testScript.getPath());
         File wrapperScript = new File(testScriptPath.getParentFile(), String.format(TEST_SCRIPT_WRAPPER_FILE_NAME_TEMPLATE,testScript.getName()));
         prepareScriptWrapper(testScriptPath, wrapperScript, workingDirectory);
+        NDC.push(String.format("%s/%s", testProject.getName(), testScript.getName()));
         LOG.info(StringUtils.repeat("#", 60));
         LOG.info(String.format("Working Directory [%s]",workingDirectory));
         LOG.info(String.format("Test Project [%s]",testProject.getName()));
         LOG.info(String.format("Test Script [%s]",testScriptPath));
         LOG.info(String.format("Wrapper Script [%s]",wrapperScript));
         LOG.info(StringUtils.repeat("#", 60));
+        ResourcePools.Allocation allocation = null;
         try {
+            allocation = acquireResources();
             TestScriptPerformer scriptPerformer = new TestScriptPerformer(wrapperScript, workingDirectory);
             scriptPerformer.setRscriptExecutable(rBinary);
             scriptPerformer.setDryRun(DRY_RUN);
-            scriptPerformer.run();
+            if (EXECUTION_MODE == ExecutionMode.WORKER_POOL && !DRY_RUN) {
+                scriptPerformer.setWorkerPool(getWorkerPool(rBinary, seeHome));
+            }
+            scriptPerformer.setTimeout(getTimeout());
+            scriptPerformer.setArtifactArchive(artifactArchive);
+            OutputAnalyzer outputAnalyzer = outputAnalysis.createAnalyzer(node.getId(), testProject.getName(), node.getTags());
+            scriptPerformer.setOutputAnalyzer(outputAnalyzer);
+            statusBoard.register(outputAnalyzer);
+            try {
+                scriptPerformer.run();
+            } catch (Exception e) {
+                scriptOutcomes.put(node.getId(), false);
+                recordResult(fingerprint, false);
+                // a test script terminated because of its output failed, it did not time out
+                boolean timedOut = isTimeout(e) && outputAnalyzer.getTerminationReason() == null;
+                recordDuration(scriptPerformer.getDuration(), timedOut ? DurationHistory.Outcome.TIMED_OUT : DurationHistory.Outcome.FAILED,
+                    scriptPerformer.getResourceUsage());
+                throw e;
+            } finally {
+                statusBoard.unregister(outputAnalyzer);
+                if (scriptPerformer.getResourceUsage() != null) {
+                    resourceUsageReport.add(String.format("%s/%s", testProject.getName(), testScript), scriptPerformer.getResourceUsage());
+                }
+            }
+            recordResult(fingerprint, true);
+            recordDuration(scriptPerformer.getDuration(), DurationHistory.Outcome.PASSED, scriptPerformer.getResourceUsage());
+            for (TestScriptGraph.Node inheritor : scriptGraph.getInheritors(node)) {
+                inheritWorkspace(workingDirectory, inheritor);
+            }
+            scriptOutcomes.put(node.getId(), true);
         } finally {
+            if (allocation != null) {
+                resourcePools.release(allocation);
+            }
             LOG.info(StringUtils.repeat("#", 60));
             LOG.info(String.format("Test Script Execution [%s] END",testScriptPath));
             LOG.info(StringUtils.repeat("#", 60));
+            NDC.remove();
+        }
+    }
+
+    /**
+     * Writes the resource usage summary of all executed test scripts.
+     */
+    @AfterClass
+    public static void writeResourceUsageReport() {
+        if (resourceUsageReport.isEmpty()) {
+            return;
+        }
+        File reportFile = new File(AT_WORKING_DIRECTORY, RESOURCE_USAGE_REPORT_FILE_NAME).getAbsoluteFile();
+        LOG.info(String.format("Resource usage of test scripts:\n%s", resourceUsageReport.toTable()));
+        try {
+            resourceUsageReport.write(reportFile);
+            LOG.info(String.format("Resource usage summary written to %s.", reportFile));
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not write resource usage summary to %s.", reportFile), e);
+        }
+    }
+
+    /**
+     * Logs how the resource pools were used, if test scripts were limited by them.
+     */
+    @AfterClass
+    public static void logResourcePoolsUsage() {
+        if (resourcePools != null) {
+            LOG.info(String.format("Resource pools usage: %s.", resourcePools.getSummary()));
+        }
+    }
+
+    /**
+     * Copies the run report to the reports history directory, from which {@link PerformanceTrend} reads it. Rounds of the watch mode
+     * are not builds, their run report is not copied.
+     */
+    @AfterClass
+    public static void archiveRunReport() {
+        if (runReport == null || DRY_RUN || watchRound != null) {
+            return;
+        }
+        String history = System.getProperty("at.report.history", "");
+        File historyDirectory = history.isEmpty() ? new File(getCacheLocation(), RUN_REPORTS_DIRECTORY_NAME) : new File(history);
+        File historyFile = new File(historyDirectory, runReport.getHistoryName());
+        try {
+            FileUtils.copyFile(runReport.getFile(), historyFile);
+            LOG.info(String.format("Run report copied to %s.", historyFile));
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not copy run report to %s.", historyFile), e);
         }
     }
 
+    /**
+     * Waits until artifacts of all executed test scripts are processed, unless the watch mode's next round follows (see {@link #endRounds()}).
+     */
+    @AfterClass
+    public static void closeArtifactArchive() throws InterruptedException {
+        if (artifactArchive != null && watchRound == null) {
+            artifactArchive.close();
+            artifactArchive = null;
+        }
+    }
+
+    /**
+     * Makes the shared projects' snapshots deletable again, unless the watch mode's next round follows (see {@link #endRounds()}).
+     */
+    @AfterClass
+    public static void closeWorkspaceProvisioner() throws IOException {
+        if (workspaceProvisioner != null && watchRound == null) {
+            workspaceProvisioner.close();
+        }
+    }
+
+    /**
+     * Stops the live status checks of test scripts.
+     */
+    @AfterClass
+    public static void closeStatusBoard() throws InterruptedException {
+        if (statusBoard != null && watchRound == null) {
+            statusBoard.close();
+            statusBoard = null;
+        }
+    }
+
+    /**
+     * Stops the fake FIS, if the fake SEE is used.
+     */
+    @AfterClass
+    public static void stopFakeSee() {
+        if (fakeSee != null && watchRound == null) {
+            fakeSee.stop();
+            fakeSee = null;
+        }
+    }
+
+    /**
+     * The R workers are started on first use and stopped when the JVM exits.
+     */
+    private static synchronized RWorkerPool getWorkerPool(File rBinary, File seeHome) throws IOException {
+        if (workerPool == null) {
+            int size = Integer.parseInt(System.getProperty("at.workers", System.getProperty(ParallelProjectsRunner.PARALLELISM_PROPERTY, "1")));
+            int maxScriptsPerWorker = Integer.parseInt(System.getProperty("at.worker.maxScripts", "20"));
+            long startupTimeout = TimeUnit.MINUTES.toMillis(Long.parseLong(System.getProperty("at.worker.startupTimeout", "10")));
+            final RWorkerPool pool = new RWorkerPool(rBinary, seeHome, new File(AT_WORKING_DIRECTORY, R_WORKERS_DIRECTORY_NAME).getAbsoluteFile(), size,
+                maxScriptsPerWorker, startupTimeout);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    pool.shutdown();
+                }
+            });
+            workerPool = pool;
+        }
+        return workerPool;
+    }
+
+    /**
+     * Test scripts of a test project share the working directory, so a test script may depend on files created by the preceding ones.
+     * Hence either all test scripts of a test project are cached passes or all of them are executed.
+     */
+    private boolean isCachedPass() throws IOException {
+        Boolean cached = cachedProjects.get(testProject);
+        if (cached == null) {
+            cached = true;
+            List<File> sharedProjects = getSharedProjects(testProject);
+            String environmentFingerprint = getEnvironmentFingerprint();
+            for (File script : projectScripts.get(testProject)) {
+                if (!resultCache.hasPassed(testProject, script, resultCache.fingerprint(testProject, script, sharedProjects, environmentFingerprint))) {
+                    cached = false;
+                    break;
+                }
+            }
+            cachedProjects.put(testProject, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Waits until the resource slots demanded by the test script's tags are free, see {@link ResourcePools}. Test scripts executed
+     * concurrently are admitted by {@link ParallelProjectsRunner} before they are started, they already hold their slots.
+     * @return the taken slots, null if test scripts are not limited by resource pools or the slots are held for the test script by the runner
+     */
+    private ResourcePools.Allocation acquireResources() throws InterruptedException {
+        if (resourcePools == null || DRY_RUN) {
+            return null;
+        }
+        ResourcePools.Allocation held = resourcePools.getHeld(node.getId());
+        if (held != null) {
+            // released by the runner once the test script completes
+            queueWait = held.getWaitTime();
+            return null;
+        }
+        ResourcePools.Allocation allocation = resourcePools.acquire(node.getId(), TestScriptMetadata.splitTagNames(node.getTags()));
+        queueWait = allocation.getWaitTime();
+        return allocation;
+    }
+
+    /**
+     * @return the test script's timeout, derived from the durations history if adaptive timeouts are enabled
+     */
+    private long getTimeout() {
+        long max = TestScriptPerformer.PROCESS_TIMEOUT;
+        if (!Boolean.parseBoolean(System.getProperty("at.timeout.adaptive", "false"))) {
+            return max;
+        }
+        long timeout = durationHistory.timeout(testProject, testScript, Integer.parseInt(System.getProperty("at.timeout.percentile", "95")),
+            Double.parseDouble(System.getProperty("at.timeout.factor", "3")), Integer.parseInt(System.getProperty("at.timeout.minSamples", "3")),
+            TimeUnit.MINUTES.toMillis(Long.parseLong(System.getProperty("at.timeout.min", "10"))), max);
+        if (timeout < max) {
+            LOG.info(String.format("Timeout derived from durations history is %s s.", TimeUnit.MILLISECONDS.toSeconds(timeout)));
+        }
+        return timeout;
+    }
+
+    private static boolean isTimeout(Exception e) {
+        for (Throwable cause : Throwables.getCausalChain(e)) {
+            if (cause instanceof ProcessSupervisor.ProcessTerminatedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordDuration(long duration, DurationHistory.Outcome outcome, ResourceSampler.Usage usage) {
+        if (DRY_RUN) {
+            return;
+        }
+        try {
+            durationHistory.record(testProject, testScript, duration, outcome);
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not save durations history %s.", durationHistory.getHistoryFile()), e);
+        }
+        try {
+            timingsReport.record(shard, testProject, testScript, outcome, duration);
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not write timings report %s.", timingsReport.getFile()), e);
+        }
+        recordRun(RunReport.Outcome.of(outcome), duration, usage);
+    }
+
+    private void recordRun(RunReport.Outcome outcome, long duration, ResourceSampler.Usage usage) {
+        if (DRY_RUN) {
+            return;
+        }
+        try {
+            runReport.record(testProject, testScript, node.getTags(), outcome, duration, queueWait, usage);
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not write run report %s.", runReport.getFile()), e);
+        }
+    }
+
+    private void recordResult(String fingerprint, boolean passed) {
+        if (fingerprint == null) {
+            return;
+        }
+        try {
+            resultCache.record(testProject, testScript, fingerprint, passed);
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not save results cache %s.", resultCache.getCacheFile()), e);
+        }
+    }
+
+    /**
+     * @return fingerprint of everything, apart from test projects, a test script's result depends on
+     */
+    private String getEnvironmentFingerprint() throws IOException {
+        File seeVersionFile = new File(seeHome, SEE_VERSION_FILE);
+        String seeVersion = seeVersionFile.exists() ? FileUtils.readFileToString(seeVersionFile) : "";
+        return ResultCache.fingerprint(seeVersion, readScriptWrapperTemplate(), TEST_SCRIPT_MODE.name());
+    }
+
     private File prepareWorkspace(File testProject, File testScript) throws IOException {
-        File testWorkingDirectory = generateWorkingDirectoryPath(testProject, testScript);
+        File testWorkingDirectory = generateWorkingDirectoryPath(testProject, node);
         if(testWorkingDirectory.exists()) {
-            // skip, previous test created the directory structure
+            // skip, previous test created the directory structure (or the test script it depends on copied its own)
             return testWorkingDirectory;
         }
+        if (node.getWorkspaceSource() != null) {
+            LOG.warn(String.format("Working directory of %s was not copied for test script %s, a fresh one is used.", node.getWorkspaceSource(), node));
+        }
         testWorkingDirectory.mkdirs();
+        for(File project : listWorkspaceProjects(testProject)) {
+            workspaceProvisioner.provision(project, testWorkingDirectory, !project.equals(testProject));
+        }
+        return testWorkingDirectory;
+    }
+
+    /**
+     * Creates the working directory of a test script depending on this one from the test project's state after this test script has passed.
+     * The test project is copied without the test script wrappers' artifacts, the shared projects are provisioned afresh.
+     */
+    private void inheritWorkspace(File workingDirectory, TestScriptGraph.Node inheritor) throws IOException {
+        File inheritorWorkingDirectory = generateWorkingDirectoryPath(testProject, inheritor);
+        LOG.info(String.format("Copying working directory for test script %s to [%s].", inheritor, inheritorWorkingDirectory));
+        FileUtils.deleteDirectory(inheritorWorkingDirectory);
+        FileUtils.copyDirectory(new File(workingDirectory, testProject.getName()), new File(inheritorWorkingDirectory, testProject.getName()),
+            FileFilterUtils.notFileFilter(new RegexFileFilter(WRAPPER_ARTIFACTS_PATTERN)));
+        for (File project : getSharedProjects(testProject)) {
+            workspaceProvisioner.provision(project, inheritorWorkingDirectory, true);
+        }
+    }
+
+    private List<File> getSharedProjects(File testProject) {
+        List<File> result = Lists.newArrayList();
+        for(File project : listWorkspaceProjects(testProject)) {
+            if(!project.equals(testProject)) {
+                result.add(project);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the test project and the shared test projects
+     */
+    private File[] listWorkspaceProjects(File testProject) {
         File[] projectsToCopy = testProject.getParentFile().listFiles((FileFilter)
             FileFilterUtils.and(FileFilterUtils.directoryFileFilter(), 
                 FileFilterUtils.or(FileFilterUtils.nameFileFilter(testProject.getName()), new IOFileFilter()  {
@@ -263,31 +845,41 @@ public class ExecuteTestProjectAT {
             
             @Override
             public boolean accept(File file) {
-                if(file.isDirectory()) {
-                    return new File(file,COMMON_PROJECT_MARKER_FILE).exists();
-                }
-                return false;
+                return isSharedProject(file);
             }
         })));
-        for(File project : projectsToCopy) {
-            FileUtils.copyDirectory(project, new File(testWorkingDirectory, project.getName()));
-        }
-        return testWorkingDirectory;
+        return projectsToCopy;
+    }
+
+    static boolean isSharedProject(File project) {
+        return project.isDirectory() && new File(project, COMMON_PROJECT_MARKER_FILE).exists();
     }
 
-    private File generateWorkingDirectoryPath(File testProject, File testScript) {
+    /**
+     * @return the test project's working directory or the test script's own working directory if the test script is detached
+     */
+    private File generateWorkingDirectoryPath(File testProject, TestScriptGraph.Node node) {
         String name = testProject.getName();
+        if (node.isDetached()) {
+            name = String.format(DETACHED_WORKING_DIRECTORY_NAME_TEMPLATE, name, node.getScript().replace('/', '_'));
+        }
         return new File(atWorkingDirectoryParent, name);
     }
 
-    private void prepareScriptWrapper(File scriptPath, File scriptWrapper, File workingDirectory) throws IOException {
-        String template = FileUtils.readFileToString(FileUtils.toFile(ExecuteTestProjectAT.class.getResource(TEST_SCRIPT_WRAPPER_TEMPLATE)));
+    void prepareScriptWrapper(File scriptPath, File scriptWrapper, File workingDirectory) throws IOException {
+        // without an archive (setUp() not called) the R image is always saved and compressed by R, as before the archive existed
+        String saveImageCondition = artifactArchive == null ? ArtifactArchive.Retention.ALWAYS.getSaveImageCondition()
+            : artifactArchive.getRetention().getSaveImageCondition();
+        boolean compressImage = artifactArchive == null || !artifactArchive.isCompressing();
+        String template = readScriptWrapperTemplate();
         template = template
                             .replaceAll("<MDLIDE_WORKSPACE_PATH>",toRPath(workingDirectory))
                             .replaceAll("<SEE_HOME>",toRPath(seeHome))
                             .replaceAll("<TEST_SCRIPT>",generateTestScript(scriptPath))
                             .replaceAll("<PID_FILE>", String.format("%s/%s", toRPath(scriptWrapper.getParentFile()), metaFileName(scriptWrapper.getName(), TestScriptPerformer.PID_FILE_EXT)))
-                            .replaceAll("<R_DATA_FILE>", String.format("%s/%s", toRPath(scriptWrapper.getParentFile()), metaFileName(scriptWrapper.getName(), RDATA_FILE_EXT)))
+                            .replaceAll("<R_DATA_FILE>", String.format("%s/%s", toRPath(scriptWrapper.getParentFile()), metaFileName(scriptWrapper.getName(), TestScriptPerformer.RDATA_FILE_EXT)))
+                            .replaceAll("<SAVE_R_DATA>", saveImageCondition)
+                            .replaceAll("<COMPRESS_R_DATA>", compressImage ? "TRUE" : "FALSE")
                             .replaceAll("<BUILD_ID>", buildId)
                             .replaceAll("<PROJECT_NAME>", testProject.getName())
                             .replaceAll("<SCRIPT_NAME>", testScript.getName())
@@ -296,6 +888,11 @@ public class ExecuteTestProjectAT {
         FileUtils.writeStringToFile(scriptWrapper, template);
     }
 
+    private static String readScriptWrapperTemplate() throws IOException {
+        String templateResource = EXECUTION_MODE == ExecutionMode.WORKER_POOL ? TEST_SCRIPT_WORKER_WRAPPER_TEMPLATE : TEST_SCRIPT_WRAPPER_TEMPLATE;
+        return FileUtils.readFileToString(FileUtils.toFile(ExecuteTestProjectAT.class.getResource(templateResource)));
+    }
+
     private static String metaFileName(String baseName, String postfix) {
         return baseName + "." + postfix;
     }
@@ -316,66 +913,4 @@ public class ExecuteTestProjectAT {
     private String toRPath(File path) {
         return path.getAbsolutePath().replaceAll("\\\\", "/");
     }
-    
-    /**
-     * A File visitor that is used to identify R test scripts.
-     */
-    private static class TestScriptFinder extends SimpleFileVisitor<Path> {
-        private final PathMatcher matcher;
-        private final Pattern includeMatcher;
-        private final Pattern excludeMatcher;
-        private final Set<Path> scripts = new HashSet<>();
-        TestScriptFinder(String pattern, String tagsInclusionPattern, String tagsExclusionPattern) {
-            matcher = FileSystems.getDefault().getPathMatcher(pattern);
-            includeMatcher = Pattern.compile(tagsInclusionPattern);
-            excludeMatcher = Pattern.compile(tagsExclusionPattern);
-        }
-
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-            if (matcher.matches(file.getFileName())) {
-                String tags = extractTag(file.toFile(), "Tags");
-                LOG.debug(String.format("Test Script's %s tags are:.", file.getFileName(), tags));
-                if(StringUtils.isBlank(tags)||(includeMatcher.matcher(tags).matches()&&!excludeMatcher.matcher(tags).matches())) {
-                    LOG.debug(String.format("Found test script %s.", file.getFileName()));
-                    scripts.add(file);
-                } else {
-                    LOG.trace(String.format("Path %s was explicitly ignored by include/exclude mechanism.", file.getFileName(), matcher));
-                }
-            } else {
-                LOG.trace(String.format("Path %s didn't match %s", file.getFileName(), matcher));
-            }
-            return CONTINUE;
-        }
-
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-            return CONTINUE;
-        }
-
-        @Override
-        public FileVisitResult visitFileFailed(Path file, IOException exc) {
-            throw new RuntimeException(String.format("Failed to visit file %s.", file), exc);
-        }
-        
-        public Set<Path> getScripts() {
-            return scripts;
-        }
-    }
-
-    private static String extractTag(File file, String tag) {
-        Pattern p = Pattern.compile("\\s*#+\\s*"+tag+":\\s*(.+)");
-            try {
-                List<String> lines = FileUtils.readLines(file);
-                for(String line : lines) {
-                    Matcher m = p.matcher(line);
-                    if(m.matches()) {
-                        return m.group(1).trim();
-                    }
-                }
-            } catch (IOException e) {
-                throw new IllegalStateException(String.format("Could not read test script %s.",file), e);
-            }
-        return "";
-    }
 }
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for FIS (Framework Integration Service) to exercise the test harness without SEE and the third party tools.
+ * <p>
+ * The server
+ * <ul>
+ *   <li>writes FIS startup trace file (if set) once it has started, as FIS does</li>
+ *   <li>stops when a request is sent to /shutdown (see 'see.fis.url.shutdown')</li>
+ *   <li>responds to requests to any other path with a JSON status after the configured latency, failing the configured fraction of them
+ *   with HTTP 500</li>
+ * </ul>
+ * Instances are thread-safe.
+ */
+class FakeFisServer {
+    private static final Logger LOG = Logger.getLogger(FakeFisServer.class);
+    static final String SHUTDOWN_PATH = "/shutdown";
+    private static final int THREADS = 16;
+    private final int port;
+    private final long latency;
+    private final double failureRate;
+    private final Random random;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param port - the port, 0 for any free port
+     * @param latency - mean time (in milliseconds) the server takes to respond, actual latencies vary between half and one and a half of it
+     * @param failureRate - fraction (0 to 1) of requests which fail
+     * @param seed - seed of the random latencies and failures
+     */
+    FakeFisServer(int port, long latency, double failureRate, long seed) {
+        Preconditions.checkArgument(failureRate >= 0 && failureRate <= 1, "Failure rate must be between 0 and 1.");
+        this.port = port;
+        this.latency = latency;
+        this.failureRate = failureRate;
+        this.random = new Random(seed);
+    }
+
+    static FakeFisServer fromSystemProperties() {
+        return new FakeFisServer(Integer.parseInt(System.getProperty("at.fake.fis.port", "0")),
+            Long.parseLong(System.getProperty("at.fake.fis.latency", "50")),
+            Double.parseDouble(System.getProperty("at.fake.fis.failureRate", "0")),
+            Long.parseLong(System.getProperty("at.fake.seed", "0")));
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param traceFile - FIS trace file written once the server has started, may be null
+     */
+    synchronized void start(File traceFile) throws IOException {
+        Preconditions.checkState(server == null, "The server has already been started.");
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(executor);
+        server.createContext(SHUTDOWN_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "{\"status\":\"SHUTTING_DOWN\"}");
+                new Thread("fake-fis-shutdown") {
+                    @Override
+                    public void run() {
+                        FakeFisServer.this.stop();
+                    }
+                }.start();
+            }
+        });
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        server.start();
+        if (traceFile != null) {
+            FileUtils.writeStringToFile(traceFile, String.format("Fake FIS started on port %s\n", getPort()), StandardCharsets.UTF_8.name());
+        }
+        LOG.info(String.format("Fake FIS started at %s (latency %s ms, failure rate %s).", getUrl(), latency, failureRate));
+    }
+
+    /**
+     * Stops the server, waiting for requests being processed to complete.
+     */
+    synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        executor.shutdown();
+        server = null;
+        LOG.info(String.format("Fake FIS stopped, it served %s requests (%s failed).", requests.get(), failures.get()));
+        notifyAll();
+    }
+
+    /**
+     * Waits until the server is stopped (e.g. by a request to /shutdown).
+     */
+    synchronized void awaitStop() throws InterruptedException {
+        while (server != null) {
+            wait();
+        }
+    }
+
+    synchronized int getPort() {
+        Preconditions.checkState(server != null, "The server is not running.");
+        return server.getAddress().getPort();
+    }
+
+    URL getUrl() throws IOException {
+        return new URL(String.format("http://localhost:%s/", getPort()));
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        // the request body is consumed, as a real service would
+        try (InputStream is = exchange.getRequestBody()) {
+            IOUtils.copy(is, NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+        long delay;
+        boolean fail;
+        synchronized (random) {
+            delay = latency > 0 ? latency / 2 + (long) (random.nextDouble() * latency) : 0;
+            fail = random.nextDouble() < failureRate;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (fail) {
+            failures.incrementAndGet();
+            respond(exchange, 500, "{\"status\":\"FAILED\",\"message\":\"Injected failure\"}");
+        } else {
+            respond(exchange, 200, String.format("{\"status\":\"OK\",\"path\":\"%s\"}", exchange.getRequestURI().getPath()));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Runs the server until it is shut down by a request to /shutdown, configured by 'at.fake.*' system properties.
+     * <p>
+     * Usage: FakeFisServer [FIS trace file]
+     */
+    public static void main(String[] args) throws Exception {
+        FakeFisServer server = fromSystemProperties();
+        long startupDelay = Long.parseLong(System.getProperty("at.fake.fis.startupDelay", "0"));
+        // imitates time FIS takes to start up
+        TimeUnit.MILLISECONDS.sleep(startupDelay);
+        server.start(args.length > 0 ? new File(args[0]) : null);
+        server.awaitStop();
+    }
+}
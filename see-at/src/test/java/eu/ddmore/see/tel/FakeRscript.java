@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A stand-in for Rscript executable to load test the test harness without R and SEE.
+ * <p>
+ * Instead of executing a test script wrapper it imitates one: writes the PID file and the R workspace image file referenced by the wrapper,
+ * produces NONMEM-like output at the configured rate, sends requests to (fake) FIS and fails with the configured probability.
+ * The run time and the failures are random, but deterministic for a test script and the seed. When given the R worker script it
+ * implements the R worker protocol (see RWorker.R).
+ * <p>
+ * Configured by 'at.fake.*' system properties, see test.properties.
+ * <p>
+ * Usage: FakeRscript &lt;wrapper script&gt; or FakeRscript &lt;RWorker.R&gt; &lt;SEE home&gt; &lt;marker&gt;
+ */
+class FakeRscript {
+    private static final Pattern WRAPPER_VALUE = Pattern.compile("[\"']([^\"']*)[\"']");
+    private static final String WORKER_SCRIPT = "RWorker.R";
+    private static final String RUN_COMMAND = "RUN";
+    private static final String EXIT_COMMAND = "EXIT";
+    private static final int FAILURE_RESULT = 100;
+    private static final long TICK = 100;
+    private static final int IMAGE_LINE_LENGTH = 20;
+    private final long duration;
+    private final int outputRate;
+    private final double failureRate;
+    private final int fisRequests;
+    private final String fisUrl;
+    private final long imageSize;
+    private final long hangOnFailure;
+    private final long seed;
+
+    /**
+     * @param duration - mean run time (in milliseconds) of a test script, actual run times vary between half and one and a half of it
+     * @param outputRate - number of output lines per second
+     * @param failureRate - fraction (0 to 1) of test scripts which fail
+     * @param fisRequests - number of requests each test script sends to FIS
+     * @param fisUrl - URL of FIS, requests are not sent if empty
+     * @param imageSize - size (in bytes) of R workspace image saved by each test script
+     * @param hangOnFailure - time (in milliseconds) a failing test script keeps running silently after reporting the error, imitating
+     * a connector that never returns
+     * @param seed - seed of the random run times and failures
+     */
+    FakeRscript(long duration, int outputRate, double failureRate, int fisRequests, String fisUrl, long imageSize, long hangOnFailure, long seed) {
+        this.duration = duration;
+        this.outputRate = outputRate;
+        this.failureRate = failureRate;
+        this.fisRequests = fisRequests;
+        this.fisUrl = fisUrl;
+        this.imageSize = imageSize;
+        this.hangOnFailure = hangOnFailure;
+        this.seed = seed;
+    }
+
+    static FakeRscript fromSystemProperties() {
+        return new FakeRscript(TimeUnit.MILLISECONDS.convert(Long.parseLong(System.getProperty("at.fake.rscript.duration", "5")), TimeUnit.SECONDS),
+            Integer.parseInt(System.getProperty("at.fake.rscript.outputRate", "200")),
+            Double.parseDouble(System.getProperty("at.fake.rscript.failureRate", "0")),
+            Integer.parseInt(System.getProperty("at.fake.rscript.fisRequests", "2")),
+            System.getProperty("at.fake.fis.url", ""),
+            Long.parseLong(System.getProperty("at.fake.rscript.imageSize", "1024")) * FileUtils.ONE_KB,
+            TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("at.fake.rscript.hangOnFailure", "0"))),
+            Long.parseLong(System.getProperty("at.fake.seed", "0")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        FakeRscript rscript = fromSystemProperties();
+        if (args.length == 3 && new File(args[0]).getName().equals(WORKER_SCRIPT)) {
+            long startup = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("at.fake.rscript.workerStartup", "2")));
+            rscript.work(args[2], startup);
+            System.exit(0);
+        }
+        if (args.length != 1) {
+            System.err.println("Usage: FakeRscript <wrapper script> | FakeRscript RWorker.R <SEE home> <marker>");
+            System.exit(1);
+        }
+        System.exit(rscript.execute(new File(args[0]), System.out, System.err));
+    }
+
+    /**
+     * Imitates execution of the wrapper script.
+     *
+     * @return the wrapper's result, 0 indicating success
+     */
+    int execute(File wrapper, PrintStream out, PrintStream err) throws IOException, InterruptedException {
+        String pidFile = null;
+        String projectName = null;
+        String scriptName = null;
+        String rDataFile = null;
+        String saveImageCondition = null;
+        for (String line : FileUtils.readLines(wrapper, Charset.defaultCharset().name())) {
+            if (line.startsWith("cat(Sys.getpid()")) {
+                pidFile = value(line);
+            } else if (line.startsWith(".PROJECT_NAME<-")) {
+                projectName = value(line);
+            } else if (line.startsWith(".SCRIPT_NAME<-")) {
+                scriptName = value(line);
+            } else if (line.contains("save.image(")) {
+                rDataFile = value(StringUtils.substringAfter(line, "save.image("));
+                saveImageCondition = StringUtils.defaultString(StringUtils.substringBetween(line, "if (", ") save.image("), "TRUE");
+            }
+        }
+        if (pidFile != null) {
+            FileUtils.writeStringToFile(new File(pidFile), getPid(), Charset.defaultCharset().name());
+        }
+        Random random = new Random(seed * 31 + (projectName + "/" + scriptName).hashCode());
+        long runTime = duration / 2 + (long) (random.nextDouble() * duration);
+        boolean fail = random.nextDouble() < failureRate;
+        out.println(String.format("Fake Rscript executing %s/%s for %s ms.", projectName, scriptName, runTime));
+        int result = simulate(runTime, fail, random, out, err);
+        // the condition depends on the artifacts retention policy, see ArtifactArchive.Retention
+        if (rDataFile != null && (saveImageCondition.equals("TRUE") || (saveImageCondition.contains(".seeAtPassed") && result != 0))) {
+            writeImage(new File(rDataFile), random);
+        }
+        out.flush();
+        err.flush();
+        return result;
+    }
+
+    private int simulate(long runTime, boolean fail, Random random, PrintStream out, PrintStream err) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long nextRequest = fisRequests > 0 ? runTime / (fisRequests + 1) : Long.MAX_VALUE;
+        int requestsSent = 0;
+        int iteration = 0;
+        double objective = 10000 * (1 + random.nextDouble());
+        double lines = 0;
+        long elapsed;
+        while ((elapsed = System.currentTimeMillis() - start) < runTime) {
+            // output is produced in bursts, as NONMEM does
+            for (lines += outputRate * TICK / 1000.0; lines >= 1; lines--) {
+                iteration++;
+                objective -= objective * random.nextDouble() / 1000;
+                out.println(String.format(" ITERATION NO.: %8d    OBJECTIVE VALUE: %14.4f    NO. OF FUNC. EVALS.: %5d", iteration, objective,
+                    iteration * 7));
+                if (iteration % 500 == 0) {
+                    err.println(String.format("Warning message: In estimate(model): %s iterations without convergence", iteration));
+                }
+            }
+            out.flush();
+            if (requestsSent < fisRequests && elapsed >= nextRequest * (requestsSent + 1)) {
+                requestsSent++;
+                String error = sendFisRequest(requestsSent);
+                if (error != null) {
+                    err.println(String.format("Error in submitJob(): %s", error));
+                    return hang(err);
+                }
+            }
+            Thread.sleep(Math.max(1, Math.min(TICK, runTime - elapsed)));
+        }
+        if (fail) {
+            err.println("Error in estimate(model) : injected failure of fake Rscript");
+            return hang(err);
+        }
+        out.println(String.format("Estimation completed after %s iterations, objective value %.4f.", iteration, objective));
+        return 0;
+    }
+
+    private int hang(PrintStream err) throws InterruptedException {
+        err.flush();
+        Thread.sleep(hangOnFailure);
+        return FAILURE_RESULT;
+    }
+
+    /**
+     * Writes an uncompressed image of the configured size, its content compresses about as well as a real R workspace image does
+     */
+    private void writeImage(File file, Random random) throws IOException {
+        try (PrintStream os = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)), false, Charset.defaultCharset().name())) {
+            for (long written = 0; written < imageSize; written += IMAGE_LINE_LENGTH) {
+                os.print(String.format("%" + (IMAGE_LINE_LENGTH - 1) + ".12f\n", random.nextGaussian()));
+            }
+        }
+    }
+
+    /**
+     * @return error message or null if the request succeeded
+     */
+    private String sendFisRequest(int number) {
+        if (fisUrl.isEmpty()) {
+            return null;
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(new URL(fisUrl), "jobs").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(String.format("{\"request\":%s}", number).getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            return status < 300 ? null : String.format("FIS responded with HTTP %s", status);
+        } catch (IOException e) {
+            return String.format("could not connect to FIS at %s (%s)", fisUrl, e.getMessage());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Implements the R worker protocol
+     */
+    private void work(String marker, long startup) throws IOException, InterruptedException {
+        // imitates SEE R console initialisation
+        Thread.sleep(startup);
+        signal(marker, "READY");
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in, Charset.defaultCharset()));
+        String command;
+        while ((command = input.readLine()) != null && !command.equals(EXIT_COMMAND)) {
+            String[] fields = command.split("\t");
+            int result = RUN_COMMAND.equals(fields[0]) && fields.length == 2 ? execute(new File(fields[1]), System.out, System.err) : FAILURE_RESULT;
+            signal(marker, String.valueOf(result));
+        }
+    }
+
+    private static void signal(String marker, String status) {
+        String line = String.format("\n%s\t%s\n", marker, status);
+        System.out.print(line);
+        System.out.flush();
+        System.err.print(line);
+        System.err.flush();
+    }
+
+    /**
+     * @return value of the string literal in the wrapper script's line
+     */
+    private static String value(String line) {
+        Matcher matcher = WRAPPER_VALUE.matcher(line);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static String getPid() {
+        // the name is <PID>@<host name>
+        return StringUtils.substringBefore(ManagementFactory.getRuntimeMXBean().getName(), "@");
+    }
+}
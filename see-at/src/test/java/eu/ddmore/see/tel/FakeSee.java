@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A fake SEE installation, used to load test the test harness locally (enabled by 'at.fake' property).
+ * <p>
+ * Test scripts are not executed by R but by {@link FakeRscript} which imitates their output and run times, and FIS is replaced by
+ * {@link FakeFisServer} running in the test harness JVM. Configured by 'at.fake.*' system properties, see test.properties.
+ */
+class FakeSee {
+    private static final Logger LOG = Logger.getLogger(FakeSee.class);
+    static final String ENABLED_PROPERTY = "at.fake";
+    private static final String PROPERTIES_PREFIX = "at.fake.";
+    private static final String FIS_URL_PROPERTY = "at.fake.fis.url";
+    private static final String FIS_TRACE_FILE = "fis/fis.trace";
+    private static final String CACHE_DIRECTORY_NAME = "cache";
+    private final File home;
+    private final FakeFisServer fis;
+
+    private FakeSee(File home, FakeFisServer fis) {
+        this.home = home;
+        this.fis = fis;
+    }
+
+    /**
+     * Creates the fake SEE installation in the given directory, starts the fake FIS and points 'see.home' and 'see.RScript' to it.
+     * 'cache.path' is pointed to a cache next to the fake SEE and 'at.report.history' is cleared, so that the imitated run times do
+     * not get into the durations history and run reports of real runs (which drive e.g. the adaptive timeouts).
+     */
+    static FakeSee create(File home) throws IOException {
+        Preconditions.checkState(home.exists() || home.mkdirs(), String.format("Could not create directory %s.", home));
+        FakeFisServer fis = null;
+        if (Integer.parseInt(System.getProperty("at.fake.fis.port", "0")) >= 0) {
+            fis = FakeFisServer.fromSystemProperties();
+            fis.start(new File(home, FIS_TRACE_FILE));
+            System.setProperty(FIS_URL_PROPERTY, fis.getUrl().toString());
+        }
+        FileUtils.writeStringToFile(new File(home, "README.txt"), "Fake SEE used to load test the test harness.\n", Charset.defaultCharset().name());
+        File rscript = writeRscriptLauncher(home);
+        System.setProperty("see.home", home.getAbsolutePath());
+        System.setProperty("see.RScript", home.toPath().relativize(rscript.toPath()).toString());
+        File cache = new File(home.getAbsoluteFile().getParentFile(), CACHE_DIRECTORY_NAME);
+        System.setProperty("cache.path", cache.getAbsolutePath());
+        System.setProperty("at.report.history", "");
+        LOG.info(String.format("Using fake SEE %s, test scripts will be executed by %s, caches are kept in %s.", home,
+            FakeRscript.class.getSimpleName(), cache));
+        return new FakeSee(home, fis);
+    }
+
+    /**
+     * @return launcher script of {@link FakeRscript} which runs it in a new JVM with the test harness' class path and 'at.fake.*' properties
+     */
+    private static File writeRscriptLauncher(File home) throws IOException {
+        List<String> command = Lists.newArrayList(quote(new File(SystemUtils.JAVA_HOME, "bin/java").getAbsolutePath()), "-Xmx64m",
+            "-cp", quote(System.getProperty("java.class.path")));
+        for (Entry<Object, Object> property : System.getProperties().entrySet()) {
+            String key = (String) property.getKey();
+            if (key.startsWith(PROPERTIES_PREFIX)) {
+                command.add(quote(String.format("-D%s=%s", key, property.getValue())));
+            }
+        }
+        command.add(FakeRscript.class.getName());
+        File launcher;
+        String script;
+        if (SystemUtils.IS_OS_WINDOWS) {
+            launcher = new File(home, "R/bin/Rscript.bat");
+            script = String.format("@echo off\r\n%s %%*\r\n", Joiner.on(' ').join(command));
+        } else {
+            launcher = new File(home, "R/bin/Rscript");
+            script = String.format("#!/bin/sh\nexec %s \"$@\"\n", Joiner.on(' ').join(command));
+        }
+        FileUtils.writeStringToFile(launcher, script, Charset.defaultCharset().name());
+        Preconditions.checkState(launcher.setExecutable(true), String.format("Could not make %s executable.", launcher));
+        return launcher;
+    }
+
+    private static String quote(String argument) {
+        return "\"" + argument + "\"";
+    }
+
+    File getHome() {
+        return home;
+    }
+
+    /**
+     * Stops the fake FIS, logging the number of requests it served.
+     */
+    void stop() {
+        if (fis == null) {
+            return;
+        }
+        fis.stop();
+        LOG.info(String.format("Fake FIS served %s requests, %s of them failed.", fis.getRequests(), fis.getFailures()));
+    }
+}
@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Analyses a test script's standard output and error line by line while the test script runs, according to {@link Rule}s:
+ * <ul>
+ *   <li>a {@link RuleType#FATAL} rule matching a line (e.g. NONMEM licence error) terminates the test script, optionally only if it is still
+ *   running after the rule's delay (e.g. R error followed by a connector that never returns)</li>
+ *   <li>a {@link RuleType#PROGRESS} rule matching a line (e.g. NONMEM iteration) updates the test script's progress</li>
+ * </ul>
+ * A test script that has not written any output for the stall timeout is reported as stalled (and terminated if configured so).
+ * The stall checks and delayed terminations are performed by {@link ScriptStatusBoard} the analyzer is registered with.
+ * <p>
+ * Instances are thread-safe, the streams are written to by the output pumps.
+ */
+class OutputAnalyzer {
+    private static final Logger LOG = Logger.getLogger(OutputAnalyzer.class);
+    private static final String DEFAULT_RULES_RESOURCE = "/output-rules.properties";
+    /** Longer lines are matched by their beginning only */
+    private static final int MAX_LINE_LENGTH = 4096;
+    private final String name;
+    private final List<Rule> rules;
+    private final Config config;
+    private final long started = System.currentTimeMillis();
+    private ProcessSupervisor supervisor;
+    private volatile long lastOutput = started;
+    private volatile String progress;
+    private volatile boolean stalled;
+    private String fatalReason;
+    private long fatalDeadline;
+    private boolean terminated;
+
+    enum RuleType {
+        /**
+         * the test script is terminated
+         */
+        FATAL,
+        /**
+         * the test script's progress is updated with the first group of the match or with the whole line
+         */
+        PROGRESS
+    }
+
+    /**
+     * @param name - name of the test script
+     * @param rules - rules applicable to the test script
+     * @param config - stall detection configuration
+     */
+    OutputAnalyzer(String name, List<Rule> rules, Config config) {
+        this.name = name;
+        this.rules = rules;
+        this.config = config;
+    }
+
+    /**
+     * @param supervisor - supervisor of the test script's process, termination of which is requested if a fatal rule matches
+     */
+    synchronized void setSupervisor(ProcessSupervisor supervisor) {
+        this.supervisor = supervisor;
+        if (terminated) {
+            supervisor.requestTermination(fatalReason);
+        }
+    }
+
+    /**
+     * @return a stream to which the output is copied
+     */
+    OutputStream createStream() {
+        return new LineStream();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the reason for termination of the test script or null if it should not be terminated
+     */
+    synchronized String getTerminationReason() {
+        return terminated ? fatalReason : null;
+    }
+
+    /**
+     * @return the last progress reported by the test script or null if none was reported
+     */
+    String getProgress() {
+        return progress;
+    }
+
+    boolean isStalled() {
+        return stalled;
+    }
+
+    long getStarted() {
+        return started;
+    }
+
+    long getLastOutput() {
+        return lastOutput;
+    }
+
+    void analyze(String line) {
+        lastOutput = System.currentTimeMillis();
+        if (stalled) {
+            stalled = false;
+            LOG.info(String.format("Test script %s is producing output again.", name));
+        }
+        for (Rule rule : rules) {
+            Matcher m = rule.pattern.matcher(line);
+            if (!m.find()) {
+                continue;
+            }
+            if (rule.type == RuleType.FATAL) {
+                fatal(String.format("output matched fatal rule '%s' [%s]", rule.name, line.trim()), rule.delay);
+            } else {
+                progress = m.groupCount() > 0 && m.group(1) != null ? m.group(1).trim() : line.trim();
+            }
+        }
+    }
+
+    private synchronized void fatal(String reason, long delay) {
+        if (fatalReason != null) {
+            return;
+        }
+        fatalReason = reason;
+        fatalDeadline = System.currentTimeMillis() + delay;
+        if (delay > 0) {
+            LOG.warn(String.format("Test script %s %s, it is terminated unless it completes within %s s.", name, reason,
+                TimeUnit.MILLISECONDS.toSeconds(delay)));
+        } else {
+            terminate();
+        }
+    }
+
+    private synchronized void terminate() {
+        if (terminated) {
+            return;
+        }
+        terminated = true;
+        LOG.error(String.format("Test script %s is terminated: %s.", name, fatalReason));
+        if (supervisor != null) {
+            supervisor.requestTermination(fatalReason);
+        }
+    }
+
+    /**
+     * Performs delayed terminations and stall checks, called periodically by {@link ScriptStatusBoard}.
+     */
+    void check(long now) {
+        synchronized (this) {
+            if (fatalReason != null && !terminated && now >= fatalDeadline) {
+                terminate();
+            }
+        }
+        long silence = now - lastOutput;
+        if (config.stallTimeout > 0 && !stalled && silence >= config.stallTimeout) {
+            stalled = true;
+            LOG.warn(String.format("Test script %s has stalled, it has not written any output for %s s.", name, TimeUnit.MILLISECONDS.toSeconds(silence)));
+            if (config.stallTerminate) {
+                fatal(String.format("no output for %s s", TimeUnit.MILLISECONDS.toSeconds(silence)), 0);
+            }
+        }
+    }
+
+    /**
+     * Splits the output into lines, lines are decoded with the platform's default charset as the test scripts write them so
+     */
+    private class LineStream extends OutputStream {
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    append(b, start, i - start);
+                    flushLine();
+                    start = i + 1;
+                }
+            }
+            append(b, start, off + len - start);
+            if (len > 0) {
+                lastOutput = System.currentTimeMillis();
+            }
+        }
+
+        private void append(byte[] b, int off, int len) {
+            line.write(b, off, Math.max(0, Math.min(len, MAX_LINE_LENGTH - line.size())));
+        }
+
+        private void flushLine() {
+            analyze(new String(line.toByteArray(), Charset.defaultCharset()));
+            line.reset();
+        }
+
+        @Override
+        public void close() {
+            if (line.size() > 0) {
+                flushLine();
+            }
+        }
+    }
+
+    /**
+     * An output analysis rule, rules are defined in properties files with the following properties (see output-rules.properties)
+     * <ul>
+     *   <li>&lt;name&gt;.type - {@link RuleType}</li>
+     *   <li>&lt;name&gt;.pattern - regular expression found in an output line, an empty pattern disables the rule</li>
+     *   <li>&lt;name&gt;.projects - regular expression matching names of test projects the rule applies to (all by default)</li>
+     *   <li>&lt;name&gt;.tags - regular expression matching tags of test scripts the rule applies to (all by default)</li>
+     *   <li>&lt;name&gt;.delay - time (in seconds) a test script can still run after a fatal rule matched (0 by default)</li>
+     * </ul>
+     */
+    static class Rule {
+        private final String name;
+        private final RuleType type;
+        private final Pattern pattern;
+        private final Pattern projects;
+        private final Pattern tags;
+        private final long delay;
+
+        Rule(String name, RuleType type, Pattern pattern, Pattern projects, Pattern tags, long delay) {
+            this.name = name;
+            this.type = type;
+            this.pattern = pattern;
+            this.projects = projects;
+            this.tags = tags;
+            this.delay = delay;
+        }
+
+        boolean appliesTo(String project, String scriptTags) {
+            return projects.matcher(project).matches() && tags.matcher(scriptTags).matches();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s: %s)", name, type, pattern);
+        }
+    }
+
+    /**
+     * Output analysis configuration, see test.properties for details
+     */
+    static class Config {
+        private final List<Rule> rules;
+        private final long stallTimeout;
+        private final boolean stallTerminate;
+
+        Config(List<Rule> rules, long stallTimeout, boolean stallTerminate) {
+            Preconditions.checkArgument(stallTimeout >= 0, "Stall timeout must not be negative.");
+            this.rules = rules;
+            this.stallTimeout = stallTimeout;
+            this.stallTerminate = stallTerminate;
+        }
+
+        static Config fromSystemProperties() throws IOException {
+            Properties properties = new Properties();
+            try (InputStream is = OutputAnalyzer.class.getResourceAsStream(DEFAULT_RULES_RESOURCE)) {
+                properties.load(is);
+            }
+            String rulesFile = System.getProperty("at.analyzer.rules", "");
+            if (StringUtils.isNotBlank(rulesFile)) {
+                // the rules from the file override the default rules of the same name
+                try (InputStream is = new FileInputStream(new File(rulesFile))) {
+                    properties.load(is);
+                } catch (IOException e) {
+                    throw new IOException(String.format("Could not read output analysis rules %s.", rulesFile), e);
+                }
+            }
+            return new Config(parseRules(properties), TimeUnit.MINUTES.toMillis(Long.parseLong(System.getProperty("at.analyzer.stallTimeout", "30"))),
+                Boolean.parseBoolean(System.getProperty("at.analyzer.stallTerminate", "false")));
+        }
+
+        static List<Rule> parseRules(Properties properties) {
+            Map<String, Rule> result = Maps.newTreeMap();
+            for (String key : properties.stringPropertyNames()) {
+                if (!key.endsWith(".type")) {
+                    continue;
+                }
+                String name = StringUtils.removeEnd(key, ".type");
+                String pattern = properties.getProperty(name + ".pattern", "");
+                if (pattern.isEmpty()) {
+                    LOG.debug(String.format("Output analysis rule %s is disabled.", name));
+                    continue;
+                }
+                result.put(name, new Rule(name, RuleType.valueOf(properties.getProperty(key).trim()), Pattern.compile(pattern),
+                    Pattern.compile(properties.getProperty(name + ".projects", ".*")), Pattern.compile(properties.getProperty(name + ".tags", ".*")),
+                    TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty(name + ".delay", "0").trim()))));
+            }
+            LOG.debug(String.format("Output analysis rules: %s.", result.values()));
+            return Lists.newArrayList(result.values());
+        }
+
+        /**
+         * @return analyzer of the given test script's output
+         * @param name - name of the test script
+         * @param project - name of the test project
+         * @param tags - value of test script's 'Tags:' header
+         */
+        OutputAnalyzer createAnalyzer(String name, String project, String tags) {
+            List<Rule> applicable = Lists.newArrayList();
+            for (Rule rule : rules) {
+                if (rule.appliesTo(project, tags)) {
+                    applicable.add(rule);
+                }
+            }
+            return new OutputAnalyzer(name, Collections.unmodifiableList(applicable), this);
+        }
+    }
+}
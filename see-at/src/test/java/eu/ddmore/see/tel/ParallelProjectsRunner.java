@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.runner.Runner;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.Parameterized;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.RunnerScheduler;
+import org.junit.runners.parameterized.BlockJUnit4ClassRunnerWithParameters;
+import org.junit.runners.parameterized.ParametersRunnerFactory;
+import org.junit.runners.parameterized.TestWithParameters;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+/**
+ * A {@link Parameterized} runner that executes test scripts of different test projects concurrently.
+ * <p>
+ * Test scripts are grouped into 'lanes', one lane per test project. Scripts within a lane are executed one after another
+ * in the order in which the parameters were produced (i.e. respecting 'Order:' tag), since they share the project's working directory.
+ * Lanes are executed by a fixed pool of workers, the size of which is controlled by {@value #PARALLELISM_PROPERTY} system property.
+ * <p>
+ * If one of the parameters is a {@link Task}, it determines the lane and the tests (of any lane) that must complete before the test is
+ * started, see {@link TestScriptGraph}.
+ * <p>
+ * If the tests are limited by {@link ResourcePools} (see {@link #setResourcePools(ResourcePools)}), a test whose prerequisites have completed
+ * requests the slots its {@link Task}'s tags demand and is started only once it is admitted, so tests waiting for slots don't occupy workers
+ * and don't hold back tests demanding other pools. The slots are released once the test completes.
+ * <p>
+ * With parallelism of 1 (the default) the runner behaves exactly as {@link Parameterized} runner.
+ * <p>
+ * The test class must use {@link LaneRunnerFactory} as its parameters runner factory, and the first parameter must identify the test project
+ * (unless a {@link Task} parameter is given).
+ */
+public class ParallelProjectsRunner extends Parameterized {
+    private static final Logger LOG = Logger.getLogger(ParallelProjectsRunner.class);
+    static final String PARALLELISM_PROPERTY = "at.parallelism";
+    private final int parallelism;
+    private final List<LaneTask> scheduled = Lists.newArrayList();
+    private static volatile ResourcePools resourcePools = null;
+
+    public ParallelProjectsRunner(Class<?> klass) throws Throwable {
+        super(klass);
+        // the parameters method has already been invoked at this point so the properties from test.properties are available
+        parallelism = Integer.parseInt(System.getProperty(PARALLELISM_PROPERTY, "1"));
+        Preconditions.checkArgument(parallelism > 0, String.format("%s must be a positive number, was %s.", PARALLELISM_PROPERTY, parallelism));
+        if (parallelism > 1) {
+            setScheduler(new LaneScheduler());
+        }
+    }
+
+    /**
+     * @param pools - resource pools limiting the tests executed concurrently, null if the tests are not limited
+     */
+    static void setResourcePools(ResourcePools pools) {
+        resourcePools = pools;
+    }
+
+    /**
+     * Children are not executed straight away, they are recorded with their lane and executed by the {@link LaneScheduler}
+     * once all children have been scheduled.
+     */
+    @Override
+    protected void runChild(final Runner runner, final RunNotifier notifier) {
+        if (parallelism == 1) {
+            super.runChild(runner, notifier);
+            return;
+        }
+        Preconditions.checkState(runner instanceof LaneRunner, String.format("Runner %s is not a lane runner, check that %s is used as parameters runner factory.",
+            runner, LaneRunnerFactory.class.getSimpleName()));
+        final LaneRunner laneRunner = (LaneRunner) runner;
+        synchronized (scheduled) {
+            scheduled.add(new LaneTask(laneRunner.getId(), laneRunner.getLane(), laneRunner.getPrerequisites(), laneRunner.getTags()) {
+                @Override
+                public void run() {
+                    ParallelProjectsRunner.super.runChild(runner, notifier);
+                }
+            });
+        }
+    }
+
+    /**
+     * Scheduler that executes lanes in a fixed size pool of workers
+     */
+    private class LaneScheduler implements RunnerScheduler {
+
+        @Override
+        public void schedule(Runnable childStatement) {
+            // the statement calls runChild which only records the child with its lane
+            childStatement.run();
+        }
+
+        /**
+         * Executes the recorded children, each of them once the previous child of its lane and all its prerequisites have completed.
+         */
+        @Override
+        public void finished() {
+            Map<String, LaneTask> tasks = Maps.newLinkedHashMap();
+            Map<String, LaneTask> laneTails = Maps.newHashMap();
+            synchronized (scheduled) {
+                for (LaneTask task : scheduled) {
+                    LaneTask previous = laneTails.put(task.lane, task);
+                    if (previous != null) {
+                        task.waitsFor.add(previous.id);
+                    }
+                    tasks.put(task.id, task);
+                }
+                scheduled.clear();
+            }
+            final Multimap<LaneTask, LaneTask> dependents = ArrayListMultimap.create();
+            final Map<LaneTask, Integer> waiting = Maps.newHashMap();
+            for (LaneTask task : tasks.values()) {
+                int count = 0;
+                for (String prerequisite : task.waitsFor) {
+                    // prerequisites which are not executed are ignored
+                    if (tasks.containsKey(prerequisite)) {
+                        dependents.put(tasks.get(prerequisite), task);
+                        count++;
+                    }
+                }
+                waiting.put(task, count);
+            }
+            LOG.info(String.format("Executing %s test project lanes using %s workers.", laneTails.size(), parallelism));
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+            ResourcePools pools = resourcePools;
+            try {
+                CompletionService<LaneTask> completion = new ExecutorCompletionService<LaneTask>(executor);
+                Map<ResourcePools.Allocation, LaneTask> requested = Maps.newHashMap();
+                int running = 0;
+                int completed = 0;
+                for (LaneTask task : tasks.values()) {
+                    if (waiting.get(task) == 0) {
+                        running += start(task, completion, pools, requested);
+                    }
+                }
+                running += admit(completion, pools, requested, running);
+                while (running > 0) {
+                    LaneTask done = completion.take().get();
+                    running--;
+                    completed++;
+                    if (done.allocation != null) {
+                        pools.release(done.allocation);
+                    }
+                    for (LaneTask dependent : dependents.get(done)) {
+                        int count = waiting.get(dependent) - 1;
+                        waiting.put(dependent, count);
+                        if (count == 0) {
+                            running += start(dependent, completion, pools, requested);
+                        }
+                    }
+                    running += admit(completion, pools, requested, running);
+                }
+                Preconditions.checkState(completed == tasks.size(), String.format("%s tests were not executed, their prerequisites are cyclic.",
+                    tasks.size() - completed));
+            } catch (Exception e) {
+                throw new IllegalStateException("Execution of test project lanes failed.", e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Submits the task, or requests the resource slots it demands if the tests are limited by resource pools
+     * @return number of submitted tasks
+     */
+    private static int start(LaneTask task, CompletionService<LaneTask> completion, ResourcePools pools,
+        Map<ResourcePools.Allocation, LaneTask> requested) {
+        if (pools == null) {
+            completion.submit(task, task);
+            return 1;
+        }
+        requested.put(pools.request(task.id, task.tags), task);
+        return 0;
+    }
+
+    /**
+     * Submits the tasks admitted by the resource pools, as many as there are idle workers
+     * @return number of submitted tasks
+     */
+    private int admit(CompletionService<LaneTask> completion, ResourcePools pools, Map<ResourcePools.Allocation, LaneTask> requested,
+        int running) {
+        if (pools == null) {
+            return 0;
+        }
+        List<ResourcePools.Allocation> admitted = pools.admit(parallelism - running);
+        for (ResourcePools.Allocation allocation : admitted) {
+            LaneTask task = requested.remove(allocation);
+            task.allocation = allocation;
+            completion.submit(task, task);
+        }
+        return admitted.size();
+    }
+
+    private static abstract class LaneTask implements Runnable {
+        private final String id;
+        private final String lane;
+        /** Ids of tasks that must complete before this one starts */
+        private final List<String> waitsFor;
+        private final Collection<String> tags;
+        /** Resource slots held by the task while it is executed */
+        private ResourcePools.Allocation allocation = null;
+
+        LaneTask(String id, String lane, Collection<String> prerequisites, Collection<String> tags) {
+            this.id = id;
+            this.lane = lane;
+            this.waitsFor = Lists.newArrayList(prerequisites);
+            this.tags = tags;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, String.format("at-worker-%s", counter.incrementAndGet()));
+        }
+    }
+
+    /**
+     * A runner for a single set of parameters, that is aware of the lane it belongs to.
+     */
+    static class LaneRunner extends BlockJUnit4ClassRunnerWithParameters {
+        private final String id;
+        private final String lane;
+        private final Collection<String> prerequisites;
+        private final Collection<String> tags;
+
+        LaneRunner(TestWithParameters test) throws InitializationError {
+            super(test);
+            Preconditions.checkArgument(!test.getParameters().isEmpty(), "The lane is identified by the first parameter, but no parameters were given.");
+            Task task = null;
+            for (Object parameter : test.getParameters()) {
+                if (parameter instanceof Task) {
+                    task = (Task) parameter;
+                }
+            }
+            if (task != null) {
+                this.id = task.getId();
+                this.lane = task.getLane();
+                this.prerequisites = task.getPrerequisites();
+                this.tags = task.getTagNames();
+            } else {
+                this.id = test.getName();
+                this.lane = String.valueOf(test.getParameters().get(0));
+                this.prerequisites = Collections.emptyList();
+                this.tags = Collections.emptyList();
+            }
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getLane() {
+            return lane;
+        }
+
+        Collection<String> getPrerequisites() {
+            return prerequisites;
+        }
+
+        Collection<String> getTags() {
+            return tags;
+        }
+    }
+
+    /**
+     * A test parameter that identifies the test, its lane and the tests it depends on.
+     */
+    interface Task {
+
+        String getId();
+
+        String getLane();
+
+        /**
+         * @return ids of the tests that must complete before this test is started
+         */
+        Collection<String> getPrerequisites();
+
+        /**
+         * @return tags of the test, determining the resource slots it demands
+         */
+        Collection<String> getTagNames();
+    }
+
+    /**
+     * Creates {@link LaneRunner}s, to be used with {@link Parameterized.UseParametersRunnerFactory}.
+     */
+    public static class LaneRunnerFactory implements ParametersRunnerFactory {
+
+        @Override
+        public Runner createRunnerForTestWithParameters(TestWithParameters test) throws InitializationError {
+            return new LaneRunner(test);
+        }
+    }
+}
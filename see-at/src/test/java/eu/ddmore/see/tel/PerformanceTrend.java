@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Compares durations of test scripts in the latest build with the preceding builds, as recorded in the reports history directory
+ * (see {@link RunReport}), and flags statistically significant slowdowns:
+ * <ul>
+ *   <li>of a test script - its duration is compared with durations of its passing executions in the baseline builds, the slowdown is
+ *   significant if the duration is improbably high (one-sided p-value of its robust z-score, computed from the median and the median
+ *   absolute deviation of logarithms of the baseline durations, is below alpha)</li>
+ *   <li>of a tag (e.g. a tool: nonmem, monolix, psn) - the test scripts with the tag are compared as above, the slowdown is significant
+ *   if more of them are slower than the baseline median than could happen by chance (one-sided sign test p-value is below alpha)</li>
+ * </ul>
+ * and the slowdown (ratio of the duration to the baseline median, geometric mean of the ratios for a tag) is at least the minimum slowdown.
+ * Only passing executions are compared, builds are ordered by their start time.
+ * <p>
+ * The summary is logged and can be written to a text and to an HTML file, the tool exits with 1 if there are regressions and --fail is true.
+ * <p>
+ * Usage:
+ * <pre>
+ * PerformanceTrend [--baseline &lt;builds&gt;] [--min-samples &lt;count&gt;] [--alpha &lt;p-value&gt;] [--min-slowdown &lt;ratio&gt;]
+ *     [--tags &lt;comma separated tags&gt;] [--text &lt;file&gt;] [--html &lt;file&gt;] [--fail &lt;true|false&gt;] &lt;reports history directory&gt;
+ * </pre>
+ * or, from see-at directory: mvn process-test-classes -P performance-trend -Dtrend.reports=&lt;dir&gt;
+ */
+class PerformanceTrend {
+    private static final Logger LOG = Logger.getLogger(PerformanceTrend.class);
+    private static final String USAGE = "Usage: PerformanceTrend [--baseline <builds>] [--min-samples <count>] [--alpha <p-value>] [--min-slowdown <ratio>] "
+        + "[--tags <tags>] [--text <file>] [--html <file>] [--fail <true|false>] <reports history directory>";
+    /** Consistency constant of the median absolute deviation of normally distributed values */
+    private static final double MAD_SCALE = 1.4826;
+    /** The lowest spread of logarithms of durations, test scripts with very stable durations would otherwise be flagged for any change */
+    private static final double NOISE_FLOOR = 0.05;
+    private int baselineBuilds = 10;
+    private int minSamples = 3;
+    private double alpha = 0.01;
+    private double minSlowdown = 1.2;
+    private Set<String> tags = Sets.newHashSet();
+
+    public static void main(String[] args) throws Exception {
+        PerformanceTrend trend = new PerformanceTrend();
+        File textFile = null;
+        File htmlFile = null;
+        boolean fail = false;
+        List<String> arguments = Lists.newArrayList(args);
+        while (arguments.size() > 1 && arguments.get(0).startsWith("--")) {
+            String option = arguments.remove(0);
+            String value = arguments.remove(0);
+            if ("--fail".equals(option)) {
+                fail = Boolean.parseBoolean(value);
+            } else if ("--baseline".equals(option)) {
+                trend.baselineBuilds = Integer.parseInt(value);
+            } else if ("--min-samples".equals(option)) {
+                trend.minSamples = Integer.parseInt(value);
+            } else if ("--alpha".equals(option)) {
+                trend.alpha = Double.parseDouble(value);
+            } else if ("--min-slowdown".equals(option)) {
+                trend.minSlowdown = Double.parseDouble(value);
+            } else if ("--tags".equals(option)) {
+                trend.tags = Sets.newHashSet(Splitter.on(',').trimResults().omitEmptyStrings().split(value));
+            } else if ("--text".equals(option)) {
+                textFile = new File(value);
+            } else if ("--html".equals(option)) {
+                htmlFile = new File(value);
+            } else {
+                throw new IllegalArgumentException(String.format("Unknown option %s. %s", option, USAGE));
+            }
+        }
+        Preconditions.checkArgument(arguments.size() == 1, USAGE);
+        Preconditions.checkArgument(trend.baselineBuilds > 0 && trend.minSamples > 0, "Number of baseline builds and samples must be positive.");
+        Result result = trend.analyze(loadBuilds(new File(arguments.get(0))));
+        String text = result.toText();
+        LOG.info(String.format("Performance trend:\n%s", text));
+        if (textFile != null) {
+            FileUtils.writeStringToFile(textFile, text, StandardCharsets.UTF_8.name());
+        }
+        if (htmlFile != null) {
+            FileUtils.writeStringToFile(htmlFile, result.toHtml(), StandardCharsets.UTF_8.name());
+            LOG.info(String.format("Performance trend summary written to %s.", htmlFile));
+        }
+        if (fail && result.hasRegressions()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return builds recorded in the reports history directory, the oldest first
+     */
+    static List<Build> loadBuilds(File directory) throws IOException {
+        Preconditions.checkArgument(directory.isDirectory(), String.format("Reports history directory %s does not exist.", directory));
+        Map<String, Build> builds = Maps.newHashMap();
+        for (File file : FileUtils.listFiles(directory, new String[] { RunReport.FILE_EXT }, false)) {
+            for (RunReport.Entry entry : RunReport.read(file)) {
+                Build build = builds.get(entry.build);
+                if (build == null) {
+                    build = new Build(entry.build, entry.started);
+                    builds.put(entry.build, build);
+                }
+                build.add(entry);
+            }
+        }
+        List<Build> result = Lists.newArrayList(builds.values());
+        Collections.sort(result, new Comparator<Build>() {
+            @Override
+            public int compare(Build left, Build right) {
+                return Long.compare(left.started, right.started);
+            }
+        });
+        return result;
+    }
+
+    Result analyze(List<Build> builds) {
+        Preconditions.checkArgument(!builds.isEmpty(), "There are no run reports to analyse.");
+        Build current = builds.get(builds.size() - 1);
+        List<Build> baseline = builds.subList(Math.max(0, builds.size() - 1 - baselineBuilds), builds.size() - 1);
+        Result result = new Result(current, baseline);
+        ListMultimap<String, ScriptTrend> byTag = ArrayListMultimap.create();
+        for (RunReport.Entry entry : current.passed.values()) {
+            String key = entry.project + "/" + entry.script;
+            List<Double> samples = Lists.newArrayList();
+            for (Build build : baseline) {
+                RunReport.Entry previous = build.passed.get(key);
+                if (previous != null) {
+                    samples.add(Math.log(Math.max(1, previous.duration)));
+                }
+            }
+            if (samples.size() < minSamples) {
+                result.withoutHistory++;
+                continue;
+            }
+            ScriptTrend script = new ScriptTrend(key, entry.duration, samples);
+            script.regression = script.p < alpha && script.ratio >= minSlowdown;
+            result.scripts.add(script);
+            for (String tag : entry.getTags()) {
+                if (tags.isEmpty() || tags.contains(tag)) {
+                    byTag.put(tag, script);
+                }
+            }
+        }
+        for (String tag : Sets.newTreeSet(byTag.keySet())) {
+            TagTrend trend = new TagTrend(tag, byTag.get(tag));
+            trend.regression = trend.scripts >= minSamples && trend.p < alpha && trend.ratio >= minSlowdown;
+            result.tags.add(trend);
+        }
+        Collections.sort(result.scripts, new Comparator<ScriptTrend>() {
+            @Override
+            public int compare(ScriptTrend left, ScriptTrend right) {
+                return Double.compare(left.p, right.p);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return probability that a standard normal variable is greater than z
+     */
+    static double upperTail(double z) {
+        return 0.5 * erfc(z / Math.sqrt(2));
+    }
+
+    /**
+     * Complementary error function with fractional error below 1.2e-7 (Chebyshev approximation, Numerical Recipes)
+     */
+    private static double erfc(double x) {
+        double z = Math.abs(x);
+        double t = 1 / (1 + 0.5 * z);
+        double result = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 + t * (-0.18628806
+            + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0 ? result : 2 - result;
+    }
+
+    /**
+     * @return probability of at least k successes in n trials with probability 1/2 (one-sided sign test)
+     */
+    static double signTest(int k, int n) {
+        double p = 0;
+        for (int i = k; i <= n; i++) {
+            p += Math.exp(logBinomial(n, i) - n * Math.log(2));
+        }
+        return Math.min(1, p);
+    }
+
+    private static double logBinomial(int n, int k) {
+        double result = 0;
+        for (int i = 1; i <= k; i++) {
+            result += Math.log(n - k + i) - Math.log(i);
+        }
+        return result;
+    }
+
+    private static double median(List<Double> values) {
+        List<Double> sorted = Lists.newArrayList(values);
+        Collections.sort(sorted);
+        int middle = sorted.size() / 2;
+        return sorted.size() % 2 == 1 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+    }
+
+    /**
+     * Passing executions of test scripts in a build (of all its shards)
+     */
+    static class Build {
+        final String id;
+        long started;
+        final Map<String, RunReport.Entry> passed = Maps.newTreeMap();
+
+        Build(String id, long started) {
+            this.id = id;
+            this.started = started;
+        }
+
+        void add(RunReport.Entry entry) {
+            started = Math.min(started, entry.started);
+            if (entry.outcome == RunReport.Outcome.PASSED) {
+                passed.put(entry.project + "/" + entry.script, entry);
+            }
+        }
+    }
+
+    static class ScriptTrend {
+        final String script;
+        final long duration;
+        final double median;
+        final double ratio;
+        final double p;
+        boolean regression;
+
+        /**
+         * @param samples - logarithms of the baseline durations
+         */
+        ScriptTrend(String script, long duration, List<Double> samples) {
+            this.script = script;
+            this.duration = duration;
+            double logMedian = median(samples);
+            List<Double> deviations = Lists.newArrayList();
+            for (Double sample : samples) {
+                deviations.add(Math.abs(sample - logMedian));
+            }
+            double spread = Math.max(NOISE_FLOOR, MAD_SCALE * median(deviations));
+            double logDuration = Math.log(Math.max(1, duration));
+            this.median = Math.exp(logMedian);
+            this.ratio = Math.exp(logDuration - logMedian);
+            this.p = upperTail((logDuration - logMedian) / spread);
+        }
+    }
+
+    static class TagTrend {
+        final String tag;
+        final int scripts;
+        final int slower;
+        final double ratio;
+        final double p;
+        boolean regression;
+
+        TagTrend(String tag, Collection<ScriptTrend> trends) {
+            this.tag = tag;
+            this.scripts = trends.size();
+            int slowerCount = 0;
+            double logRatios = 0;
+            for (ScriptTrend trend : trends) {
+                slowerCount += trend.ratio > 1 ? 1 : 0;
+                logRatios += Math.log(trend.ratio);
+            }
+            this.slower = slowerCount;
+            this.ratio = Math.exp(logRatios / scripts);
+            this.p = signTest(slower, scripts);
+        }
+    }
+
+    static class Result {
+        final Build current;
+        final List<Build> baseline;
+        final List<ScriptTrend> scripts = Lists.newArrayList();
+        final List<TagTrend> tags = Lists.newArrayList();
+        int withoutHistory = 0;
+
+        Result(Build current, List<Build> baseline) {
+            this.current = current;
+            this.baseline = baseline;
+        }
+
+        boolean hasRegressions() {
+            for (ScriptTrend script : scripts) {
+                if (script.regression) {
+                    return true;
+                }
+            }
+            for (TagTrend tag : tags) {
+                if (tag.regression) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String describeBuilds() {
+            return String.format("Build %s (started %s) compared with %s preceding builds, %s test scripts compared, %s without enough history.",
+                current.id, new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(current.started)), baseline.size(), scripts.size(), withoutHistory);
+        }
+
+        String toText() {
+            StringBuilder text = new StringBuilder(describeBuilds()).append('\n');
+            text.append(hasRegressions() ? "PERFORMANCE REGRESSIONS DETECTED\n" : "No performance regressions detected.\n");
+            text.append("\nTest script regressions:\n");
+            for (ScriptTrend script : scripts) {
+                if (script.regression) {
+                    text.append(String.format("  %s: %.1f s, baseline median %.1f s, x%.2f, p=%.2g\n", script.script, script.duration / 1000.0,
+                        script.median / 1000.0, script.ratio, script.p));
+                }
+            }
+            text.append("\nTags:\n");
+            for (TagTrend tag : tags) {
+                text.append(String.format("  %s: %s of %s test scripts slower, geometric mean x%.2f, p=%.2g%s\n", tag.tag, tag.slower, tag.scripts,
+                    tag.ratio, tag.p, tag.regression ? " REGRESSION" : ""));
+            }
+            return text.toString();
+        }
+
+        String toHtml() {
+            StringBuilder html = new StringBuilder("<html><head><meta charset=\"UTF-8\"><title>Performance trend</title><style>")
+                .append("table{border-collapse:collapse}td,th{border:1px solid #ccc;padding:2px 8px;text-align:right}td:first-child{text-align:left}")
+                .append(".regression{background:#f8d0d0}</style></head><body>\n");
+            html.append(String.format("<p>%s</p>\n<h2>Test scripts</h2>\n<table>\n", escape(describeBuilds())));
+            html.append("<tr><th>Test script</th><th>Duration (s)</th><th>Baseline median (s)</th><th>Ratio</th><th>p-value</th></tr>\n");
+            for (ScriptTrend script : scripts) {
+                html.append(String.format("<tr%s><td>%s</td><td>%.1f</td><td>%.1f</td><td>%.2f</td><td>%.2g</td></tr>\n",
+                    script.regression ? " class=\"regression\"" : "", escape(script.script), script.duration / 1000.0, script.median / 1000.0,
+                    script.ratio, script.p));
+            }
+            html.append("</table>\n<h2>Tags</h2>\n<table>\n");
+            html.append("<tr><th>Tag</th><th>Test scripts</th><th>Slower</th><th>Geometric mean ratio</th><th>p-value</th></tr>\n");
+            for (TagTrend tag : tags) {
+                html.append(String.format("<tr%s><td>%s</td><td>%s</td><td>%s</td><td>%.2f</td><td>%.2g</td></tr>\n",
+                    tag.regression ? " class=\"regression\"" : "", escape(tag.tag), tag.scripts, tag.slower, tag.ratio, tag.p));
+            }
+            return html.append("</table>\n</body></html>\n").toString();
+        }
+
+        private static String escape(String value) {
+            return StringEscapeUtils.escapeHtml(value);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.ExecuteResultHandler;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Supervises an external process launched by its {@link #getExecutor()}.
+ * <p>
+ * The supervisor is notified by the executor as soon as the process exits, so there is no polling. If the process does not exit before
+ * the deadline, or if its termination is requested by {@link #requestTermination(String)}, the whole process tree is terminated:
+ * the descendants (e.g. NONMEM or PsN processes started by R) are recorded first, then all the processes are asked to terminate and the ones
+ * still running after the grace period are killed forcibly. If the process exits with a non-zero exit value, the processes it left running
+ * are terminated in the same way.
+ * <p>
+ * Descendants of a process which has exited are no longer its descendants, so the supervisor adds {@value #TREE_VARIABLE} variable, unique
+ * for the supervisor, to the process' environment and looks the processes up by it too (only where process environments can be read, see
+ * {@link ProcessTree#withEnvironment(String, String)}).
+ * <p>
+ * Instances are thread-safe, a supervisor supervises a single process.
+ */
+class ProcessSupervisor implements ExecuteResultHandler {
+    private static final Logger LOG = Logger.getLogger(ProcessSupervisor.class);
+    private static final long KILL_CHECK_STEP = 100;
+    private static final ProcessTree PROCESS_TREE = ProcessTree.create();
+    static final String TREE_VARIABLE = "SEE_AT_PROCESS_TREE";
+    private final String treeId = UUID.randomUUID().toString();
+    private final String name;
+    private final long gracePeriod;
+    private final SupervisedExecutor executor = new SupervisedExecutor();
+    private Process process;
+    private File pidFile;
+    private boolean completed;
+    private int exitValue;
+    private ExecuteException failure;
+    private String terminationReason;
+
+    /**
+     * @param name - name of the process used in log messages and errors
+     * @param gracePeriod - time (in milliseconds) the processes have to terminate before they are killed forcibly
+     */
+    ProcessSupervisor(String name, long gracePeriod) {
+        this.name = name;
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * @return the executor which must be used to launch the supervised process (asynchronously, with this supervisor as the result handler)
+     */
+    DefaultExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param pidFile - file the supervised process writes its PID to, used if the PID can't be obtained from the Java runtime
+     */
+    void setPidFile(File pidFile) {
+        this.pidFile = pidFile;
+    }
+
+    /**
+     * Launches the process and waits until it exits. The process tree is terminated if it does not exit within the timeout.
+     *
+     * @return the process exit value
+     * @throws ProcessTerminatedException if the process was terminated
+     * @throws ExecuteException if the process could not be launched
+     */
+    int execute(CommandLine cmdLine, Map<String, String> env, long timeout) throws IOException, ProcessTerminatedException, InterruptedException {
+        executor.execute(cmdLine, env, this);
+        return waitFor(timeout);
+    }
+
+    /**
+     * Waits until the process exits, terminating the process tree if it does not exit within the timeout.
+     *
+     * @return the process exit value
+     * @throws ProcessTerminatedException if the process was terminated
+     * @throws ExecuteException if the process could not be launched
+     */
+    int waitFor(long timeout) throws ExecuteException, ProcessTerminatedException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        String reason;
+        int result;
+        synchronized (this) {
+            long remaining;
+            while (!completed && terminationReason == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            if (completed && terminationReason == null) {
+                if (failure != null && process == null) {
+                    throw failure;
+                }
+                reason = null;
+                result = exitValue;
+            } else {
+                if (terminationReason == null) {
+                    terminationReason = String.format("timeout of %s s exceeded", TimeUnit.MILLISECONDS.toSeconds(timeout));
+                }
+                reason = terminationReason;
+                result = -1;
+            }
+        }
+        if (reason != null) {
+            throw new ProcessTerminatedException(String.format("The process %s was terminated (%s).", name, reason), terminate());
+        }
+        if (result != 0) {
+            terminateLeftovers(result);
+        }
+        return result;
+    }
+
+    /**
+     * Requests termination of the process tree, the thread waiting for the process is woken up and terminates it.
+     */
+    synchronized void requestTermination(String reason) {
+        if (terminationReason == null) {
+            LOG.warn(String.format("Termination of the process %s requested: %s.", name, reason));
+            terminationReason = reason;
+        }
+        notifyAll();
+    }
+
+    synchronized boolean hasResult() {
+        return completed;
+    }
+
+    synchronized int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * Terminates the process and all its descendants.
+     *
+     * @return descriptions of processes which were terminated
+     */
+    List<String> terminate() throws InterruptedException {
+        Long pid = getPid();
+        List<String> terminated = Lists.newArrayList();
+        if (pid == null) {
+            LOG.error(String.format("Could not determine PID of the process %s, destroying the process only.", name));
+            Process p = getProcess();
+            if (p != null) {
+                p.destroy();
+                terminated.add(name);
+            }
+            return terminated;
+        }
+        // descendants must be recorded before their parents are terminated, otherwise they might get detached from the tree
+        List<Long> pids = Lists.newArrayList(pid);
+        pids.addAll(PROCESS_TREE.descendants(pid));
+        for (Long p : PROCESS_TREE.withEnvironment(TREE_VARIABLE, treeId)) {
+            // descendants of processes which have already exited
+            if (!pids.contains(p)) {
+                pids.add(p);
+            }
+        }
+        terminated.addAll(describeAlive(pids));
+        LOG.warn(String.format("Terminating the process %s and its descendants: %s.", name, StringUtils.join(terminated, ", ")));
+        long deadline = terminate(pids);
+        // let the executor collect the exit value and process' output
+        synchronized (this) {
+            long remaining;
+            while (!completed && (remaining = deadline + gracePeriod - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        }
+        return terminated;
+    }
+
+    /**
+     * Terminates the processes the process left running when it exited with the given non-zero exit value (e.g. NONMEM started by a failed
+     * R script), they would otherwise keep running and using resources until the end of the build.
+     */
+    private void terminateLeftovers(int exitValue) throws InterruptedException {
+        List<Long> leftovers = PROCESS_TREE.withEnvironment(TREE_VARIABLE, treeId);
+        if (leftovers.isEmpty()) {
+            return;
+        }
+        LOG.warn(String.format("The process %s exited with exit value %s and left processes running, terminating them: %s.", name, exitValue,
+            StringUtils.join(describeAlive(leftovers), ", ")));
+        terminate(leftovers);
+    }
+
+    /**
+     * Asks the processes to terminate and kills the ones still running after the grace period.
+     *
+     * @return the time the grace period ended
+     */
+    private long terminate(List<Long> pids) throws InterruptedException {
+        for (Long p : pids) {
+            PROCESS_TREE.terminate(p, false);
+        }
+        long deadline = System.currentTimeMillis() + gracePeriod;
+        List<Long> alive = alive(pids);
+        while (!alive.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(KILL_CHECK_STEP);
+            alive = alive(alive);
+        }
+        if (!alive.isEmpty()) {
+            LOG.warn(String.format("Processes %s did not terminate within %s ms, killing them.", alive, gracePeriod));
+            for (Long p : alive) {
+                PROCESS_TREE.terminate(p, true);
+            }
+        }
+        return deadline;
+    }
+
+    private List<String> describeAlive(List<Long> pids) {
+        List<String> result = Lists.newArrayList();
+        for (Long p : pids) {
+            if (PROCESS_TREE.isAlive(p)) {
+                result.add(String.format("%s (%s)", p, PROCESS_TREE.describe(p)));
+            }
+        }
+        return result;
+    }
+
+    private List<Long> alive(List<Long> pids) {
+        List<Long> result = Lists.newArrayList();
+        for (Long p : pids) {
+            if (PROCESS_TREE.isAlive(p)) {
+                result.add(p);
+            }
+        }
+        return result;
+    }
+
+    private synchronized Process getProcess() {
+        return process;
+    }
+
+    /**
+     * @return PID of the supervised process or null if it was not launched yet or its PID can't be determined
+     */
+    Long getPid() {
+        Process p = getProcess();
+        Long pid = p == null ? null : PROCESS_TREE.pidOf(p);
+        if (pid == null && pidFile != null && pidFile.exists()) {
+            try {
+                pid = Long.parseLong(FileUtils.readFileToString(pidFile).trim());
+            } catch (IOException | NumberFormatException e) {
+                LOG.warn(String.format("Could not read process PID file %s.", pidFile), e);
+            }
+        }
+        return pid;
+    }
+
+    @Override
+    public synchronized void onProcessComplete(int exitValue) {
+        this.exitValue = exitValue;
+        this.completed = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onProcessFailed(ExecuteException e) {
+        this.exitValue = e.getExitValue();
+        this.failure = e;
+        this.completed = true;
+        notifyAll();
+    }
+
+    /**
+     * Records the launched process, the process gets the {@value ProcessSupervisor#TREE_VARIABLE} environment variable
+     */
+    private class SupervisedExecutor extends DefaultExecutor {
+        @Override
+        protected Process launch(CommandLine command, Map<String, String> env, File dir) throws IOException {
+            Map<String, String> treeEnv = Maps.newHashMap(env == null ? System.getenv() : env);
+            treeEnv.put(TREE_VARIABLE, treeId);
+            Process launched = super.launch(command, treeEnv, dir);
+            synchronized (ProcessSupervisor.this) {
+                process = launched;
+                if (terminationReason != null) {
+                    // termination was requested before the process was started
+                    launched.destroy();
+                }
+            }
+            return launched;
+        }
+    }
+
+    /**
+     * Thrown when a supervised process had to be terminated
+     */
+    static class ProcessTerminatedException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final List<String> terminatedProcesses;
+
+        ProcessTerminatedException(String message, List<String> terminatedProcesses) {
+            super(String.format("%s Terminated processes: %s.", message,
+                terminatedProcesses.isEmpty() ? "none" : StringUtils.join(terminatedProcesses, ", ")));
+            this.terminatedProcesses = terminatedProcesses;
+        }
+
+        List<String> getTerminatedProcesses() {
+            return terminatedProcesses;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Provides access to operating system processes and their descendants.
+ * <p>
+ * On Java 9 and newer the process handles API is used (through reflection, since the test harness is built for Java 7).
+ * On older Java runtimes:
+ * <ul>
+ *   <li>on Linux, processes are looked up in /proc file system and signalled with 'kill'</li>
+ *   <li>on Windows, process trees are terminated with 'taskkill /T' (descendants can't be listed) and processes are looked up with
+ *   'tasklist'</li>
+ * </ul>
+ * Processes can be found by their environment only where /proc file system is available.
+ */
+abstract class ProcessTree {
+    private static final Logger LOG = Logger.getLogger(ProcessTree.class);
+
+    /**
+     * @return the implementation suitable for the current platform
+     */
+    static ProcessTree create() {
+        try {
+            return new HandleProcessTree();
+        } catch (ReflectiveOperationException e) {
+            LOG.debug("Process handles API is not available.", e);
+        }
+        if (SystemUtils.IS_OS_WINDOWS) {
+            return new TaskkillProcessTree();
+        }
+        return new ProcFsProcessTree();
+    }
+
+    /**
+     * @return PID of the given process or null if it can't be determined
+     */
+    abstract Long pidOf(Process process);
+
+    /**
+     * @return PIDs of all (transitive) child processes of the given process, parents precede their children
+     */
+    abstract List<Long> descendants(long pid);
+
+    abstract boolean isAlive(long pid);
+
+    /**
+     * @return PIDs of processes whose environment contains the variable with the given value (the variable is inherited by all descendants
+     * of a process, even the ones which outlive it), empty if environments of processes can't be read
+     */
+    List<Long> withEnvironment(String name, String value) {
+        return ProcFs.isAvailable() ? ProcFs.withEnvironment(name + "=" + value) : Lists.<Long> newArrayList();
+    }
+
+    /**
+     * Requests the process to terminate, forcibly if requested.
+     */
+    abstract void terminate(long pid, boolean force);
+
+    /**
+     * @return human readable description of the process (e.g. its command)
+     */
+    abstract String describe(long pid);
+
+    /**
+     * @return resource usage of the process or null if it is not available
+     */
+    Stats stats(long pid) {
+        return ProcFs.isAvailable() ? ProcFs.stats(pid) : null;
+    }
+
+    /**
+     * Resource usage of a process, values which are not available are -1
+     */
+    static class Stats {
+        /** CPU time (user and system) in milliseconds */
+        final long cpuTime;
+        /** resident set size in bytes */
+        final long rss;
+        final long threads;
+        /** bytes read and written by the process (including reads from page cache, pipes, etc.) */
+        final long bytesRead;
+        final long bytesWritten;
+
+        Stats(long cpuTime, long rss, long threads, long bytesRead, long bytesWritten) {
+            this.cpuTime = cpuTime;
+            this.rss = rss;
+            this.threads = threads;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+        }
+    }
+
+    /**
+     * Process handles API, available since Java 9
+     */
+    private static class HandleProcessTree extends ProcessTree {
+        private final Method processPid;
+        private final Method handleOf;
+        private final Method handleDescendants;
+        private final Method handlePid;
+        private final Method handleIsAlive;
+        private final Method handleDestroy;
+        private final Method handleDestroyForcibly;
+        private final Method handleInfo;
+        private final Method infoCommand;
+        private final Method infoTotalCpuDuration;
+        private final Method durationToMillis;
+        private final Method optionalIsPresent;
+        private final Method optionalGet;
+        private final Method streamIterator;
+
+        HandleProcessTree() throws ReflectiveOperationException {
+            Class<?> handle = Class.forName("java.lang.ProcessHandle");
+            Class<?> info = Class.forName("java.lang.ProcessHandle$Info");
+            Class<?> optional = Class.forName("java.util.Optional");
+            processPid = Process.class.getMethod("pid");
+            handleOf = handle.getMethod("of", long.class);
+            handleDescendants = handle.getMethod("descendants");
+            handlePid = handle.getMethod("pid");
+            handleIsAlive = handle.getMethod("isAlive");
+            handleDestroy = handle.getMethod("destroy");
+            handleDestroyForcibly = handle.getMethod("destroyForcibly");
+            handleInfo = handle.getMethod("info");
+            infoCommand = info.getMethod("command");
+            infoTotalCpuDuration = info.getMethod("totalCpuDuration");
+            durationToMillis = Class.forName("java.time.Duration").getMethod("toMillis");
+            optionalIsPresent = optional.getMethod("isPresent");
+            optionalGet = optional.getMethod("get");
+            streamIterator = Class.forName("java.util.stream.BaseStream").getMethod("iterator");
+        }
+
+        @Override
+        Long pidOf(Process process) {
+            return (Long) invoke(processPid, process);
+        }
+
+        @Override
+        List<Long> descendants(long pid) {
+            List<Long> result = Lists.newArrayList();
+            Object handle = handle(pid);
+            if (handle == null) {
+                return result;
+            }
+            Iterator<?> it = (Iterator<?>) invoke(streamIterator, invoke(handleDescendants, handle));
+            while (it.hasNext()) {
+                result.add((Long) invoke(handlePid, it.next()));
+            }
+            return result;
+        }
+
+        @Override
+        boolean isAlive(long pid) {
+            Object handle = handle(pid);
+            return handle != null && (Boolean) invoke(handleIsAlive, handle);
+        }
+
+        @Override
+        void terminate(long pid, boolean force) {
+            Object handle = handle(pid);
+            if (handle != null) {
+                invoke(force ? handleDestroyForcibly : handleDestroy, handle);
+            }
+        }
+
+        @Override
+        String describe(long pid) {
+            Object handle = handle(pid);
+            if (handle != null) {
+                Object command = invoke(infoCommand, invoke(handleInfo, handle));
+                if ((Boolean) invoke(optionalIsPresent, command)) {
+                    return new File((String) invoke(optionalGet, command)).getName();
+                }
+            }
+            return "?";
+        }
+
+        /**
+         * Without /proc file system only CPU time is available
+         */
+        @Override
+        Stats stats(long pid) {
+            if (ProcFs.isAvailable()) {
+                return super.stats(pid);
+            }
+            Object handle = handle(pid);
+            if (handle == null) {
+                return null;
+            }
+            Object cpu = invoke(infoTotalCpuDuration, invoke(handleInfo, handle));
+            long cpuTime = (Boolean) invoke(optionalIsPresent, cpu) ? (Long) invoke(durationToMillis, invoke(optionalGet, cpu)) : -1;
+            return new Stats(cpuTime, -1, -1, -1, -1);
+        }
+
+        private Object handle(long pid) {
+            Object optional = invoke(handleOf, null, pid);
+            if ((Boolean) invoke(optionalIsPresent, optional)) {
+                return invoke(optionalGet, optional);
+            }
+            return null;
+        }
+
+        private static Object invoke(Method method, Object target, Object... args) {
+            try {
+                return method.invoke(target, args);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(String.format("Could not invoke %s.", method), e);
+            }
+        }
+    }
+
+    /**
+     * Processes' PIDs are obtained from JDK's process implementation, which on Java 7 and 8 holds them in 'pid' field on Unix platforms
+     */
+    private static abstract class LegacyProcessTree extends ProcessTree {
+        @Override
+        Long pidOf(Process process) {
+            try {
+                Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return ((Number) field.get(process)).longValue();
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.debug(String.format("Could not determine PID of %s.", process), e);
+                return null;
+            }
+        }
+
+        void execute(String... command) {
+            executeForOutput(command);
+        }
+
+        /**
+         * @return output of the command or null if it could not be executed
+         */
+        String executeForOutput(String... command) {
+            try {
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                String output = IOUtils.toString(process.getInputStream(), Charset.defaultCharset().name());
+                int exitValue = process.waitFor();
+                LOG.debug(String.format("Command %s returned %s.", StringUtils.join(command, ' '), exitValue));
+                return output;
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not execute %s.", StringUtils.join(command, ' ')), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Linux /proc file system
+     */
+    private static class ProcFsProcessTree extends LegacyProcessTree {
+        private static final File PROC = new File("/proc");
+
+        @Override
+        List<Long> descendants(long pid) {
+            ListMultimap<Long, Long> children = ArrayListMultimap.create();
+            for (Map.Entry<Long, String[]> en : readStats().entrySet()) {
+                children.put(Long.parseLong(en.getValue()[1]), en.getKey());
+            }
+            List<Long> result = Lists.newArrayList();
+            List<Long> queue = Lists.newArrayList(children.get(pid));
+            while (!queue.isEmpty()) {
+                Long child = queue.remove(0);
+                result.add(child);
+                queue.addAll(children.get(child));
+            }
+            return result;
+        }
+
+        @Override
+        boolean isAlive(long pid) {
+            String[] stat = readStat(new File(PROC, String.valueOf(pid)));
+            // zombies are not considered alive
+            return stat != null && !"Z".equals(stat[0]);
+        }
+
+        @Override
+        void terminate(long pid, boolean force) {
+            execute("kill", force ? "-KILL" : "-TERM", String.valueOf(pid));
+        }
+
+        @Override
+        String describe(long pid) {
+            try {
+                return FileUtils.readFileToString(new File(new File(PROC, String.valueOf(pid)), "comm"), Charset.defaultCharset().name()).trim();
+            } catch (IOException e) {
+                return "?";
+            }
+        }
+
+        /**
+         * @return state and parent PID of all processes
+         */
+        private Map<Long, String[]> readStats() {
+            Map<Long, String[]> result = Maps.newHashMap();
+            File[] dirs = PROC.listFiles();
+            if (dirs == null) {
+                return result;
+            }
+            for (File dir : dirs) {
+                if (StringUtils.isNumeric(dir.getName())) {
+                    String[] stat = readStat(dir);
+                    if (stat != null) {
+                        result.put(Long.parseLong(dir.getName()), stat);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return state and parent PID of the process or null if the process does not exist
+         */
+        private String[] readStat(File processDir) {
+            try {
+                String stat = FileUtils.readFileToString(new File(processDir, "stat"), Charset.defaultCharset().name());
+                // the command (2nd field) is in parentheses and may contain spaces
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return new String[] { fields[0], fields[1] };
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads resource usage of processes from Linux /proc file system
+     */
+    private static class ProcFs {
+        private static final File PROC = new File("/proc");
+        private static final boolean AVAILABLE = new File(PROC, "self/stat").exists();
+        private static final long DEFAULT_CLOCK_TICKS = 100;
+        private static Long clockTicks;
+
+        static boolean isAvailable() {
+            return AVAILABLE;
+        }
+
+        /**
+         * @return the process' resource usage or null if the process does not exist
+         */
+        static Stats stats(long pid) {
+            File processDir = new File(PROC, String.valueOf(pid));
+            try {
+                String stat = read(new File(processDir, "stat"));
+                // the command (2nd field) is in parentheses and may contain spaces, fields following it are numbered from 3
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                long cpuTime = (Long.parseLong(fields[14 - 3]) + Long.parseLong(fields[15 - 3])) * 1000 / getClockTicks();
+                long threads = Long.parseLong(fields[20 - 3]);
+                long rss = -1;
+                for (String line : read(new File(processDir, "status")).split("\n")) {
+                    if (line.startsWith("VmRSS:")) {
+                        rss = Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim()) * 1024;
+                    }
+                }
+                long bytesRead = -1;
+                long bytesWritten = -1;
+                try {
+                    for (String line : read(new File(processDir, "io")).split("\n")) {
+                        if (line.startsWith("rchar:")) {
+                            bytesRead = Long.parseLong(line.substring("rchar:".length()).trim());
+                        } else if (line.startsWith("wchar:")) {
+                            bytesWritten = Long.parseLong(line.substring("wchar:".length()).trim());
+                        }
+                    }
+                } catch (IOException e) {
+                    // I/O counters are not readable e.g. for processes of other users
+                }
+                return new Stats(cpuTime, rss, threads, bytesRead, bytesWritten);
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return PIDs of processes whose environment contains the given entry (name=value)
+         */
+        static List<Long> withEnvironment(String entry) {
+            List<Long> result = Lists.newArrayList();
+            File[] dirs = PROC.listFiles();
+            if (dirs == null) {
+                return result;
+            }
+            for (File dir : dirs) {
+                if (!StringUtils.isNumeric(dir.getName())) {
+                    continue;
+                }
+                try {
+                    // entries are separated by null characters
+                    String environment = FileUtils.readFileToString(new File(dir, "environ"), Charset.defaultCharset().name());
+                    if (environment.startsWith(entry + "\0") || environment.contains("\0" + entry + "\0")) {
+                        result.add(Long.parseLong(dir.getName()));
+                    }
+                } catch (IOException e) {
+                    // the process has exited or its environment is not readable (processes of other users)
+                }
+            }
+            return result;
+        }
+
+        private static String read(File file) throws IOException {
+            return FileUtils.readFileToString(file, Charset.defaultCharset().name());
+        }
+
+        /**
+         * @return number of clock ticks per second, in which CPU times are reported
+         */
+        private static synchronized long getClockTicks() {
+            if (clockTicks == null) {
+                clockTicks = DEFAULT_CLOCK_TICKS;
+                try {
+                    Process process = new ProcessBuilder("getconf", "CLK_TCK").redirectErrorStream(true).start();
+                    String output = IOUtils.toString(process.getInputStream(), Charset.defaultCharset().name()).trim();
+                    if (process.waitFor() == 0 && StringUtils.isNumeric(output) && !output.isEmpty()) {
+                        clockTicks = Long.parseLong(output);
+                    }
+                } catch (IOException e) {
+                    LOG.debug(String.format("Could not determine clock ticks per second, %s is used.", DEFAULT_CLOCK_TICKS), e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return clockTicks;
+        }
+    }
+
+    /**
+     * Windows without process handles API - the whole tree is terminated by 'taskkill' command
+     */
+    private static class TaskkillProcessTree extends LegacyProcessTree {
+
+        @Override
+        List<Long> descendants(long pid) {
+            // can't be determined, 'taskkill /T' terminates them anyway
+            return Lists.newArrayList();
+        }
+
+        /**
+         * 'tasklist' prints an informational message rather than the CSV line if there is no such process
+         */
+        @Override
+        boolean isAlive(long pid) {
+            String output = executeForOutput("tasklist", "/FI", String.format("PID eq %s", pid), "/FO", "CSV", "/NH");
+            // assume it is if 'tasklist' can't be executed, 'taskkill' of a process that does not exist is harmless
+            return output == null || output.contains(String.format("\"%s\"", pid));
+        }
+
+        @Override
+        void terminate(long pid, boolean force) {
+            if (force) {
+                execute("taskkill", "/PID", String.valueOf(pid), "/T", "/F");
+            } else {
+                execute("taskkill", "/PID", String.valueOf(pid), "/T");
+            }
+        }
+
+        @Override
+        String describe(long pid) {
+            return "?";
+        }
+    }
+}
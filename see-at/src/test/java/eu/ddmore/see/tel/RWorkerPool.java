@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A pool of pre-initialised R processes ('workers') executing test script wrappers.
+ * <p>
+ * Each worker runs {@value #WORKER_SCRIPT} which initialises SEE R console once and then executes wrapper scripts it receives on its
+ * standard input, see the script for the protocol details. Worker's standard output and error are forwarded to the streams of the test script
+ * being executed, or to the worker's log file in between the test scripts. R's temporary directory is set when R starts, so test scripts
+ * executed by a worker share the worker's one.
+ * <p>
+ * A worker is replaced by a new one (which starts initialising straight away) after a test script failure, a timeout, or after it has executed
+ * the configured number of test scripts.
+ * <p>
+ * Instances are thread-safe.
+ */
+class RWorkerPool {
+    private static final Logger LOG = Logger.getLogger(RWorkerPool.class);
+    static final String WORKER_SCRIPT = "RWorker.R";
+    private static final String WORKER_MARKER = "##SEE-AT-WORKER##";
+    private static final String READY_STATUS = "READY";
+    private static final String RUN_COMMAND = "RUN";
+    private static final String EXIT_COMMAND = "EXIT";
+    private static final String R_TMP_DIR_ENV_VARIABLE = "TMPDIR";
+    private static final int FAILURE_EXIT_CODE = 100;
+    private static final long POLL_STEP = TimeUnit.SECONDS.toMillis(1);
+    private static final long TERMINATION_GRACE_PERIOD = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("at.process.terminationGracePeriod", "10")));
+    private final File rscriptExecutable;
+    private final File seeHome;
+    private final File workersDirectory;
+    private final File workerScript;
+    private final int maxScriptsPerWorker;
+    private final long startupTimeout;
+    private final List<Slot> slots = Lists.newArrayList();
+    private final BlockingQueue<Slot> freeSlots = new LinkedBlockingQueue<>();
+    private final ExecutorService starter = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "r-worker-starter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates the pool and starts initialisation of all its workers.
+     *
+     * @param rscriptExecutable - the Rscript executable
+     * @param seeHome - SEE installation directory
+     * @param workersDirectory - directory for workers' files (log files, temporary directories)
+     * @param size - number of workers
+     * @param maxScriptsPerWorker - number of test scripts after which a worker is replaced
+     * @param startupTimeout - time (in milliseconds) a worker has to initialise SEE R console
+     */
+    RWorkerPool(File rscriptExecutable, File seeHome, File workersDirectory, int size, int maxScriptsPerWorker, long startupTimeout) throws IOException {
+        Preconditions.checkArgument(size > 0, "R worker pool size must be a positive number.");
+        this.rscriptExecutable = rscriptExecutable;
+        this.seeHome = seeHome;
+        this.workersDirectory = workersDirectory;
+        this.maxScriptsPerWorker = maxScriptsPerWorker;
+        this.startupTimeout = startupTimeout;
+        this.workerScript = new File(workersDirectory, WORKER_SCRIPT);
+        FileUtils.copyURLToFile(RWorkerPool.class.getResource("/" + WORKER_SCRIPT), workerScript);
+        for (int i = 1; i <= size; i++) {
+            Slot slot = new Slot(i);
+            slot.warmUp();
+            slots.add(slot);
+            freeSlots.add(slot);
+        }
+        LOG.info(String.format("Starting %s R workers.", size));
+    }
+
+    /**
+     * Executes the wrapper script in one of the workers, blocks until a worker is available.
+     *
+     * @param sampler - if set, samples resource usage of the worker (and its descendants) while it executes the wrapper script
+     * @param analyzer - if set, the worker is terminated once the analyzer requests termination of the wrapper script
+     * @return the wrapper script's result, 0 indicates success
+     */
+    int execute(File wrapperScript, OutputStream stdout, OutputStream stderr, long timeout, ResourceSampler sampler, OutputAnalyzer analyzer)
+            throws Exception {
+        Slot slot = freeSlots.take();
+        try {
+            RWorker worker = slot.getWorker();
+            boolean recycle = true;
+            try {
+                if (sampler != null) {
+                    sampler.start(worker.supervisor);
+                }
+                int result = worker.run(wrapperScript, stdout, stderr, timeout, analyzer);
+                recycle = result != 0 || worker.getScriptsCount() >= maxScriptsPerWorker;
+                return result;
+            } finally {
+                if (recycle) {
+                    slot.recycle();
+                }
+            }
+        } finally {
+            freeSlots.put(slot);
+        }
+    }
+
+    /**
+     * Stops all workers.
+     */
+    void shutdown() {
+        for (Slot slot : slots) {
+            slot.shutdown();
+        }
+        starter.shutdownNow();
+    }
+
+    /**
+     * A place in the pool, holding (a future of) a worker.
+     */
+    private class Slot {
+        private final int id;
+        private int generation = 0;
+        private Future<RWorker> worker;
+
+        Slot(int id) {
+            this.id = id;
+        }
+
+        synchronized void warmUp() {
+            final String name = String.format("worker-%s-%s", id, ++generation);
+            worker = starter.submit(new Callable<RWorker>() {
+                @Override
+                public RWorker call() throws Exception {
+                    return RWorker.start(name, RWorkerPool.this);
+                }
+            });
+        }
+
+        synchronized RWorker getWorker() throws Exception {
+            try {
+                return worker.get();
+            } catch (ExecutionException e) {
+                // the next attempt will use a new worker
+                warmUp();
+                throw new IllegalStateException("R worker failed to start.", e.getCause());
+            }
+        }
+
+        synchronized void recycle() {
+            shutdown();
+            warmUp();
+        }
+
+        synchronized void shutdown() {
+            if (worker.isDone()) {
+                try {
+                    worker.get().shutdown();
+                } catch (InterruptedException | ExecutionException e) {
+                    LOG.debug("R worker did not start.", e);
+                }
+            } else {
+                worker.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * An R process
+     */
+    private static class RWorker {
+        private final String name;
+        private final ProcessSupervisor supervisor;
+        private final WorkerOutputStream stdout;
+        private final WorkerOutputStream stderr;
+        private final OutputStream log;
+        private OutputStream stdin;
+        private int scriptsCount = 0;
+
+        private RWorker(String name, OutputStream log) {
+            this.name = name;
+            this.log = log;
+            this.stdout = new WorkerOutputStream(log);
+            this.stderr = new WorkerOutputStream(log);
+            this.supervisor = new ProcessSupervisor(String.format("R worker %s", name), TERMINATION_GRACE_PERIOD);
+        }
+
+        static RWorker start(String name, RWorkerPool pool) throws Exception {
+            File logFile = new File(pool.workersDirectory, name + ".log");
+            File tmpDir = new File(pool.workersDirectory, name + ".Rtmp");
+            Preconditions.checkState(tmpDir.exists() || tmpDir.mkdirs(), String.format("Could not create R tmp directory %s.", tmpDir));
+            final RWorker worker = new RWorker(name, new SharedLogStream(new FileOutputStream(logFile)));
+            CommandLine cmdLine = new CommandLine(pool.rscriptExecutable);
+            cmdLine.addArgument(pool.workerScript.getAbsolutePath());
+            cmdLine.addArgument(pool.seeHome.getAbsolutePath());
+            cmdLine.addArgument(WORKER_MARKER);
+            Map<String, String> env = Maps.newHashMap();
+            env.putAll(System.getenv());
+            env.put(R_TMP_DIR_ENV_VARIABLE, tmpDir.getAbsolutePath());
+            worker.supervisor.getExecutor().setWorkingDirectory(pool.seeHome);
+            worker.supervisor.getExecutor().setStreamHandler(new PumpStreamHandler(worker.stdout, worker.stderr) {
+                @Override
+                public void setProcessInputStream(OutputStream os) {
+                    // keep the process input open, commands are written to it
+                    worker.stdin = os;
+                }
+            });
+            LOG.debug(String.format("Starting R worker %s, log file %s.", name, logFile));
+            worker.supervisor.getExecutor().execute(cmdLine, env, worker.supervisor);
+            try {
+                String status = worker.await(pool.startupTimeout, null);
+                Preconditions.checkState(READY_STATUS.equals(status), String.format("R worker %s reported unexpected status %s.", name, status));
+            } catch (Exception e) {
+                worker.shutdown();
+                throw e;
+            }
+            LOG.info(String.format("R worker %s is ready.", name));
+            return worker;
+        }
+
+        int run(File wrapperScript, OutputStream scriptStdout, OutputStream scriptStderr, long timeout, OutputAnalyzer analyzer) throws Exception {
+            scriptsCount++;
+            stdout.redirect(scriptStdout);
+            stderr.redirect(scriptStderr);
+            try {
+                stdin.write(String.format("%s\t%s\n", RUN_COMMAND, wrapperScript.getAbsolutePath()).getBytes(Charset.defaultCharset()));
+                stdin.flush();
+                String status = await(timeout, analyzer);
+                try {
+                    return Integer.parseInt(status.trim());
+                } catch (NumberFormatException e) {
+                    LOG.warn(String.format("R worker %s reported unexpected result [%s].", name, status));
+                    return FAILURE_EXIT_CODE;
+                }
+            } finally {
+                stdout.redirect(log);
+                stderr.redirect(log);
+            }
+        }
+
+        /**
+         * Waits for the worker to report status on both output streams.
+         */
+        private String await(long timeout, OutputAnalyzer analyzer) throws Exception {
+            long deadline = System.currentTimeMillis() + timeout;
+            // both waits block, so the loop never spins once one of the streams has reported its status
+            while (!stdout.awaitStatus(POLL_STEP) || !stderr.awaitStatus(POLL_STEP)) {
+                if (supervisor.hasResult()) {
+                    throw new IllegalStateException(String.format("R worker %s exited unexpectedly with exit value %s.", name,
+                        supervisor.getExitValue()));
+                }
+                String terminationReason = analyzer == null ? null : analyzer.getTerminationReason();
+                if (terminationReason != null) {
+                    throw new ProcessSupervisor.ProcessTerminatedException(String.format("The process was terminated (R worker %s, %s).", name,
+                        terminationReason), supervisor.terminate());
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new ProcessSupervisor.ProcessTerminatedException(String.format("The process timed out (R worker %s).", name), supervisor.terminate());
+                }
+            }
+            stderr.takeStatus();
+            return stdout.takeStatus();
+        }
+
+        int getScriptsCount() {
+            return scriptsCount;
+        }
+
+        void shutdown() {
+            LOG.debug(String.format("Stopping R worker %s.", name));
+            try {
+                if (stdin != null && !supervisor.hasResult()) {
+                    stdin.write(String.format("%s\n", EXIT_COMMAND).getBytes(Charset.defaultCharset()));
+                    stdin.flush();
+                }
+                supervisor.waitFor(POLL_STEP);
+            } catch (ProcessSupervisor.ProcessTerminatedException e) {
+                LOG.warn(e.getMessage());
+            } catch (IOException e) {
+                LOG.debug(String.format("Could not request R worker %s to exit.", name), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            IOUtils.closeQuietly(stdin);
+            IOUtils.closeQuietly(log);
+        }
+    }
+
+    /**
+     * Forwards worker's output to the current target stream, filtering out (and recording) the status lines written by the worker.
+     */
+    private static class WorkerOutputStream extends OutputStream {
+        private static final byte[] MARKER = WORKER_MARKER.getBytes(Charset.defaultCharset());
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private volatile OutputStream target;
+        private volatile CountDownLatch statusReported = new CountDownLatch(1);
+        private volatile String status;
+        private boolean passThrough = false;
+
+        WorkerOutputStream(OutputStream target) {
+            this.target = target;
+        }
+
+        void redirect(OutputStream newTarget) {
+            synchronized (this) {
+                this.target = newTarget;
+            }
+        }
+
+        boolean awaitStatus(long millis) throws InterruptedException {
+            return statusReported.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Synchronized with {@link #write(int)}, so that a status written meanwhile is not lost with the replaced latch
+         */
+        synchronized String takeStatus() {
+            String result = status;
+            status = null;
+            statusReported = new CountDownLatch(1);
+            return result;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (passThrough) {
+                target.write(b);
+                if (b == '\n') {
+                    passThrough = false;
+                }
+                return;
+            }
+            line.write(b);
+            if (b == '\n') {
+                endOfLine();
+            } else if (line.size() <= MARKER.length && (byte) b != MARKER[line.size() - 1]) {
+                // not a status line (the preceding bytes matched the marker), no need to buffer it
+                line.writeTo(target);
+                line.reset();
+                passThrough = true;
+            }
+        }
+
+        /**
+         * The rest of a line which is not a status line is forwarded at once, only the beginnings of lines are inspected byte by byte
+         */
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (!passThrough) {
+                    write(b[i++]);
+                    continue;
+                }
+                int lineEnd = i;
+                while (lineEnd < end && b[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd < end) {
+                    // including the line separator
+                    lineEnd++;
+                    passThrough = false;
+                }
+                target.write(b, i, lineEnd - i);
+                i = lineEnd;
+            }
+        }
+
+        private void endOfLine() throws IOException {
+            String content = new String(line.toByteArray(), Charset.defaultCharset()).trim();
+            if (content.startsWith(WORKER_MARKER)) {
+                status = content.substring(WORKER_MARKER.length()).trim();
+                statusReported.countDown();
+            } else {
+                line.writeTo(target);
+            }
+            line.reset();
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            target.flush();
+        }
+    }
+
+    /**
+     * Worker's log file, written to by both its output streams' pumps
+     */
+    private static class SharedLogStream extends OutputStream {
+        private final OutputStream out;
+
+        SharedLogStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Named pools of resource slots, e.g. licences of the estimation tools and CPU cores of the agent, that cap how many test scripts can be
+ * executed at once.
+ * <p>
+ * A test script demands slots according to its tags, e.g. a 'nonmem' test script demands a slot of 'nonmem' pool and a slot of 'cores' pool.
+ * Demands of all the test script's tags and the default demand (of all test scripts) are combined by taking the highest demand for each pool,
+ * demands for pools which are not declared are ignored and demands exceeding a pool's size are capped at the size.
+ * <p>
+ * A test script is admitted only when all the slots it demands are free, it takes them all at once, so it never holds slots while
+ * waiting for others. Test scripts are admitted in the order they asked for the slots, apart from a test script which only needs
+ * pools none of the test scripts that have waited longer is short of - e.g. a 'monolix' test script is not held back by 'nonmem'
+ * test scripts waiting for 'nonmem' licences.
+ * <p>
+ * {@link ParallelProjectsRunner} requests the slots for a test script once it is ready to be executed and starts it only once it is
+ * admitted (see {@link #request(String, Collection)} and {@link #admit(int)}), so test scripts waiting for slots don't occupy workers.
+ * {@link #acquire(String, Collection)} waits for the slots in the calling thread, for test scripts executed one after another.
+ * <p>
+ * Instances are thread-safe.
+ */
+class ResourcePools {
+    private static final Logger LOG = Logger.getLogger(ResourcePools.class);
+    static final String DEMAND_PROPERTY_PREFIX = "at.resources.demand.";
+    static final String DEFAULT_DEMAND = "default";
+    private final Map<String, Integer> capacities;
+    private final Map<String, Map<String, Integer>> demands;
+    private final Map<String, Integer> free;
+    /** Test scripts waiting for slots, in the order they asked for them */
+    private final List<Allocation> waiting = Lists.newLinkedList();
+    /** Test scripts holding slots, by their ids */
+    private final Map<String, Allocation> held = Maps.newHashMap();
+    private final Map<String, Integer> peakUsage = Maps.newHashMap();
+    private int admitted = 0;
+    private int delayed = 0;
+    private long totalWaitTime = 0;
+
+    /**
+     * @param capacities - number of slots of each pool
+     * @param demands - slots of the pools demanded by test scripts with the tag (in lower case), {@value #DEFAULT_DEMAND} applies to all test scripts
+     */
+    ResourcePools(Map<String, Integer> capacities, Map<String, Map<String, Integer>> demands) {
+        for (Map.Entry<String, Integer> en : capacities.entrySet()) {
+            Preconditions.checkArgument(en.getValue() > 0, String.format("Resource pool %s must have at least one slot, had %s.", en.getKey(), en.getValue()));
+        }
+        this.capacities = ImmutableSortedMap.copyOf(capacities);
+        this.demands = ImmutableMap.copyOf(demands);
+        this.free = Maps.newHashMap(capacities);
+    }
+
+    /**
+     * @return pools declared by 'at.resources' system property, or null if no pools are declared
+     */
+    static ResourcePools fromSystemProperties() {
+        String pools = System.getProperty("at.resources", "");
+        if (StringUtils.isBlank(pools)) {
+            return null;
+        }
+        Map<String, Map<String, Integer>> demands = Maps.newHashMap();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(DEMAND_PROPERTY_PREFIX)) {
+                demands.put(name.substring(DEMAND_PROPERTY_PREFIX.length()).toLowerCase(Locale.ENGLISH), parseSlots(System.getProperty(name)));
+            }
+        }
+        ResourcePools result = new ResourcePools(parseSlots(pools), demands);
+        LOG.info(String.format("Test scripts are limited by resource pools %s.", result.capacities));
+        return result;
+    }
+
+    /**
+     * @param slots - comma separated &lt;pool&gt;=&lt;slots&gt;
+     */
+    static Map<String, Integer> parseSlots(String slots) {
+        Map<String, Integer> result = Maps.newTreeMap();
+        for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(slots)) {
+            String pool = StringUtils.substringBefore(entry, "=").trim();
+            String value = StringUtils.substringAfter(entry, "=").trim();
+            Preconditions.checkArgument(!pool.isEmpty() && !value.isEmpty() && StringUtils.isNumeric(value),
+                String.format("Malformed resource slots [%s], expected <pool>=<slots>.", entry));
+            result.put(pool, Integer.parseInt(value));
+        }
+        return result;
+    }
+
+    /**
+     * @return slots of the declared pools demanded by a test script with the given tags
+     */
+    Map<String, Integer> getDemand(Collection<String> tags) {
+        Map<String, Integer> result = Maps.newTreeMap();
+        List<String> keys = Lists.newArrayList(DEFAULT_DEMAND);
+        for (String tag : tags) {
+            keys.add(tag.toLowerCase(Locale.ENGLISH));
+        }
+        for (String key : keys) {
+            Map<String, Integer> demand = demands.get(key);
+            if (demand == null) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> en : demand.entrySet()) {
+                Integer capacity = capacities.get(en.getKey());
+                if (capacity != null && en.getValue() > 0) {
+                    int slots = Math.min(capacity, en.getValue());
+                    result.put(en.getKey(), result.containsKey(en.getKey()) ? Math.max(result.get(en.getKey()), slots) : slots);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Waits until all the slots demanded by the test script are free and takes them.
+     * @param script - the test script, for logging
+     * @param tags - the test script's tags
+     * @return the taken slots, to be released once the test script completes
+     */
+    synchronized Allocation acquire(String script, Collection<String> tags) throws InterruptedException {
+        Allocation allocation = request(script, tags);
+        try {
+            while (!isAdmissible(allocation)) {
+                allocation.deferred = true;
+                wait();
+            }
+        } finally {
+            waiting.remove(allocation);
+            // the test scripts which waited behind this one may be admissible now
+            notifyAll();
+        }
+        take(allocation);
+        return allocation;
+    }
+
+    /**
+     * Queues the test script for the slots it demands, without waiting for them, see {@link #admit(int)}.
+     * @param script - id of the test script
+     * @param tags - the test script's tags
+     * @return the requested slots, to be released once the test script completes
+     */
+    synchronized Allocation request(String script, Collection<String> tags) {
+        Allocation allocation = new Allocation(script, getDemand(tags));
+        waiting.add(allocation);
+        return allocation;
+    }
+
+    /**
+     * Admits the requested test scripts whose slots are free, in the order they were requested (bypassing the ones short of slots),
+     * the admitted test scripts take their slots.
+     * @param max - maximum number of test scripts to admit, e.g. the number of idle workers
+     * @return the admitted test scripts, in the order they were requested
+     */
+    synchronized List<Allocation> admit(int max) {
+        List<Allocation> result = Lists.newArrayList();
+        for (Allocation allocation : Lists.newArrayList(waiting)) {
+            if (result.size() >= max) {
+                break;
+            }
+            if (isAdmissible(allocation)) {
+                waiting.remove(allocation);
+                take(allocation);
+                result.add(allocation);
+            } else {
+                allocation.deferred = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return slots held by the test script, null if it holds none
+     */
+    synchronized Allocation getHeld(String script) {
+        return held.get(script);
+    }
+
+    private void take(Allocation allocation) {
+        for (Map.Entry<String, Integer> en : allocation.demand.entrySet()) {
+            free.put(en.getKey(), free.get(en.getKey()) - en.getValue());
+            int used = capacities.get(en.getKey()) - free.get(en.getKey());
+            peakUsage.put(en.getKey(), Math.max(used, peakUsage.containsKey(en.getKey()) ? peakUsage.get(en.getKey()) : 0));
+        }
+        held.put(allocation.script, allocation);
+        allocation.waitTime = System.currentTimeMillis() - allocation.requested;
+        admitted++;
+        totalWaitTime += allocation.waitTime;
+        if (allocation.deferred) {
+            delayed++;
+            LOG.info(String.format("Test script %s waited %s ms for resource slots %s.", allocation.script, allocation.waitTime, allocation.demand));
+        }
+    }
+
+    synchronized void release(Allocation allocation) {
+        Preconditions.checkState(!allocation.released, String.format("Resource slots of %s have already been released.", allocation.script));
+        allocation.released = true;
+        held.remove(allocation.script);
+        for (Map.Entry<String, Integer> en : allocation.demand.entrySet()) {
+            free.put(en.getKey(), free.get(en.getKey()) + en.getValue());
+        }
+        notifyAll();
+    }
+
+    /**
+     * The test scripts which have waited longer are admitted first, the ones which fit take their slots and the pools the others are short of
+     * are blocked for the test scripts behind them.
+     */
+    private boolean isAdmissible(Allocation allocation) {
+        Map<String, Integer> available = Maps.newHashMap(free);
+        Set<String> blocked = Sets.newHashSet();
+        for (Allocation earlier : waiting) {
+            if (earlier == allocation) {
+                break;
+            }
+            if (fits(earlier.demand, available, blocked)) {
+                for (Map.Entry<String, Integer> en : earlier.demand.entrySet()) {
+                    available.put(en.getKey(), available.get(en.getKey()) - en.getValue());
+                }
+            } else {
+                for (Map.Entry<String, Integer> en : earlier.demand.entrySet()) {
+                    if (available.get(en.getKey()) < en.getValue()) {
+                        blocked.add(en.getKey());
+                    }
+                }
+            }
+        }
+        return fits(allocation.demand, available, blocked);
+    }
+
+    private static boolean fits(Map<String, Integer> demand, Map<String, Integer> available, Set<String> blocked) {
+        for (Map.Entry<String, Integer> en : demand.entrySet()) {
+            if (blocked.contains(en.getKey()) || available.get(en.getKey()) < en.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return summary of the pools' usage
+     */
+    synchronized String getSummary() {
+        List<String> pools = Lists.newArrayList();
+        for (Map.Entry<String, Integer> en : capacities.entrySet()) {
+            pools.add(String.format("%s: peak %s of %s slots", en.getKey(), peakUsage.containsKey(en.getKey()) ? peakUsage.get(en.getKey()) : 0,
+                en.getValue()));
+        }
+        return String.format("%s test scripts admitted, %s of them waited for resource slots (%s s in total); %s", admitted, delayed,
+            totalWaitTime / 1000, StringUtils.join(pools, ", "));
+    }
+
+    /**
+     * Slots taken by a test script
+     */
+    static class Allocation {
+        private final String script;
+        private final Map<String, Integer> demand;
+        private final long requested = System.currentTimeMillis();
+        private long waitTime = 0;
+        /** If the test script was not admitted straight away because the slots it demands were not free */
+        private boolean deferred = false;
+        private boolean released = false;
+
+        private Allocation(String script, Map<String, Integer> demand) {
+            this.script = script;
+            this.demand = Collections.unmodifiableMap(demand);
+        }
+
+        Map<String, Integer> getDemand() {
+            return demand;
+        }
+
+        String getScript() {
+            return script;
+        }
+
+        /**
+         * @return time (in milliseconds) from the request of the slots until the test script was admitted
+         */
+        long getWaitTime() {
+            return waitTime;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests {@link ResourcePools}
+ */
+public class ResourcePoolsTest {
+    private ResourcePools pools;
+
+    @Before
+    public void setUp() {
+        Map<String, Map<String, Integer>> demands = Maps.newHashMap();
+        demands.put(ResourcePools.DEFAULT_DEMAND, ResourcePools.parseSlots("cores=1"));
+        demands.put("nonmem", ResourcePools.parseSlots("nonmem=1"));
+        demands.put("monolix", ResourcePools.parseSlots("monolix=1"));
+        demands.put("psn", ResourcePools.parseSlots("nonmem=1,cores=3"));
+        demands.put("huge", ResourcePools.parseSlots("cores=100,undeclared=1"));
+        pools = new ResourcePools(ResourcePools.parseSlots("nonmem=1,monolix=1,cores=4"), demands);
+    }
+
+    private static List<String> scripts(List<ResourcePools.Allocation> allocations) {
+        List<String> result = Lists.newArrayList();
+        for (ResourcePools.Allocation allocation : allocations) {
+            result.add(allocation.getScript());
+        }
+        return result;
+    }
+
+    @Test
+    public void shouldCombineDemandsOfAllTags() {
+        assertEquals(ImmutableMap.of("cores", 1), pools.getDemand(Collections.<String> emptyList()));
+        assertEquals(ImmutableMap.of("cores", 1, "nonmem", 1), pools.getDemand(Arrays.asList("NONMEM", "mdl")));
+        // the highest demand for each pool applies
+        assertEquals(ImmutableMap.of("cores", 3, "nonmem", 1), pools.getDemand(Arrays.asList("nonmem", "psn")));
+    }
+
+    @Test
+    public void shouldCapDemandsAtPoolSizesAndIgnoreUndeclaredPools() {
+        assertEquals(ImmutableMap.of("cores", 4), pools.getDemand(Arrays.asList("huge")));
+    }
+
+    @Test
+    public void shouldAdmitInRequestOrder() {
+        pools.request("first", Arrays.asList("nonmem"));
+        pools.request("second", Arrays.asList("nonmem"));
+        pools.request("third", Arrays.asList("mdl"));
+
+        assertEquals(Arrays.asList("first", "third"), scripts(pools.admit(10)));
+        assertTrue(pools.admit(10).isEmpty());
+    }
+
+    @Test
+    public void shouldLetTestScriptsBypassTestScriptsWaitingForOtherPools() {
+        ResourcePools.Allocation nonmem = pools.request("nonmem-1", Arrays.asList("nonmem"));
+        assertEquals(Arrays.asList("nonmem-1"), scripts(pools.admit(10)));
+        pools.request("nonmem-2", Arrays.asList("nonmem"));
+        pools.request("nonmem-3", Arrays.asList("nonmem"));
+        pools.request("monolix-1", Arrays.asList("monolix"));
+
+        // 'monolix' test script does not wait for 'nonmem' licences
+        assertEquals(Arrays.asList("monolix-1"), scripts(pools.admit(10)));
+
+        pools.release(nonmem);
+        assertEquals(Arrays.asList("nonmem-2"), scripts(pools.admit(10)));
+    }
+
+    @Test
+    public void shouldBlockPoolsTheEarlierTestScriptsAreShortOf() {
+        ResourcePools.Allocation first = pools.request("first", Arrays.asList("mdl"));
+        ResourcePools.Allocation second = pools.request("second", Arrays.asList("mdl"));
+        assertEquals(Arrays.asList("first", "second"), scripts(pools.admit(10)));
+        // psn needs 3 of the 2 free cores, the test scripts behind it must not take the cores it waits for
+        pools.request("psn", Arrays.asList("psn"));
+        pools.request("small", Arrays.asList("mdl"));
+        assertTrue(pools.admit(10).isEmpty());
+
+        pools.release(first);
+        assertEquals(Arrays.asList("psn"), scripts(pools.admit(10)));
+        assertTrue(pools.admit(10).isEmpty());
+
+        pools.release(second);
+        assertEquals(Arrays.asList("small"), scripts(pools.admit(10)));
+    }
+
+    @Test
+    public void shouldAdmitAtMostTheGivenNumberOfTestScripts() {
+        pools.request("first", Arrays.asList("mdl"));
+        pools.request("second", Arrays.asList("mdl"));
+        pools.request("third", Arrays.asList("mdl"));
+
+        assertEquals(Arrays.asList("first"), scripts(pools.admit(1)));
+        assertTrue(pools.admit(0).isEmpty());
+        assertEquals(Arrays.asList("second", "third"), scripts(pools.admit(2)));
+    }
+
+    @Test
+    public void shouldTrackHeldSlots() throws InterruptedException {
+        ResourcePools.Allocation admitted = pools.request("admitted", Arrays.asList("nonmem"));
+        pools.admit(10);
+        ResourcePools.Allocation acquired = pools.acquire("acquired", Arrays.asList("monolix"));
+
+        assertSame(admitted, pools.getHeld("admitted"));
+        assertSame(acquired, pools.getHeld("acquired"));
+        pools.release(admitted);
+        assertNull(pools.getHeld("admitted"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectReleasingSlotsTwice() {
+        ResourcePools.Allocation allocation = pools.request("script", Arrays.asList("mdl"));
+        pools.admit(10);
+        pools.release(allocation);
+        pools.release(allocation);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMalformedSlots() {
+        ResourcePools.parseSlots("nonmem=many");
+    }
+}
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Periodically samples resource usage of a supervised process and all its descendants (e.g. NONMEM, Monolix or PsN processes started by R)
+ * while a test script is being executed.
+ * <p>
+ * The usage is aggregated over the process tree:
+ * <ul>
+ *   <li>CPU time and bytes read and written are summed over all processes seen, using the last sample of each process</li>
+ *   <li>peak RSS and peak number of threads are the maxima of the sums over the processes alive at the same time</li>
+ * </ul>
+ * Usage of processes which were already running when sampling started (i.e. an R worker) is counted from that moment. Processes living
+ * shorter than the sampling interval may not be seen and the usage of a process after its last sample is not counted, so the values are
+ * lower bounds. Values which are not available on the platform are reported as 'n/a' (e.g. only CPU time is available on Windows).
+ * <p>
+ * A sampler samples a single test script execution.
+ */
+class ResourceSampler {
+    private static final Logger LOG = Logger.getLogger(ResourceSampler.class);
+    static final String METRICS_FILE_EXT = "metrics";
+    private static final ProcessTree PROCESS_TREE = ProcessTree.create();
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "resource-sampler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final long interval;
+    private final Map<Long, ProcessTree.Stats> baseline = Maps.newHashMap();
+    private final Map<Long, ProcessTree.Stats> last = Maps.newHashMap();
+    private ProcessSupervisor supervisor;
+    private ScheduledFuture<?> task;
+    private long startedAt;
+    private long peakRss = -1;
+    private long peakThreads = -1;
+    private int samples;
+
+    /**
+     * @param interval - sampling interval (in milliseconds)
+     */
+    ResourceSampler(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Starts sampling the process tree of the supervised process. The process does not need to be launched yet.
+     */
+    synchronized void start(ProcessSupervisor supervisor) {
+        this.supervisor = supervisor;
+        this.startedAt = System.currentTimeMillis();
+        Long pid = supervisor.getPid();
+        if (pid != null) {
+            for (Long p : tree(pid)) {
+                ProcessTree.Stats stats = PROCESS_TREE.stats(p);
+                if (stats != null) {
+                    baseline.put(p, stats);
+                }
+            }
+        }
+        task = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                } catch (RuntimeException e) {
+                    LOG.debug("Could not sample resource usage.", e);
+                }
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling, takes the last sample if the process is still running.
+     *
+     * @return resource usage of the process tree
+     */
+    Usage stop() {
+        ScheduledFuture<?> running;
+        synchronized (this) {
+            running = task;
+        }
+        if (running != null) {
+            running.cancel(false);
+        }
+        sample();
+        synchronized (this) {
+            long cpuTime = -1;
+            long bytesRead = -1;
+            long bytesWritten = -1;
+            for (Map.Entry<Long, ProcessTree.Stats> en : last.entrySet()) {
+                ProcessTree.Stats start = baseline.get(en.getKey());
+                cpuTime = add(cpuTime, en.getValue().cpuTime, start == null ? 0 : start.cpuTime);
+                bytesRead = add(bytesRead, en.getValue().bytesRead, start == null ? 0 : start.bytesRead);
+                bytesWritten = add(bytesWritten, en.getValue().bytesWritten, start == null ? 0 : start.bytesWritten);
+            }
+            return new Usage(System.currentTimeMillis() - startedAt, cpuTime, peakRss, peakThreads, bytesRead, bytesWritten, last.size(), samples);
+        }
+    }
+
+    private synchronized void sample() {
+        if (supervisor == null) {
+            return;
+        }
+        Long pid = supervisor.getPid();
+        if (pid == null) {
+            // not launched yet
+            return;
+        }
+        long rss = -1;
+        long threads = -1;
+        for (Long p : tree(pid)) {
+            ProcessTree.Stats stats = PROCESS_TREE.stats(p);
+            if (stats == null) {
+                // the process exited in the meantime
+                continue;
+            }
+            last.put(p, stats);
+            rss = add(rss, stats.rss, 0);
+            threads = add(threads, stats.threads, 0);
+        }
+        peakRss = Math.max(peakRss, rss);
+        peakThreads = Math.max(peakThreads, threads);
+        samples++;
+    }
+
+    private static List<Long> tree(long pid) {
+        List<Long> result = Lists.newArrayList(pid);
+        result.addAll(PROCESS_TREE.descendants(pid));
+        return result;
+    }
+
+    /**
+     * Adds the increment of a value to the sum, -1 stands for a value which is not available
+     */
+    private static long add(long sum, long value, long start) {
+        if (value < 0) {
+            return sum;
+        }
+        return Math.max(sum, 0) + Math.max(0, value - Math.max(start, 0));
+    }
+
+    /**
+     * Resource usage of a test script execution, values which are not available are -1
+     */
+    static class Usage {
+        /** the names of the values, in the order of {@link #values()} */
+        static final String[] NAMES = { "wallTime", "cpuTime", "peakRss", "peakThreads", "bytesRead", "bytesWritten", "processes", "samples" };
+        final long wallTime;
+        final long cpuTime;
+        final long peakRss;
+        final long peakThreads;
+        final long bytesRead;
+        final long bytesWritten;
+        final int processes;
+        final int samples;
+
+        Usage(long wallTime, long cpuTime, long peakRss, long peakThreads, long bytesRead, long bytesWritten, int processes, int samples) {
+            this.wallTime = wallTime;
+            this.cpuTime = cpuTime;
+            this.peakRss = peakRss;
+            this.peakThreads = peakThreads;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.processes = processes;
+            this.samples = samples;
+        }
+
+        /**
+         * @return human readable values, times in seconds and sizes in MB
+         */
+        String[] values() {
+            return new String[] { seconds(wallTime), seconds(cpuTime), megabytes(peakRss), count(peakThreads), megabytes(bytesRead),
+                megabytes(bytesWritten), count(processes), count(samples) };
+        }
+
+        /**
+         * Writes the usage to a file, a line per value: name=value
+         */
+        void write(File file) throws IOException {
+            String[] values = values();
+            try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                writer.write("# Resource usage of the test script process tree (times in seconds, sizes in MB)");
+                writer.newLine();
+                for (int i = 0; i < NAMES.length; i++) {
+                    writer.write(String.format("%s=%s", NAMES[i], values[i]));
+                    writer.newLine();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            String[] values = values();
+            return String.format("CPU time %s s, peak RSS %s MB, peak threads %s, read %s MB, written %s MB (%s processes)", values[1], values[2],
+                values[3], values[4], values[5], values[6]);
+        }
+
+        private static String seconds(long millis) {
+            return millis < 0 ? "n/a" : String.format("%.1f", millis / 1000.0);
+        }
+
+        private static String megabytes(long bytes) {
+            return bytes < 0 ? "n/a" : String.format("%.1f", bytes / (double) FileUtils.ONE_MB);
+        }
+
+        private static String count(long value) {
+            return value < 0 ? "n/a" : String.valueOf(value);
+        }
+    }
+}
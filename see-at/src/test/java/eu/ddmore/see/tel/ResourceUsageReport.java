@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Collects resource usage of all test scripts executed in a run and formats it as a table, test scripts using the most CPU time first.
+ * <p>
+ * Instances are thread-safe.
+ */
+class ResourceUsageReport {
+    private static final String SCRIPT_COLUMN = "script";
+    private final List<Row> rows = Lists.newArrayList();
+
+    synchronized void add(String script, ResourceSampler.Usage usage) {
+        rows.add(new Row(script, usage));
+    }
+
+    synchronized boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    /**
+     * @return the table, columns separated by spaces and aligned
+     */
+    synchronized String toTable() {
+        List<Row> sorted = Lists.newArrayList(rows);
+        Collections.sort(sorted, new Comparator<Row>() {
+            @Override
+            public int compare(Row left, Row right) {
+                return Long.compare(right.usage.cpuTime, left.usage.cpuTime);
+            }
+        });
+        List<String[]> lines = Lists.newArrayList();
+        String[] header = new String[ResourceSampler.Usage.NAMES.length + 1];
+        header[0] = SCRIPT_COLUMN;
+        System.arraycopy(ResourceSampler.Usage.NAMES, 0, header, 1, ResourceSampler.Usage.NAMES.length);
+        lines.add(header);
+        for (Row row : sorted) {
+            String[] values = row.usage.values();
+            String[] line = new String[values.length + 1];
+            line[0] = row.script;
+            System.arraycopy(values, 0, line, 1, values.length);
+            lines.add(line);
+        }
+        int[] widths = new int[header.length];
+        for (String[] line : lines) {
+            for (int i = 0; i < line.length; i++) {
+                widths[i] = Math.max(widths[i], line[i].length());
+            }
+        }
+        StringBuilder table = new StringBuilder();
+        for (String[] line : lines) {
+            // the script column is left aligned, the numbers right aligned
+            table.append(StringUtils.rightPad(line[0], widths[0]));
+            for (int i = 1; i < line.length; i++) {
+                table.append("  ").append(StringUtils.leftPad(line[i], widths[i]));
+            }
+            table.append('\n');
+        }
+        return table.toString();
+    }
+
+    /**
+     * Writes the table to the file.
+     */
+    void write(File file) throws IOException {
+        Files.write(file.toPath(), toTable().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class Row {
+        private final String script;
+        private final ResourceSampler.Usage usage;
+
+        Row(String script, ResourceSampler.Usage usage) {
+            this.script = script;
+            this.usage = usage;
+        }
+    }
+}
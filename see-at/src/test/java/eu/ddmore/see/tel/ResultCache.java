@@ -0,0 +1,447 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Records test scripts which passed, together with a fingerprint of everything the test script's result depends on:
+ * <ul>
+ *   <li>the test script</li>
+ *   <li>contents of its test project</li>
+ *   <li>contents of the shared test projects</li>
+ *   <li>the SEE installation version</li>
+ *   <li>the test script wrapper template</li>
+ * </ul>
+ * A test script whose fingerprint matches a recorded pass does not need to be executed again.
+ * <p>
+ * A project's fingerprint covers all its files, including hidden ones, apart from the test harness' output (R temporary directories
+ * and the excluded directories, e.g. the test harness working directory). Hashes of files are remembered for their size and modification
+ * time, so only new and changed files are read. Fingerprints of projects are computed once, unless the project is
+ * {@link #invalidate(File, Path) invalidated}.
+ * <p>
+ * The cache is stored in a file (by default in 'cache.path' directory) holding a line per passed test script with tab-separated fields:
+ * <pre>
+ * project/script fingerprint passedAt
+ * </pre>
+ * File hashes are stored in another file next to it, holding a line per file with tab-separated fields:
+ * <pre>
+ * projectPath path size lastModified hash
+ * </pre>
+ * Instances are thread-safe.
+ */
+class ResultCache {
+    private static final Logger LOG = Logger.getLogger(ResultCache.class);
+    static final String CACHE_FILE_NAME = "see-at/results.cache";
+    static final String FILE_HASHES_FILE_NAME = "see-at/file-hashes.cache";
+    private static final Pattern OUTPUT_DIRECTORY_PATTERN = Pattern.compile(".+" + Pattern.quote(TestScriptPerformer.R_TMP_DIRECTORY_SUFFIX));
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final File cacheFile;
+    private final File fileHashesFile;
+    private final long maxAge;
+    private final List<Path> excludedDirectories = Lists.newArrayList();
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+    private final ConcurrentMap<File, FutureTask<String>> projectFingerprints = Maps.newConcurrentMap();
+    /** hashes of projects' files, by project path and path of the file relative to the project */
+    private final ConcurrentMap<String, Map<String, FileHash>> fileHashes = Maps.newConcurrentMap();
+
+    /**
+     * @param cacheFile - the cache file
+     * @param fileHashesFile - the file hashes file
+     * @param maxAge - time (in milliseconds) after which a recorded pass expires, 0 if passes never expire
+     * @param excludedDirectories - directories which are not part of project fingerprints even if they are located in a project
+     */
+    ResultCache(File cacheFile, File fileHashesFile, long maxAge, Collection<File> excludedDirectories) {
+        this.cacheFile = cacheFile;
+        this.fileHashesFile = fileHashesFile;
+        this.maxAge = maxAge;
+        for (File directory : excludedDirectories) {
+            this.excludedDirectories.add(directory.getAbsoluteFile().toPath().normalize());
+        }
+    }
+
+    /**
+     * Creates cache backed by the files located in the given cache directory and loads its contents.
+     */
+    static ResultCache load(File cacheDirectory, long maxAge, Collection<File> excludedDirectories) {
+        ResultCache cache = new ResultCache(new File(cacheDirectory, CACHE_FILE_NAME), new File(cacheDirectory, FILE_HASHES_FILE_NAME), maxAge,
+            excludedDirectories);
+        cache.load();
+        cache.loadFileHashes();
+        return cache;
+    }
+
+    /**
+     * Loads the cache file, expired entries are discarded. A corrupted or unreadable cache file results in empty cache.
+     */
+    void load() {
+        entries.clear();
+        if (!cacheFile.exists()) {
+            LOG.debug(String.format("Results cache %s does not exist.", cacheFile));
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int expired = 0;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                List<String> fields = Lists.newArrayList(Splitter.on(FIELD_SEPARATOR).split(line));
+                if (fields.size() != 3) {
+                    throw new IllegalArgumentException(String.format("Malformed results cache entry [%s].", line));
+                }
+                Entry entry = new Entry(fields.get(1), Long.parseLong(fields.get(2)));
+                if (entry.isExpired()) {
+                    expired++;
+                    continue;
+                }
+                entries.put(fields.get(0), entry);
+            }
+            LOG.debug(String.format("Loaded %s entries from results cache %s (%s expired entries discarded).", entries.size(), cacheFile, expired));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(String.format("Could not load results cache %s, all test scripts will be executed.", cacheFile), e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Loads the file hashes file. A corrupted or unreadable file results in all files being read.
+     */
+    void loadFileHashes() {
+        fileHashes.clear();
+        if (!fileHashesFile.exists()) {
+            LOG.debug(String.format("File hashes %s do not exist.", fileHashesFile));
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(fileHashesFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int count = 0;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                List<String> fields = Lists.newArrayList(Splitter.on(FIELD_SEPARATOR).split(line));
+                if (fields.size() != 5) {
+                    throw new IllegalArgumentException(String.format("Malformed file hashes entry [%s].", line));
+                }
+                Map<String, FileHash> projectHashes = fileHashes.get(fields.get(0));
+                if (projectHashes == null) {
+                    projectHashes = Maps.newHashMap();
+                    fileHashes.put(fields.get(0), projectHashes);
+                }
+                projectHashes.put(fields.get(1), new FileHash(Long.parseLong(fields.get(2)), Long.parseLong(fields.get(3)), fields.get(4)));
+                count++;
+            }
+            LOG.debug(String.format("Loaded %s entries from file hashes %s.", count, fileHashesFile));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(String.format("Could not load file hashes %s, all files of projects will be read.", fileHashesFile), e);
+            fileHashes.clear();
+        }
+    }
+
+    /**
+     * @param project - the test project
+     * @param script - the test script (relative to the project)
+     * @param sharedProjects - shared test projects visible to the test script
+     * @param environment - fingerprint of the execution environment (SEE version, wrapper template, etc.)
+     * @return the test script's fingerprint
+     */
+    String fingerprint(File project, File script, Collection<File> sharedProjects, String environment) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, environment);
+        update(digest, key(project, script));
+        update(digest, fingerprint(project));
+        for (File shared : sharedProjects) {
+            update(digest, shared.getName());
+            update(digest, fingerprint(shared));
+        }
+        return toHex(digest);
+    }
+
+    /**
+     * @return if the test script with the given fingerprint passed before
+     */
+    boolean hasPassed(File project, File script, String fingerprint) {
+        Entry entry = entries.get(key(project, script));
+        return entry != null && entry.fingerprint.equals(fingerprint) && !entry.isExpired();
+    }
+
+    /**
+     * Records the test script's result, the cache file is updated straight away so passes are kept even if the run is interrupted.
+     */
+    void record(File project, File script, String fingerprint, boolean passed) throws IOException {
+        String key = key(project, script);
+        Entry previous = passed ? entries.put(key, new Entry(fingerprint, System.currentTimeMillis())) : entries.remove(key);
+        if (passed || previous != null) {
+            save();
+        }
+    }
+
+    /**
+     * Stores the cache in the file.
+     */
+    synchronized void save() throws IOException {
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException(String.format("Could not create directory %s.", parent));
+        }
+        File tmpFile = new File(parent, cacheFile.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> en : entries.entrySet()) {
+                writer.write(Joiner.on(FIELD_SEPARATOR).join(en.getKey(), en.getValue().fingerprint, en.getValue().passedAt));
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Stores the file hashes in the file.
+     */
+    synchronized void saveFileHashes() throws IOException {
+        File parent = fileHashesFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException(String.format("Could not create directory %s.", parent));
+        }
+        File tmpFile = new File(parent, fileHashesFile.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<String, FileHash>> project : fileHashes.entrySet()) {
+                for (Map.Entry<String, FileHash> en : project.getValue().entrySet()) {
+                    FileHash hash = en.getValue();
+                    writer.write(Joiner.on(FIELD_SEPARATOR).join(project.getKey(), en.getKey(), hash.size, hash.lastModified, hash.hash));
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), fileHashesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * Forgets the project's fingerprint and the hash of its changed file, so that they are computed again. Used by the watch mode, in which
+     * the cache lives across changes of the test projects. Must not be called while the project's fingerprint is being computed.
+     * @param project - the test project or the shared project
+     * @param file - path of the changed (or deleted) file relative to the project
+     */
+    void invalidate(File project, Path file) {
+        projectFingerprints.remove(project.getAbsoluteFile());
+        String root = project.getAbsoluteFile().toPath().normalize().toString();
+        Map<String, FileHash> hashes = fileHashes.get(root);
+        if (hashes != null) {
+            // the map may be read by a previous fingerprint computation, it is replaced rather than modified
+            Map<String, FileHash> remaining = Maps.newHashMap(hashes);
+            remaining.remove(FilenameUtils.separatorsToUnix(file.toString()));
+            fileHashes.put(root, remaining);
+        }
+    }
+
+    private static String key(File project, File script) {
+        return FilenameUtils.separatorsToUnix(new File(project.getName(), script.getPath()).getPath());
+    }
+
+    /**
+     * @return fingerprint of the project's files, computed once until the project is invalidated
+     */
+    private String fingerprint(final File project) throws IOException {
+        FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return computeFingerprint(project);
+            }
+        });
+        FutureTask<String> existing = projectFingerprints.putIfAbsent(project.getAbsoluteFile(), task);
+        if (existing == null) {
+            task.run();
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted when waiting for fingerprint of %s.", project), e);
+        } catch (ExecutionException e) {
+            throw new IOException(String.format("Could not compute fingerprint of %s.", project), e.getCause());
+        }
+    }
+
+    private String computeFingerprint(File project) throws IOException {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        final Path root = project.getAbsoluteFile().toPath().normalize();
+        // file system walk order is not defined
+        final Map<String, BasicFileAttributes> files = Maps.newTreeMap();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && (OUTPUT_DIRECTORY_PATTERN.matcher(dir.getFileName().toString()).matches()
+                        || excludedDirectories.contains(dir))) {
+                    return SKIP_SUBTREE;
+                }
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.put(FilenameUtils.separatorsToUnix(root.relativize(file).toString()), attrs);
+                return CONTINUE;
+            }
+        });
+        Map<String, FileHash> previous = fileHashes.get(root.toString());
+        Map<String, FileHash> current = Maps.newHashMap();
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read = 0;
+        for (Map.Entry<String, BasicFileAttributes> file : files.entrySet()) {
+            FileHash hash = previous == null ? null : previous.get(file.getKey());
+            if (hash == null || !hash.matches(file.getValue())) {
+                hash = new FileHash(file.getValue().size(), file.getValue().lastModifiedTime().toMillis(), hash(root.resolve(file.getKey()), buffer));
+                read++;
+            }
+            current.put(file.getKey(), hash);
+            update(digest, file.getKey());
+            update(digest, hash.hash);
+        }
+        fileHashes.put(root.toString(), current);
+        if (read > 0 || previous == null || previous.size() != current.size()) {
+            try {
+                saveFileHashes();
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not save file hashes %s.", fileHashesFile), e);
+            }
+        }
+        String result = toHex(digest);
+        stopWatch.stop();
+        LOG.debug(String.format("Fingerprint of %s (%s files, %s of them read) is %s, computed in %s ms.", project, files.size(), read, result,
+            stopWatch.getTime()));
+        return result;
+    }
+
+    private static String hash(Path file, byte[] buffer) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream is = Files.newInputStream(file)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest);
+    }
+
+    /**
+     * @return fingerprint of the given strings
+     */
+    static String fingerprint(String... values) {
+        MessageDigest digest = newDigest();
+        for (String value : values) {
+            update(digest, value);
+        }
+        return toHex(digest);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(String.format("%s digest is not available.", DIGEST_ALGORITHM), e);
+        }
+    }
+
+    /**
+     * Values are terminated, so that e.g. ("ab", "c") and ("a", "bc") result in different digests
+     */
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String toHex(MessageDigest digest) {
+        return String.format("%040x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * Hash of a file's contents, valid as long as the file's size and modification time are the same
+     */
+    private static class FileHash {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        FileHash(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    private class Entry {
+        private final String fingerprint;
+        private final long passedAt;
+
+        Entry(String fingerprint, long passedAt) {
+            this.fingerprint = fingerprint;
+            this.passedAt = passedAt;
+        }
+
+        boolean isExpired() {
+            return maxAge > 0 && System.currentTimeMillis() - passedAt > maxAge;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link ResultCache}
+ */
+public class ResultCacheTest {
+    private static final String ENVIRONMENT = ResultCache.fingerprint("1.0", "wrapper");
+    private static final File SCRIPT = new File("models/test.script.R");
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private File cacheDirectory;
+    private File project;
+    private File shared;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDirectory = temporaryFolder.newFolder("cache");
+        project = temporaryFolder.newFolder("Project");
+        shared = temporaryFolder.newFolder("Shared");
+        write(project, SCRIPT.getPath(), "source('model.R')");
+        write(project, "models/model.mdl", "model");
+        write(shared, "lib/common.R", "common <- 1");
+    }
+
+    private static void write(File directory, String path, String contents) throws IOException {
+        FileUtils.writeStringToFile(new File(directory, path), contents, "UTF-8");
+    }
+
+    private ResultCache newCache(long maxAge, Collection<File> excludedDirectories) {
+        return new ResultCache(new File(cacheDirectory, ResultCache.CACHE_FILE_NAME), new File(cacheDirectory, ResultCache.FILE_HASHES_FILE_NAME),
+            maxAge, excludedDirectories);
+    }
+
+    /**
+     * @return the test script's fingerprint computed by a new cache, so that no fingerprint of a project is remembered
+     */
+    private String fingerprint() throws IOException {
+        return newCache(0, Collections.<File> emptyList()).fingerprint(project, SCRIPT, Arrays.asList(shared), ENVIRONMENT);
+    }
+
+    @Test
+    public void shouldComputeTheSameFingerprintForUnchangedProjects() throws IOException {
+        assertEquals(fingerprint(), fingerprint());
+    }
+
+    @Test
+    public void shouldChangeFingerprintWhenTestScriptChanges() throws IOException {
+        String before = fingerprint();
+        write(project, SCRIPT.getPath(), "source('model.R'); print('changed')");
+
+        assertNotEquals(before, fingerprint());
+    }
+
+    @Test
+    public void shouldChangeFingerprintWhenProjectFileChanges() throws IOException {
+        String before = fingerprint();
+        write(project, "models/model.mdl", "changed model");
+
+        assertNotEquals(before, fingerprint());
+    }
+
+    @Test
+    public void shouldChangeFingerprintWhenHiddenFileIsAdded() throws IOException {
+        String before = fingerprint();
+        write(project, ".Rprofile", "options(digits = 3)");
+
+        assertNotEquals(before, fingerprint());
+    }
+
+    @Test
+    public void shouldChangeFingerprintWhenSharedProjectChanges() throws IOException {
+        String before = fingerprint();
+        write(shared, "lib/common.R", "common <- 2");
+
+        assertNotEquals(before, fingerprint());
+    }
+
+    @Test
+    public void shouldChangeFingerprintWhenEnvironmentChanges() throws IOException {
+        ResultCache cache = newCache(0, Collections.<File> emptyList());
+
+        assertNotEquals(cache.fingerprint(project, SCRIPT, Arrays.asList(shared), ENVIRONMENT),
+            cache.fingerprint(project, SCRIPT, Arrays.asList(shared), ResultCache.fingerprint("1.1", "wrapper")));
+    }
+
+    @Test
+    public void shouldIgnoreOutputDirectories() throws IOException {
+        File workingDirectory = new File(project, "work");
+        ResultCache cache = newCache(0, Arrays.asList(workingDirectory));
+        String before = cache.fingerprint(project, SCRIPT, Arrays.asList(shared), ENVIRONMENT);
+        write(project, "models/test.script.R" + TestScriptPerformer.R_TMP_DIRECTORY_SUFFIX + "/output.txt", "output");
+        write(workingDirectory, "output.txt", "output");
+
+        ResultCache newCache = newCache(0, Arrays.asList(workingDirectory));
+        assertEquals(before, newCache.fingerprint(project, SCRIPT, Arrays.asList(shared), ENVIRONMENT));
+    }
+
+    @Test
+    public void shouldRememberPassAcrossLoads() throws IOException {
+        String fingerprint = fingerprint();
+        newCache(0, Collections.<File> emptyList()).record(project, SCRIPT, fingerprint, true);
+
+        ResultCache cache = ResultCache.load(cacheDirectory, 0, Collections.<File> emptyList());
+        assertTrue(cache.hasPassed(project, SCRIPT, fingerprint));
+        assertFalse(cache.hasPassed(project, SCRIPT, ResultCache.fingerprint("other")));
+    }
+
+    @Test
+    public void shouldExpirePassesOlderThanMaxAge() throws IOException, InterruptedException {
+        String fingerprint = fingerprint();
+        ResultCache cache = newCache(1, Collections.<File> emptyList());
+        cache.record(project, SCRIPT, fingerprint, true);
+        Thread.sleep(10);
+
+        assertFalse(cache.hasPassed(project, SCRIPT, fingerprint));
+        assertFalse(ResultCache.load(cacheDirectory, 1, Collections.<File> emptyList()).hasPassed(project, SCRIPT, fingerprint));
+        // the entry is only discarded when loaded with max age
+        assertTrue(ResultCache.load(cacheDirectory, 0, Collections.<File> emptyList()).hasPassed(project, SCRIPT, fingerprint));
+    }
+
+    @Test
+    public void shouldRemovePassWhenFailureIsRecorded() throws IOException {
+        String fingerprint = fingerprint();
+        ResultCache cache = newCache(0, Collections.<File> emptyList());
+        cache.record(project, SCRIPT, fingerprint, true);
+        cache.record(project, SCRIPT, fingerprint, false);
+
+        assertFalse(cache.hasPassed(project, SCRIPT, fingerprint));
+        assertFalse(ResultCache.load(cacheDirectory, 0, Collections.<File> emptyList()).hasPassed(project, SCRIPT, fingerprint));
+    }
+
+    @Test
+    public void shouldRecomputeFingerprintOfInvalidatedProject() throws IOException {
+        ResultCache cache = newCache(0, Collections.<File> emptyList());
+        String before = cache.fingerprint(project, SCRIPT, Arrays.asList(shared), ENVIRONMENT);
+        // same size and modification time, so only the invalidation can make the cache read the file again
+        File model = new File(project, "models/model.mdl");
+        long lastModified = model.lastModified();
+        write(project, "models/model.mdl", "MODEL");
+        assertTrue(model.setLastModified(lastModified));
+
+        assertEquals(before, cache.fingerprint(project, SCRIPT, Arrays.asList(shared), ENVIRONMENT));
+        cache.invalidate(project, Paths.get("models", "model.mdl"));
+        assertNotEquals(before, cache.fingerprint(project, SCRIPT, Arrays.asList(shared), ENVIRONMENT));
+    }
+}
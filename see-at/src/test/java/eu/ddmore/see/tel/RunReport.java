@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * Machine-readable report of a test harness run, a CSV file with a line per test script (appended as soon as the test script completes):
+ * <pre>
+ * build,started,shard,project,script,tags,outcome,duration,cpuTime,peakRss,peakThreads,bytesRead,bytesWritten,queueWait
+ * </pre>
+ * where build is the 'build.id', started is the start of the run (milliseconds since the epoch), times are in milliseconds, sizes in bytes
+ * and resource usage values are empty if they were not collected. The duration does not include queueWait, the time the test script waited
+ * for resource slots (see {@link ResourcePools}). Fields containing commas or quotes are quoted. Reports without queueWait column, written
+ * by older versions, can be read as well.
+ * <p>
+ * Reports of consecutive builds are kept in the reports history directory and compared by {@link PerformanceTrend}.
+ * <p>
+ * Instances are thread-safe.
+ */
+class RunReport {
+    static final String FILE_NAME = "run-report.csv";
+    static final String FILE_EXT = "csv";
+    static final String HEADER = "build,started,shard,project,script,tags,outcome,duration,cpuTime,peakRss,peakThreads,bytesRead,bytesWritten,queueWait";
+    private static final String HEADER_WITHOUT_QUEUE_WAIT = StringUtils.substringBeforeLast(HEADER, ",");
+    private static final int FIELDS = 14;
+    private static final int USAGE_FIELDS = 5;
+    private final File file;
+    private final String build;
+    private final long started;
+    private final int shard;
+
+    enum Outcome {
+        PASSED, FAILED, TIMED_OUT,
+        /**
+         * the test script was not executed since it passed before (see {@link ResultCache})
+         */
+        CACHED,
+        /**
+         * the test script was not executed since a test script it depends on did not pass
+         */
+        SKIPPED;
+
+        static Outcome of(DurationHistory.Outcome outcome) {
+            return valueOf(outcome.name());
+        }
+    }
+
+    private RunReport(File file, String build, long started, int shard) {
+        this.file = file;
+        this.build = build;
+        this.started = started;
+        this.shard = shard;
+    }
+
+    /**
+     * Creates a new report file (with the header only).
+     */
+    static RunReport create(File file, String build, TestSuiteShard shard) throws IOException {
+        Files.write(file.toPath(), (HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+        return new RunReport(file, build, System.currentTimeMillis(), shard.getIndex());
+    }
+
+    /**
+     * @param queueWait - time (in milliseconds) the test script waited for resource slots
+     * @param usage - resource usage of the test script or null if it was not collected
+     */
+    synchronized void record(File project, File script, String tags, Outcome outcome, long duration, long queueWait, ResourceSampler.Usage usage)
+            throws IOException {
+        Entry entry = new Entry(build, started, shard, project.getName(), FilenameUtils.separatorsToUnix(script.getPath()), tags, outcome, duration,
+            usage == null ? new long[] { -1, -1, -1, -1, -1 } : new long[] { usage.cpuTime, usage.peakRss, usage.peakThreads, usage.bytesRead,
+                usage.bytesWritten }, queueWait);
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            writer.write(entry.toString());
+            writer.newLine();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return name of the report in the reports history, unique for the build and shard
+     */
+    String getHistoryName() {
+        return String.format("%s-%s-shard%s.%s", started, build.replaceAll("[^\\w.-]", "_"), shard, FILE_EXT);
+    }
+
+    /**
+     * @return all entries of the report file
+     */
+    static List<Entry> read(File file) throws IOException {
+        List<Entry> result = Lists.newArrayList();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line) && !HEADER_WITHOUT_QUEUE_WAIT.equals(line)) {
+                throw new IOException(String.format("%s is not a run report, the header is [%s].", file, line));
+            }
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    result.add(Entry.parse(line));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A test script execution
+     */
+    static class Entry {
+        final String build;
+        final long started;
+        final int shard;
+        final String project;
+        final String script;
+        final String tags;
+        final Outcome outcome;
+        final long duration;
+        /** cpuTime, peakRss, peakThreads, bytesRead, bytesWritten, -1 if not collected */
+        final long[] usage;
+        /** -1 if not recorded */
+        final long queueWait;
+
+        Entry(String build, long started, int shard, String project, String script, String tags, Outcome outcome, long duration, long[] usage,
+                long queueWait) {
+            this.build = build;
+            this.started = started;
+            this.shard = shard;
+            this.project = project;
+            this.script = script;
+            this.tags = tags;
+            this.outcome = outcome;
+            this.duration = duration;
+            this.usage = usage;
+            this.queueWait = queueWait;
+        }
+
+        /**
+         * @return tags listed in 'Tags:' header
+         */
+        List<String> getTags() {
+            return TestScriptMetadata.splitTagNames(tags);
+        }
+
+        static Entry parse(String line) {
+            List<String> fields = splitCsv(line);
+            // older reports have no queueWait field
+            if (fields.size() != FIELDS && fields.size() != FIELDS - 1) {
+                throw new IllegalArgumentException(String.format("Malformed run report line [%s].", line));
+            }
+            long[] usage = new long[USAGE_FIELDS];
+            for (int i = 0; i < usage.length; i++) {
+                usage[i] = parseOptional(fields.get(8 + i));
+            }
+            return new Entry(fields.get(0), Long.parseLong(fields.get(1)), Integer.parseInt(fields.get(2)), fields.get(3), fields.get(4), fields.get(5),
+                Outcome.valueOf(fields.get(6)), Long.parseLong(fields.get(7)), usage, fields.size() == FIELDS ? parseOptional(fields.get(FIELDS - 1)) : -1);
+        }
+
+        private static long parseOptional(String value) {
+            return value.isEmpty() ? -1 : Long.parseLong(value);
+        }
+
+        @Override
+        public String toString() {
+            List<Object> fields = Lists.<Object> newArrayList(quote(build), started, shard, quote(project), quote(script), quote(tags), outcome, duration);
+            for (long value : usage) {
+                fields.add(value < 0 ? "" : value);
+            }
+            fields.add(queueWait < 0 ? "" : queueWait);
+            return Joiner.on(',').join(fields);
+        }
+    }
+
+    private static String quote(String value) {
+        if (!StringUtils.containsAny(value, ",\"\n")) {
+            return value;
+        }
+        return String.format("\"%s\"", value.replace("\"", "\"\"").replace('\n', ' '));
+    }
+
+    private static List<String> splitCsv(String line) {
+        List<String> result = Lists.newArrayList();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append(c);
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                result.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        result.add(field.toString());
+        return result;
+    }
+}
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Captures a single output stream (standard output or error) of a test script.
+ * <p>
+ * The output is
+ * <ul>
+ *   <li>written to a log file, optionally gzip-compressed and rotated when it reaches configured size</li>
+ *   <li>echoed to the console according to {@link ConsoleMode}</li>
+ *   <li>kept in a fixed-size in-memory buffer holding the tail of the output, used in failure messages</li>
+ * </ul>
+ * Test scripts (NONMEM and PsN in particular) can produce hundreds of MB of output, so the output is never held in memory as a whole.
+ */
+class ScriptOutput extends OutputStream {
+    private static final Logger LOG = Logger.getLogger(ScriptOutput.class);
+    static final String COMPRESSED_FILE_EXT = "gz";
+
+    enum ConsoleMode {
+        /**
+         * all output is echoed as is
+         */
+        FULL,
+        /**
+         * output lines are prefixed with the test script name and the number of lines echoed per second is limited
+         */
+        PREFIXED,
+        /**
+         * output is not echoed
+         */
+        OFF
+    }
+
+    private final File logFile;
+    private final RotatingLogStream log;
+    private final TailBuffer tail;
+    private final OutputStream target;
+
+    /**
+     * @param logFile - the log file (without compression extension)
+     * @param console - the console stream
+     * @param prefix - prefix of console lines
+     * @param config - output configuration
+     */
+    ScriptOutput(File logFile, PrintStream console, String prefix, Config config) throws IOException {
+        this.logFile = config.compress ? new File(logFile.getPath() + "." + COMPRESSED_FILE_EXT) : logFile;
+        this.tail = new TailBuffer(config.tailSize);
+        this.log = new RotatingLogStream(logFile, config.compress, config.rotateSize, config.rotateCount);
+        this.target = new TeeOutputStream(new TeeOutputStream(log, tail), createConsoleStream(console, prefix, config));
+    }
+
+    private static OutputStream createConsoleStream(PrintStream console, String prefix, Config config) {
+        switch (config.consoleMode) {
+        case FULL:
+            return new ConsoleStream(console, "", 0);
+        case PREFIXED:
+            return new ConsoleStream(console, String.format("[%s] ", prefix), config.consoleMaxLinesPerSecond);
+        default:
+            return NullOutputStream.NULL_OUTPUT_STREAM;
+        }
+    }
+
+    /**
+     * @return the current log file
+     */
+    File getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * @return all log files written, i.e. the current log file and the rotated ones which are kept
+     */
+    synchronized List<File> getLogFiles() {
+        return log.getFiles();
+    }
+
+    /**
+     * @return the tail of the output
+     */
+    String getTail() {
+        return tail.toString();
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        target.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        target.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        target.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        target.close();
+    }
+
+    /**
+     * Output configuration, see test.properties for details
+     */
+    static class Config {
+        private final int tailSize;
+        private final boolean compress;
+        private final long rotateSize;
+        private final int rotateCount;
+        private final ConsoleMode consoleMode;
+        private final int consoleMaxLinesPerSecond;
+
+        Config(int tailSize, boolean compress, long rotateSize, int rotateCount, ConsoleMode consoleMode, int consoleMaxLinesPerSecond) {
+            Preconditions.checkArgument(tailSize > 0, "Output tail size must be a positive number.");
+            Preconditions.checkArgument(rotateCount > 0, "Number of rotated log files must be a positive number.");
+            this.tailSize = tailSize;
+            this.compress = compress;
+            this.rotateSize = rotateSize;
+            this.rotateCount = rotateCount;
+            this.consoleMode = consoleMode;
+            this.consoleMaxLinesPerSecond = consoleMaxLinesPerSecond;
+        }
+
+        static Config fromSystemProperties() {
+            return new Config(Integer.parseInt(System.getProperty("at.output.tailSize", "64")) * 1024,
+                Boolean.parseBoolean(System.getProperty("at.output.compress", "false")),
+                Long.parseLong(System.getProperty("at.output.rotateSize", "0")) * 1024 * 1024,
+                Integer.parseInt(System.getProperty("at.output.rotateCount", "5")),
+                ConsoleMode.valueOf(System.getProperty("at.output.console", ConsoleMode.FULL.name())),
+                Integer.parseInt(System.getProperty("at.output.console.maxLinesPerSecond", "20")));
+        }
+    }
+
+    /**
+     * Keeps the last bytes written to it
+     */
+    static class TailBuffer extends OutputStream {
+        private final byte[] buffer;
+        private long written = 0;
+
+        TailBuffer(int size) {
+            this.buffer = new byte[size];
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            buffer[(int) (written++ % buffer.length)] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (len >= buffer.length) {
+                off += len - buffer.length;
+                written += len - buffer.length;
+                len = buffer.length;
+            }
+            int start = (int) (written % buffer.length);
+            int first = Math.min(len, buffer.length - start);
+            System.arraycopy(b, off, buffer, start, first);
+            System.arraycopy(b, off + first, buffer, 0, len - first);
+            written += len;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (written <= buffer.length) {
+                return new String(buffer, 0, (int) written, Charset.defaultCharset());
+            }
+            int start = (int) (written % buffer.length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(buffer.length);
+            result.write(buffer, start, buffer.length - start);
+            result.write(buffer, 0, start);
+            return String.format("... (%s bytes omitted)\n%s", written - buffer.length, new String(result.toByteArray(), Charset.defaultCharset()));
+        }
+    }
+
+    /**
+     * Writes to a log file which, if it exceeds the maximum size, is renamed to &lt;file&gt;.1 (previous &lt;file&gt;.1 is renamed to &lt;file&gt;.2, etc.)
+     * and a new log file is started. At most the given number of rotated files is kept.
+     */
+    private static class RotatingLogStream extends OutputStream {
+        private final File file;
+        private final boolean compress;
+        private final long maxSize;
+        private final int maxFiles;
+        private OutputStream out;
+        private long size;
+        private int rotations;
+
+        RotatingLogStream(File file, boolean compress, long maxSize, int maxFiles) throws IOException {
+            this.file = file;
+            this.compress = compress;
+            this.maxSize = maxSize;
+            this.maxFiles = maxFiles;
+            open();
+        }
+
+        private File getFile(int index) {
+            String name = index == 0 ? file.getPath() : String.format("%s.%s", file.getPath(), index);
+            return new File(compress ? name + "." + COMPRESSED_FILE_EXT : name);
+        }
+
+        private void open() throws IOException {
+            OutputStream fileStream = new FileOutputStream(getFile(0));
+            out = compress ? new GZIPOutputStream(fileStream, 64 * 1024) : new BufferedOutputStream(fileStream, 64 * 1024);
+            size = 0;
+        }
+
+        private void rotate() throws IOException {
+            out.close();
+            File oldest = getFile(maxFiles);
+            if (oldest.exists()) {
+                Preconditions.checkState(oldest.delete(), String.format("Could not delete log file %s.", oldest));
+            }
+            for (int i = maxFiles - 1; i >= 0; i--) {
+                File rotated = getFile(i);
+                if (rotated.exists()) {
+                    Preconditions.checkState(rotated.renameTo(getFile(i + 1)), String.format("Could not rotate log file %s.", rotated));
+                }
+            }
+            LOG.debug(String.format("Rotated log file %s.", getFile(0)));
+            rotations++;
+            open();
+        }
+
+        /**
+         * @return the current log file followed by the rotated ones, from the newest
+         */
+        List<File> getFiles() {
+            List<File> result = Lists.newArrayList();
+            for (int i = 0; i <= Math.min(rotations, maxFiles); i++) {
+                result.add(getFile(i));
+            }
+            return result;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // rotation happens on write boundaries, so a log file may be slightly bigger than the maximum size
+            if (maxSize > 0 && size >= maxSize) {
+                rotate();
+            }
+            out.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Echoes output to the console. If a prefix is set, complete lines are written, each prefixed, and the number of lines echoed per second
+     * can be limited (the number of lines which were not echoed is reported instead). Lines longer than {@link #MAX_LINE_LENGTH} bytes are
+     * truncated, so that output which never ends a line is not accumulated in memory.
+     */
+    private static class ConsoleStream extends OutputStream {
+        static final int MAX_LINE_LENGTH = 8 * 1024;
+        private final PrintStream console;
+        private final byte[] prefix;
+        private final int maxLinesPerSecond;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private long currentSecond;
+        private int linesInCurrentSecond;
+        private int suppressedLines;
+        private long truncatedBytes;
+
+        ConsoleStream(PrintStream console, String prefix, int maxLinesPerSecond) {
+            this.console = console;
+            this.prefix = prefix.getBytes(Charset.defaultCharset());
+            this.maxLinesPerSecond = maxLinesPerSecond;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (prefix.length == 0) {
+                console.write(b);
+                return;
+            }
+            if (b == '\n') {
+                writeLine();
+            } else if (line.size() < MAX_LINE_LENGTH) {
+                line.write(b);
+            } else {
+                truncatedBytes++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (prefix.length == 0) {
+                console.write(b, off, len);
+                return;
+            }
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    append(b, start, i - start);
+                    writeLine();
+                    start = i + 1;
+                }
+            }
+            append(b, start, off + len - start);
+        }
+
+        /**
+         * Appends to the current line, without its end, up to {@link #MAX_LINE_LENGTH} bytes
+         */
+        private void append(byte[] b, int off, int len) {
+            int appended = Math.min(len, MAX_LINE_LENGTH - line.size());
+            line.write(b, off, appended);
+            truncatedBytes += len - appended;
+        }
+
+        private void writeLine() {
+            long second = System.currentTimeMillis() / 1000;
+            if (second != currentSecond) {
+                reportSuppressedLines();
+                currentSecond = second;
+                linesInCurrentSecond = 0;
+            }
+            if (maxLinesPerSecond > 0 && ++linesInCurrentSecond > maxLinesPerSecond) {
+                suppressedLines++;
+            } else {
+                if (truncatedBytes > 0) {
+                    byte[] marker = String.format(" ... (%s bytes not echoed, see the log file)", truncatedBytes).getBytes(Charset.defaultCharset());
+                    line.write(marker, 0, marker.length);
+                }
+                line.write('\n');
+                byte[] content = withPrefix(line.toByteArray());
+                console.write(content, 0, content.length);
+            }
+            line.reset();
+            truncatedBytes = 0;
+        }
+
+        private void reportSuppressedLines() {
+            if (suppressedLines > 0) {
+                byte[] message = withPrefix(String.format("... %s lines not echoed (see the log file)\n", suppressedLines).getBytes(Charset.defaultCharset()));
+                console.write(message, 0, message.length);
+                suppressedLines = 0;
+            }
+        }
+
+        private byte[] withPrefix(byte[] content) {
+            byte[] result = new byte[prefix.length + content.length];
+            System.arraycopy(prefix, 0, result, 0, prefix.length);
+            System.arraycopy(content, 0, result, prefix.length, content.length);
+            return result;
+        }
+
+        @Override
+        public void flush() {
+            console.flush();
+        }
+
+        /**
+         * The console itself is shared by all test scripts so it is not closed
+         */
+        @Override
+        public void close() {
+            if (prefix.length > 0) {
+                if (line.size() > 0 || truncatedBytes > 0) {
+                    writeLine();
+                }
+                reportSuppressedLines();
+            }
+            console.flush();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Live status of the running test scripts. Periodically
+ * <ul>
+ *   <li>lets the registered {@link OutputAnalyzer}s check for stalls and delayed terminations</li>
+ *   <li>logs test scripts' progress if it changed since the last check</li>
+ *   <li>writes the status of all running test scripts (running time, progress, time since the last output) to the status file</li>
+ * </ul>
+ * Instances are thread-safe.
+ */
+class ScriptStatusBoard {
+    private static final Logger LOG = Logger.getLogger(ScriptStatusBoard.class);
+    static final String FILE_NAME = "status.txt";
+    private final File statusFile;
+    private final Set<OutputAnalyzer> running = Collections.newSetFromMap(Maps.<OutputAnalyzer, Boolean> newConcurrentMap());
+    /** Progress of the test scripts as it was logged last time, accessed by the checking thread only */
+    private final Map<OutputAnalyzer, String> loggedProgress = Maps.newHashMap();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param statusFile - file the status is written to
+     * @param interval - interval (in milliseconds) of the checks
+     */
+    ScriptStatusBoard(File statusFile, long interval) {
+        Preconditions.checkArgument(interval > 0, "Status check interval must be a positive number.");
+        this.statusFile = statusFile;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "script-status-board");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    // the next check must happen anyway
+                    LOG.error("Test scripts status check failed.", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void register(OutputAnalyzer analyzer) {
+        running.add(analyzer);
+    }
+
+    void unregister(OutputAnalyzer analyzer) {
+        running.remove(analyzer);
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        List<OutputAnalyzer> current = Lists.newArrayList(running);
+        loggedProgress.keySet().retainAll(current);
+        List<String> lines = Lists.newArrayList(String.format("%s test scripts running at %s", current.size(),
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(now))));
+        for (OutputAnalyzer analyzer : current) {
+            analyzer.check(now);
+            String progress = analyzer.getProgress();
+            if (progress != null && !Objects.equal(progress, loggedProgress.get(analyzer))) {
+                LOG.info(String.format("Test script %s progress: %s", analyzer.getName(), progress));
+                loggedProgress.put(analyzer, progress);
+            }
+            lines.add(String.format("%s\t%s\trunning %s s\tlast output %s s ago\t%s", analyzer.getName(), analyzer.isStalled() ? "STALLED" : "RUNNING",
+                TimeUnit.MILLISECONDS.toSeconds(now - analyzer.getStarted()), TimeUnit.MILLISECONDS.toSeconds(now - analyzer.getLastOutput()),
+                StringUtils.defaultString(progress)));
+        }
+        try {
+            FileUtils.writeLines(statusFile, Charset.defaultCharset().name(), lines);
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not write test scripts status to %s.", statusFile), e);
+        }
+    }
+
+    File getStatusFile() {
+        return statusFile;
+    }
+
+    /**
+     * Stops the checks, the status file is updated for the last time.
+     */
+    void close() throws InterruptedException {
+        executor.shutdown();
+        if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            check();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Merges reports of a test suite executed in shards (see {@link TestSuiteShard}) into a single run result.
+ * <p>
+ * Each input directory holds reports of one shard: JUnit XML reports (TEST-*.xml, as produced by Failsafe), the timings report
+ * ({@value TimingsReport#FILE_NAME}) and the partition fingerprint ({@value TestSuiteShard#PARTITION_FILE_NAME}). Merging fails if the
+ * shards computed different partitions. The output directory receives:
+ * <ul>
+ *   <li>a JUnit XML report per test suite, holding test cases of all shards, with totals of tests, failures, errors, skipped and time</li>
+ *   <li>the timings report of all shards</li>
+ * </ul>
+ * Optionally the timings are recorded in a durations history file, which can then be used by all shards of the next run
+ * (through 'at.shard.history' property) so that they compute the same, balanced, partition.
+ * <p>
+ * Usage:
+ * <pre>
+ * ShardReportMerger [--history &lt;durations history file&gt;] &lt;output directory&gt; &lt;shard reports directory&gt;...
+ * </pre>
+ * or, from see-at directory: mvn process-test-classes -P merge-shard-reports -Dshard.reports.output=&lt;dir&gt; -Dshard.reports="&lt;dir&gt; &lt;dir&gt;..."
+ */
+class ShardReportMerger {
+    private static final Logger LOG = Logger.getLogger(ShardReportMerger.class);
+    private static final String HISTORY_OPTION = "--history";
+    private static final String[] SUITE_COUNTERS = { "tests", "failures", "errors", "skipped" };
+    private static final String SUITE_TIME = "time";
+    private static final FileFilter JUNIT_REPORT_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().startsWith("TEST-") && file.getName().endsWith(".xml");
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = Lists.newArrayList(args);
+        File historyFile = null;
+        if (!arguments.isEmpty() && HISTORY_OPTION.equals(arguments.get(0))) {
+            Preconditions.checkArgument(arguments.size() > 1, "Durations history file is missing.");
+            historyFile = new File(arguments.get(1));
+            arguments = arguments.subList(2, arguments.size());
+        }
+        Preconditions.checkArgument(arguments.size() >= 2,
+            "Usage: ShardReportMerger [--history <durations history file>] <output directory> <shard reports directory>...");
+        List<File> shardDirectories = Lists.newArrayList();
+        for (String argument : arguments.subList(1, arguments.size())) {
+            shardDirectories.add(new File(argument));
+        }
+        new ShardReportMerger().merge(shardDirectories, new File(arguments.get(0)), historyFile);
+    }
+
+    void merge(List<File> shardDirectories, File outputDirectory, File historyFile) throws IOException {
+        Files.createDirectories(outputDirectory.toPath());
+        ListMultimap<String, File> junitReports = ArrayListMultimap.create();
+        List<TimingsReport.Timing> timings = Lists.newArrayList();
+        Map<String, File> partitions = Maps.newLinkedHashMap();
+        for (File directory : shardDirectories) {
+            Preconditions.checkArgument(directory.isDirectory(), String.format("Shard reports directory %s does not exist.", directory));
+            File[] reports = directory.listFiles(JUNIT_REPORT_FILTER);
+            Arrays.sort(reports);
+            for (File report : reports) {
+                junitReports.put(report.getName(), report);
+            }
+            File timingsFile = new File(directory, TimingsReport.FILE_NAME);
+            if (timingsFile.exists()) {
+                timings.addAll(TimingsReport.read(timingsFile));
+            } else {
+                LOG.warn(String.format("Shard reports directory %s does not contain timings report.", directory));
+            }
+            File partitionFile = new File(directory, TestSuiteShard.PARTITION_FILE_NAME);
+            if (partitionFile.exists()) {
+                partitions.put(new String(Files.readAllBytes(partitionFile.toPath()), StandardCharsets.UTF_8).trim(), directory);
+            } else {
+                LOG.warn(String.format("Shard reports directory %s does not contain the partition fingerprint, the shards' partitions can't be checked.", directory));
+            }
+        }
+        // shards computing different partitions would leave some test projects executed by no shard and others by several
+        Preconditions.checkState(partitions.size() <= 1, String.format(
+            "Shards computed different partitions of the test suite (fingerprint to the shard reports directory): %s.", partitions));
+        for (String name : junitReports.keySet()) {
+            mergeJUnitReports(junitReports.get(name), new File(outputDirectory, name));
+        }
+        writeTimings(timings, new File(outputDirectory, TimingsReport.FILE_NAME));
+        logShardDurations(timings);
+        if (historyFile != null) {
+            DurationHistory history = new DurationHistory(historyFile);
+            history.load();
+            for (TimingsReport.Timing timing : timings) {
+                history.record(new File(timing.project), new File(timing.script), timing.duration, timing.outcome);
+            }
+            LOG.info(String.format("Recorded %s timings in durations history %s.", timings.size(), historyFile));
+        }
+    }
+
+    /**
+     * Test cases of all reports are put in the first report's test suite and the test suite's counters are summed
+     */
+    private void mergeJUnitReports(List<File> reports, File output) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            Document merged = factory.newDocumentBuilder().parse(reports.get(0));
+            Element suite = merged.getDocumentElement();
+            for (File report : reports.subList(1, reports.size())) {
+                Element other = factory.newDocumentBuilder().parse(report).getDocumentElement();
+                for (String counter : SUITE_COUNTERS) {
+                    suite.setAttribute(counter, String.valueOf(parseInt(suite.getAttribute(counter)) + parseInt(other.getAttribute(counter))));
+                }
+                suite.setAttribute(SUITE_TIME, String.valueOf(parseDouble(suite.getAttribute(SUITE_TIME)) + parseDouble(other.getAttribute(SUITE_TIME))));
+                NodeList children = other.getChildNodes();
+                for (int i = 0; i < children.getLength(); i++) {
+                    Node child = children.item(i);
+                    if (child.getNodeType() == Node.ELEMENT_NODE && "testcase".equals(child.getNodeName())) {
+                        suite.appendChild(merged.importNode(child, true));
+                    }
+                }
+            }
+            // whitespace of the original reports would be mixed with the indentation of the merged report
+            NodeList children = suite.getChildNodes();
+            for (int i = children.getLength() - 1; i >= 0; i--) {
+                if (children.item(i).getNodeType() == Node.TEXT_NODE && children.item(i).getTextContent().trim().isEmpty()) {
+                    suite.removeChild(children.item(i));
+                }
+            }
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.transform(new DOMSource(merged), new StreamResult(output));
+            LOG.info(String.format("Merged %s JUnit reports into %s.", reports.size(), output));
+        } catch (ParserConfigurationException | SAXException | TransformerException e) {
+            throw new IOException(String.format("Could not merge JUnit reports %s.", reports), e);
+        }
+    }
+
+    private void writeTimings(List<TimingsReport.Timing> timings, File output) throws IOException {
+        List<TimingsReport.Timing> sorted = Lists.newArrayList(timings);
+        Collections.sort(sorted, new Comparator<TimingsReport.Timing>() {
+            @Override
+            public int compare(TimingsReport.Timing left, TimingsReport.Timing right) {
+                int shardOrder = Integer.compare(left.shard, right.shard);
+                return shardOrder != 0 ? shardOrder : (left.project + "/" + left.script).compareTo(right.project + "/" + right.script);
+            }
+        });
+        try (BufferedWriter writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(TimingsReport.HEADER);
+            writer.newLine();
+            for (TimingsReport.Timing timing : sorted) {
+                writer.write(timing.toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Shards' total durations show how well the suite was balanced
+     */
+    private void logShardDurations(List<TimingsReport.Timing> timings) {
+        Map<Integer, Long> durations = Maps.newTreeMap();
+        for (TimingsReport.Timing timing : timings) {
+            durations.put(timing.shard, (durations.containsKey(timing.shard) ? durations.get(timing.shard) : 0) + timing.duration);
+        }
+        for (Map.Entry<Integer, Long> en : durations.entrySet()) {
+            LOG.info(String.format("Shard %s executed test scripts for %s s.", en.getKey(), TimeUnit.MILLISECONDS.toSeconds(en.getValue())));
+        }
+    }
+
+    private static int parseInt(String value) {
+        return value.isEmpty() ? 0 : Integer.parseInt(value);
+    }
+
+    private static double parseDouble(String value) {
+        return value.isEmpty() ? 0 : Double.parseDouble(value.replace(",", ""));
+    }
+}
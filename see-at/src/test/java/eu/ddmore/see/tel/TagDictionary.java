@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Interns tag names, so that a set of tags can be held as a {@link BitSet} of tag ids.
+ * <p>
+ * There is a single, global, dictionary shared by test scripts' metadata and tag selections. Ids are assigned in the order in which tags
+ * are first seen and are never reused.
+ * <p>
+ * Instances are thread-safe.
+ */
+class TagDictionary {
+    static final TagDictionary GLOBAL = new TagDictionary();
+    private final ConcurrentMap<String, Integer> ids = Maps.newConcurrentMap();
+    private final List<String> names = Lists.newArrayList();
+
+    TagDictionary() {
+    }
+
+    /**
+     * @return id of the given tag, a new one if the tag was not seen before
+     */
+    int intern(String tag) {
+        Integer id = ids.get(tag);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(tag);
+            if (id == null) {
+                id = names.size();
+                names.add(tag);
+                ids.put(tag, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return the tag with the given id
+     */
+    synchronized String nameOf(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * @return set of ids of the given tags, interning the tags which were not seen before
+     */
+    BitSet encode(Collection<String> tags) {
+        BitSet result = new BitSet();
+        for (String tag : tags) {
+            result.set(intern(tag));
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return names.size();
+    }
+}
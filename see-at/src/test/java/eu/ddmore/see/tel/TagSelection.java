@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Selection of test scripts by their tags ('Tags' header). Either
+ * <ul>
+ *   <li>a boolean expression over tag names, e.g. <code>(mdl or UseCase1) and not bootstrap</code>, with operators <code>not</code>,
+ *   <code>and</code>, <code>or</code> (in order of precedence) and parentheses. A tag name may contain <code>*</code> wildcards, e.g.
+ *   <code>UseCase1_*</code>. The expression is compiled once, tag names are interned in {@link TagDictionary#GLOBAL} and evaluated
+ *   against tag ids of test scripts.</li>
+ *   <li>or, for compatibility, the inclusion and exclusion regular expressions matched against the whole 'Tags' header value. The result
+ *   is remembered for each distinct header value, so that each value is matched only once.</li>
+ * </ul>
+ * Instances are thread-safe.
+ */
+abstract class TagSelection {
+    private static final Pattern TOKEN = Pattern.compile("\\s*(\\(|\\)|[^\\s()]+)");
+
+    /**
+     * @return true if the test script is selected
+     */
+    abstract boolean selects(TestScriptMetadata metadata);
+
+    /**
+     * @return the boolean expression selection from 'at.tags' system property or, if it is not set, the regular expressions selection
+     * from 'tagsInclusionPattern' and 'tagsExclusionPattern' system properties
+     */
+    static TagSelection fromSystemProperties() {
+        String expression = System.getProperty("at.tags", "");
+        if (StringUtils.isNotBlank(expression)) {
+            return compile(expression);
+        }
+        return regex(System.getProperty("tagsInclusionPattern", ".*"), System.getProperty("tagsExclusionPattern", ""));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    static TagSelection compile(String expression) {
+        List<String> tokens = Lists.newArrayList();
+        Matcher m = TOKEN.matcher(expression);
+        int end = 0;
+        while (m.find() && m.start() == end) {
+            tokens.add(m.group(1));
+            end = m.end();
+        }
+        Preconditions.checkArgument(expression.substring(end).trim().isEmpty(), String.format("Malformed tag selection [%s].", expression));
+        Parser parser = new Parser(expression, tokens);
+        TagSelection result = parser.parseOr();
+        Preconditions.checkArgument(parser.position == tokens.size(), String.format("Unexpected '%s' in tag selection [%s].",
+            parser.peek(), expression));
+        return result;
+    }
+
+    static TagSelection regex(String inclusionPattern, String exclusionPattern) {
+        return new RegexSelection(Pattern.compile(inclusionPattern), Pattern.compile(exclusionPattern));
+    }
+
+    /**
+     * Recursive descent parser of the boolean expression
+     */
+    private static class Parser {
+        private final String expression;
+        private final List<String> tokens;
+        private int position = 0;
+
+        Parser(String expression, List<String> tokens) {
+            this.expression = expression;
+            this.tokens = tokens;
+        }
+
+        String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private boolean accept(String keyword) {
+            if (keyword.equalsIgnoreCase(peek())) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        TagSelection parseOr() {
+            TagSelection left = parseAnd();
+            while (accept("or")) {
+                left = new Or(left, parseAnd());
+            }
+            return left;
+        }
+
+        private TagSelection parseAnd() {
+            TagSelection left = parseNot();
+            while (accept("and")) {
+                left = new And(left, parseNot());
+            }
+            return left;
+        }
+
+        private TagSelection parseNot() {
+            if (accept("not")) {
+                return new Not(parseNot());
+            }
+            String token = peek();
+            Preconditions.checkArgument(token != null, String.format("Unexpected end of tag selection [%s].", expression));
+            position++;
+            if (token.equals("(")) {
+                TagSelection inner = parseOr();
+                Preconditions.checkArgument(accept(")"), String.format("Missing ')' in tag selection [%s].", expression));
+                return inner;
+            }
+            Preconditions.checkArgument(!token.equals(")") && !token.equalsIgnoreCase("and") && !token.equalsIgnoreCase("or"),
+                String.format("Unexpected '%s' in tag selection [%s].", token, expression));
+            return token.contains("*") ? new Wildcard(token) : new Tag(token);
+        }
+    }
+
+    private static class Tag extends TagSelection {
+        private final String name;
+        private final int id;
+
+        Tag(String name) {
+            this.name = name;
+            this.id = TagDictionary.GLOBAL.intern(name);
+        }
+
+        @Override
+        boolean selects(TestScriptMetadata metadata) {
+            return metadata.hasTag(id);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A tag name with wildcards, whether a tag matches it is remembered for each tag
+     */
+    private static class Wildcard extends TagSelection {
+        private final String glob;
+        private final Pattern pattern;
+        private final ConcurrentMap<String, Boolean> matches = Maps.newConcurrentMap();
+
+        Wildcard(String glob) {
+            this.glob = glob;
+            this.pattern = Pattern.compile(Pattern.quote(glob).replace("*", "\\E.*\\Q"));
+        }
+
+        @Override
+        boolean selects(TestScriptMetadata metadata) {
+            for (String tag : metadata.getTagNames()) {
+                Boolean match = matches.get(tag);
+                if (match == null) {
+                    match = pattern.matcher(tag).matches();
+                    matches.put(tag, match);
+                }
+                if (match) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return glob;
+        }
+    }
+
+    private static class Not extends TagSelection {
+        private final TagSelection operand;
+
+        Not(TagSelection operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean selects(TestScriptMetadata metadata) {
+            return !operand.selects(metadata);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("not %s", operand);
+        }
+    }
+
+    private static class And extends TagSelection {
+        private final TagSelection left;
+        private final TagSelection right;
+
+        And(TagSelection left, TagSelection right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean selects(TestScriptMetadata metadata) {
+            return left.selects(metadata) && right.selects(metadata);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(%s and %s)", left, right);
+        }
+    }
+
+    private static class Or extends TagSelection {
+        private final TagSelection left;
+        private final TagSelection right;
+
+        Or(TagSelection left, TagSelection right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean selects(TestScriptMetadata metadata) {
+            return left.selects(metadata) || right.selects(metadata);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(%s or %s)", left, right);
+        }
+    }
+
+    /**
+     * Compatibility with 'tagsInclusionPattern' and 'tagsExclusionPattern' properties
+     */
+    private static class RegexSelection extends TagSelection {
+        private final Pattern inclusion;
+        private final Pattern exclusion;
+        private final ConcurrentMap<String, Boolean> results = Maps.newConcurrentMap();
+
+        RegexSelection(Pattern inclusion, Pattern exclusion) {
+            this.inclusion = inclusion;
+            this.exclusion = exclusion;
+        }
+
+        @Override
+        boolean selects(TestScriptMetadata metadata) {
+            String tags = metadata.getTag(TestScriptMetadata.TAGS_TAG);
+            Boolean result = results.get(tags);
+            if (result == null) {
+                result = inclusion.matcher(tags).matches() && !exclusion.matcher(tags).matches();
+                results.put(tags, result);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("tags matching [%s] and not matching [%s]", inclusion, exclusion);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link TagSelection}
+ */
+public class TagSelectionTest {
+
+    private static TestScriptMetadata script(String tags) {
+        return new TestScriptMetadata(Paths.get("test.script.R"), 0, 0, Collections.singletonMap(TestScriptMetadata.TAGS_TAG, tags));
+    }
+
+    private static boolean selects(String expression, String tags) {
+        return TagSelection.compile(expression).selects(script(tags));
+    }
+
+    @Test
+    public void shouldSelectBySingleTag() {
+        assertTrue(selects("mdl", "mdl, nonmem"));
+        assertFalse(selects("mdl", "nonmem"));
+    }
+
+    @Test
+    public void shouldNotMatchTagByPrefix() {
+        assertFalse(selects("mdl", "mdl2"));
+    }
+
+    @Test
+    public void shouldBindAndTighterThanOr() {
+        // a or (b and c)
+        assertTrue(selects("a or b and c", "a"));
+        assertFalse(selects("a or b and c", "b"));
+        assertTrue(selects("a or b and c", "b, c"));
+        assertEquals("(a or (b and c))", TagSelection.compile("a or b and c").toString());
+    }
+
+    @Test
+    public void shouldBindNotTighterThanAnd() {
+        // (not a) and b
+        assertTrue(selects("not a and b", "b"));
+        assertFalse(selects("not a and b", "a, b"));
+        assertFalse(selects("not a and b", "c"));
+    }
+
+    @Test
+    public void shouldOverridePrecedenceWithParentheses() {
+        assertFalse(selects("(a or b) and c", "a"));
+        assertTrue(selects("(a or b) and c", "a, c"));
+        assertTrue(selects("not (a or b)", "c"));
+        assertFalse(selects("not (a or b)", "b"));
+    }
+
+    @Test
+    public void shouldAcceptParenthesesWithoutSpaces() {
+        assertTrue(selects("(mdl or UseCase1)and not bootstrap", "UseCase1"));
+        assertFalse(selects("(mdl or UseCase1)and not bootstrap", "UseCase1, bootstrap"));
+    }
+
+    @Test
+    public void shouldAcceptOperatorsInAnyCase() {
+        assertTrue(selects("a AND NOT b", "a"));
+        assertTrue(selects("a Or b", "b"));
+    }
+
+    @Test
+    public void shouldMatchWildcards() {
+        assertTrue(selects("UseCase1_*", "UseCase1_1"));
+        assertTrue(selects("UseCase1_*", "UseCase1_"));
+        assertFalse(selects("UseCase1_*", "UseCase10"));
+        assertTrue(selects("*mix", "monolix, nonmix"));
+        assertTrue(selects("Use*_2", "UseCase5_2"));
+        assertFalse(selects("Use*_2", "UseCase5_21"));
+    }
+
+    @Test
+    public void shouldNotTreatRegexCharactersInWildcardsSpecially() {
+        assertTrue(selects("v1.0*", "v1.0.2"));
+        assertFalse(selects("v1.0*", "v1x0"));
+    }
+
+    @Test
+    public void shouldCombineWildcardsWithOperators() {
+        assertTrue(selects("UseCase* and not *_slow", "UseCase3"));
+        assertFalse(selects("UseCase* and not *_slow", "UseCase3, nonmem_slow"));
+    }
+
+    @Test
+    public void shouldRejectMalformedExpressions() {
+        for (String expression : new String[] { "a and", "and a", "a or or b", "(a", "a)", "()", "not", "a b", "a (b)" }) {
+            try {
+                TagSelection.compile(expression);
+                fail(String.format("Expression [%s] should have been rejected.", expression));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
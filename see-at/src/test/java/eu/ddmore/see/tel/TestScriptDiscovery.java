@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Identifies test scripts in test projects.
+ * <p>
+ * Test project directories are traversed concurrently, as a fork-join task per directory. Directories which names match
+ * the skip pattern (e.g. R temporary directories) and the explicitly excluded directories (e.g. the test harness working directory)
+ * are not traversed.
+ * <p>
+ * The result is deterministic - projects and their scripts are sorted by path.
+ */
+class TestScriptDiscovery {
+    private static final Logger LOG = Logger.getLogger(TestScriptDiscovery.class);
+    private final Pattern scriptNamePattern;
+    private final Pattern skipDirectoryPattern;
+    private final Set<Path> excludedDirectories;
+    private final TagSelection selection;
+    private final TestScriptMetadataIndex scriptsIndex;
+    /** Test scripts which were not selected by their tags */
+    private final Queue<Path> excluded = new ConcurrentLinkedQueue<Path>();
+
+    /**
+     * @param scriptNamePattern - regular expression matching test script file names
+     * @param skipDirectoryPattern - regular expression matching names of directories that should not be traversed
+     * @param excludedDirectories - directories that should not be traversed
+     * @param selection - selection of test scripts by their tags, test scripts without tags are always selected
+     * @param scriptsIndex - the source of test scripts' tags
+     */
+    TestScriptDiscovery(String scriptNamePattern, String skipDirectoryPattern, Collection<File> excludedDirectories, TagSelection selection,
+            TestScriptMetadataIndex scriptsIndex) {
+        this.scriptNamePattern = Pattern.compile(scriptNamePattern);
+        this.skipDirectoryPattern = Pattern.compile(skipDirectoryPattern);
+        ImmutableSet.Builder<Path> excluded = ImmutableSet.builder();
+        for (File dir : excludedDirectories) {
+            excluded.add(dir.getAbsoluteFile().toPath().normalize());
+        }
+        this.excludedDirectories = excluded.build();
+        this.selection = selection;
+        this.scriptsIndex = scriptsIndex;
+    }
+
+    /**
+     * @return test projects found in the given location mapped to test scripts they contain
+     */
+    Map<File, List<Path>> discover(File testProjectsLocation) {
+        File[] testProjects = testProjectsLocation.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        Preconditions.checkNotNull(testProjects, String.format("No test projects found in %s", testProjectsLocation));
+        LOG.debug(String.format("Test Script selection : [%s]", selection));
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        excluded.clear();
+        Map<File, DirectoryTask> tasks = Maps.newTreeMap();
+        for (File testProject : testProjects) {
+            tasks.put(testProject, new DirectoryTask(testProject.getAbsoluteFile().toPath()));
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        Map<File, List<Path>> result = Maps.newTreeMap();
+        int scriptsCount = 0;
+        try {
+            for (DirectoryTask task : tasks.values()) {
+                pool.execute(task);
+            }
+            for (Map.Entry<File, DirectoryTask> en : tasks.entrySet()) {
+                List<Path> scripts = en.getValue().join();
+                Collections.sort(scripts);
+                result.put(en.getKey(), scripts);
+                scriptsCount += scripts.size();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        stopWatch.stop();
+        LOG.info(String.format("Discovered %s test scripts in %s test projects in %s ms, %s test scripts were not selected by [%s].", scriptsCount,
+            result.size(), stopWatch.getTime(), excluded.size(), selection));
+        return result;
+    }
+
+    /**
+     * @return test scripts found by the last discovery which were not selected by their tags, sorted by path
+     */
+    List<Path> getExcluded() {
+        List<Path> result = Lists.newArrayList(excluded);
+        Collections.sort(result);
+        return result;
+    }
+
+    private boolean isSelected(Path file, BasicFileAttributes attrs) {
+        TestScriptMetadata metadata = scriptsIndex.get(file, attrs);
+        LOG.debug(String.format("Test Script's %s tags are: %s.", file.getFileName(), metadata.getTag(TestScriptMetadata.TAGS_TAG)));
+        return metadata.getTagNames().isEmpty() || selection.selects(metadata);
+    }
+
+    private boolean isSkipped(Path dir) {
+        return skipDirectoryPattern.matcher(dir.getFileName().toString()).matches() || excludedDirectories.contains(dir.normalize());
+    }
+
+    /**
+     * Identifies test scripts in a directory, forking a sub-task for each sub-directory.
+     */
+    private class DirectoryTask extends RecursiveTask<List<Path>> {
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+
+        DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected List<Path> compute() {
+            List<Path> scripts = Lists.newArrayList();
+            List<DirectoryTask> subTasks = Lists.newArrayList();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        if (isSkipped(entry)) {
+                            LOG.trace(String.format("Skipping directory %s.", entry));
+                        } else {
+                            subTasks.add(new DirectoryTask(entry));
+                        }
+                    } else if (scriptNamePattern.matcher(entry.getFileName().toString()).matches()) {
+                        if (isSelected(entry, attrs)) {
+                            LOG.debug(String.format("Found test script %s.", entry.getFileName()));
+                            scripts.add(entry);
+                        } else {
+                            LOG.trace(String.format("Path %s was explicitly ignored by include/exclude mechanism.", entry.getFileName()));
+                            excluded.add(entry);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Failed to visit directory %s.", directory), e);
+            }
+            invokeAll(subTasks);
+            for (DirectoryTask subTask : subTasks) {
+                scripts.addAll(subTask.join());
+            }
+            return scripts;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Dependencies of test scripts within their test projects, declared by 'DependsOn:' and 'Isolated:' tags.
+ * <p>
+ * Test scripts without these tags are executed one after another in their test project's working directory, as they always were.
+ * A test script that declares either of the tags is 'detached' - it is executed in its own copy of the working directory, as soon as all the
+ * test scripts it depends on have passed, concurrently with other test scripts of the test project. Its working directory is
+ * <ul>
+ *   <li>a copy of the working directory of the first test script it depends on, taken once that test script has passed</li>
+ *   <li>a freshly provisioned working directory if it is 'Isolated: true' or if it does not depend on any test script</li>
+ * </ul>
+ * Dependencies on test scripts which are not executed (e.g. excluded by tags) are ignored.
+ * <p>
+ * Instances are immutable.
+ */
+class TestScriptGraph {
+    private static final Logger LOG = Logger.getLogger(TestScriptGraph.class);
+    private final Map<String, Node> nodes;
+
+    private TestScriptGraph(Map<String, Node> nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * @param parameters - test projects and their test scripts (test project path, test project name, test script path relative to the test
+     * project)
+     * @param metadata - metadata of test scripts, by test script's absolute path
+     */
+    static TestScriptGraph build(List<Object[]> parameters, Map<Path, TestScriptMetadata> metadata) {
+        Map<String, Node> nodes = Maps.newLinkedHashMap();
+        for (Object[] parameter : parameters) {
+            String project = (String) parameter[1];
+            String script = FilenameUtils.separatorsToUnix(((Path) parameter[2]).toString());
+            TestScriptMetadata scriptMetadata = metadata.get(((Path) parameter[0]).resolve((Path) parameter[2]));
+            List<String> dependsOn = scriptMetadata == null ? Collections.<String> emptyList() : scriptMetadata.getDependsOn();
+            boolean isolated = scriptMetadata != null && scriptMetadata.isIsolated();
+            String tags = scriptMetadata == null ? "" : scriptMetadata.getTag(TestScriptMetadata.TAGS_TAG);
+            nodes.put(id(project, script), new Node(project, script, tags, dependsOn, isolated));
+        }
+        for (Node node : nodes.values()) {
+            for (String dependency : node.dependsOn) {
+                String prerequisite = id(node.project, dependency);
+                if (!nodes.containsKey(prerequisite)) {
+                    LOG.warn(String.format("Test script %s depends on %s which is not executed, the dependency is ignored.", node.id, prerequisite));
+                } else if (!prerequisite.equals(node.id)) {
+                    node.prerequisites.add(prerequisite);
+                }
+            }
+        }
+        return new TestScriptGraph(nodes);
+    }
+
+    static String id(String project, String script) {
+        return String.format("%s/%s", project, script);
+    }
+
+    /**
+     * Reorders the parameters, so that each test script follows all test scripts it depends on, keeping the order otherwise. Each
+     * parameter gets the test script's {@link Node} appended.
+     *
+     * @throws IllegalStateException if the dependencies are cyclic
+     */
+    List<Object[]> order(List<Object[]> parameters) {
+        Map<String, Object[]> pending = Maps.newLinkedHashMap();
+        for (Object[] parameter : parameters) {
+            pending.put(id((String) parameter[1], FilenameUtils.separatorsToUnix(((Path) parameter[2]).toString())), parameter);
+        }
+        List<Object[]> result = Lists.newArrayList();
+        Set<String> done = Sets.newHashSet();
+        while (!pending.isEmpty()) {
+            String ready = null;
+            for (String id : pending.keySet()) {
+                if (done.containsAll(nodes.get(id).prerequisites)) {
+                    ready = id;
+                    break;
+                }
+            }
+            Preconditions.checkState(ready != null, String.format("Dependencies of test scripts %s are cyclic.", pending.keySet()));
+            Object[] parameter = pending.remove(ready);
+            Object[] ordered = new Object[parameter.length + 1];
+            System.arraycopy(parameter, 0, ordered, 0, parameter.length);
+            ordered[parameter.length] = nodes.get(ready);
+            result.add(ordered);
+            done.add(ready);
+        }
+        return result;
+    }
+
+    /**
+     * @return detached test scripts whose working directory is a copy of the given test script's one
+     */
+    List<Node> getInheritors(Node node) {
+        List<Node> result = Lists.newArrayList();
+        for (Node candidate : nodes.values()) {
+            if (node.id.equals(candidate.getWorkspaceSource())) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return test scripts grouped by test project, for logging
+     */
+    ListMultimap<String, Node> getDetached() {
+        ListMultimap<String, Node> result = ArrayListMultimap.create();
+        for (Node node : nodes.values()) {
+            if (node.isDetached()) {
+                result.put(node.project, node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A test script in the graph, it is a {@link ParallelProjectsRunner.Task} so that the runner can execute it once its prerequisites
+     * have completed.
+     */
+    static class Node implements ParallelProjectsRunner.Task {
+        private final String id;
+        private final String project;
+        private final String script;
+        private final String tags;
+        private final List<String> dependsOn;
+        private final boolean isolated;
+        /** Ids of the executed test scripts this one depends on */
+        private final List<String> prerequisites = Lists.newArrayList();
+
+        private Node(String project, String script, String tags, List<String> dependsOn, boolean isolated) {
+            this.id = id(project, script);
+            this.project = project;
+            this.script = script;
+            this.tags = tags;
+            this.dependsOn = dependsOn;
+            this.isolated = isolated;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the test script's path relative to its test project, with '/' separators
+         */
+        String getScript() {
+            return script;
+        }
+
+        /**
+         * @return value of the test script's 'Tags:' header
+         */
+        String getTags() {
+            return tags;
+        }
+
+        @Override
+        public Collection<String> getTagNames() {
+            return TestScriptMetadata.splitTagNames(tags);
+        }
+
+        /**
+         * @return the test project for test scripts executed in test project's working directory, the test script itself for detached ones
+         */
+        @Override
+        public String getLane() {
+            return isDetached() ? id : project;
+        }
+
+        @Override
+        public Collection<String> getPrerequisites() {
+            return Collections.unmodifiableList(prerequisites);
+        }
+
+        /**
+         * @return true if the test script is executed in its own working directory
+         */
+        boolean isDetached() {
+            return isolated || !dependsOn.isEmpty();
+        }
+
+        /**
+         * @return id of the test script whose working directory is copied for this test script or null if it gets a fresh working directory
+         */
+        String getWorkspaceSource() {
+            return isolated || prerequisites.isEmpty() ? null : prerequisites.get(0);
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+}
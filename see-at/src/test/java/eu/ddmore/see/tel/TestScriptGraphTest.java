@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests {@link TestScriptGraph}
+ */
+public class TestScriptGraphTest {
+    private static final Path PROJECT = Paths.get("/test-projects/Project");
+    private static final String PROJECT_NAME = "Project";
+    private List<Object[]> parameters;
+    private Map<Path, TestScriptMetadata> metadata;
+
+    @Before
+    public void setUp() {
+        parameters = Lists.newArrayList();
+        metadata = Maps.newHashMap();
+    }
+
+    /**
+     * Adds a test script of the test project with the given tags, each tag given as name followed by its value.
+     */
+    private void script(String script, String... tags) {
+        Path path = Paths.get(script);
+        Map<String, String> values = Maps.newHashMap();
+        for (int i = 0; i < tags.length; i += 2) {
+            values.put(tags[i], tags[i + 1]);
+        }
+        parameters.add(new Object[] { PROJECT, PROJECT_NAME, path });
+        metadata.put(PROJECT.resolve(path), new TestScriptMetadata(PROJECT.resolve(path), 0, 0, values));
+    }
+
+    private TestScriptGraph graph() {
+        return TestScriptGraph.build(parameters, metadata);
+    }
+
+    private static List<String> scripts(List<Object[]> ordered) {
+        List<String> result = Lists.newArrayList();
+        for (Object[] parameter : ordered) {
+            result.add(((TestScriptGraph.Node) parameter[3]).getScript());
+        }
+        return result;
+    }
+
+    private TestScriptGraph.Node node(List<Object[]> ordered, String script) {
+        for (Object[] parameter : ordered) {
+            TestScriptGraph.Node node = (TestScriptGraph.Node) parameter[3];
+            if (node.getScript().equals(script)) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Test script %s is not in the graph.", script));
+    }
+
+    @Test
+    public void shouldKeepOrderOfIndependentTestScripts() {
+        script("c.R");
+        script("a.R");
+        script("b.R");
+
+        List<Object[]> ordered = graph().order(parameters);
+
+        assertEquals(Arrays.asList("c.R", "a.R", "b.R"), scripts(ordered));
+        for (Object[] parameter : ordered) {
+            TestScriptGraph.Node node = (TestScriptGraph.Node) parameter[3];
+            assertFalse(node.isDetached());
+            assertEquals(PROJECT_NAME, node.getLane());
+        }
+    }
+
+    @Test
+    public void shouldMoveTestScriptsAfterTheirPrerequisitesKeepingOrderOtherwise() {
+        script("estimate.R", TestScriptMetadata.DEPENDS_ON_TAG, "convert.R");
+        script("simulate.R", TestScriptMetadata.DEPENDS_ON_TAG, "estimate.R, convert.R");
+        script("other.R");
+        script("convert.R");
+
+        List<Object[]> ordered = graph().order(parameters);
+
+        assertEquals(Arrays.asList("other.R", "convert.R", "estimate.R", "simulate.R"), scripts(ordered));
+        // the original parameters are kept
+        assertEquals(PROJECT, ordered.get(0)[0]);
+        assertEquals(PROJECT_NAME, ordered.get(0)[1]);
+        assertEquals(Paths.get("other.R"), ordered.get(0)[2]);
+    }
+
+    @Test
+    public void shouldInheritWorkspaceOfTheFirstPrerequisite() {
+        script("convert.R");
+        script("fit.R");
+        script("estimate.R", TestScriptMetadata.DEPENDS_ON_TAG, "fit.R, convert.R");
+        script("fresh.R", TestScriptMetadata.DEPENDS_ON_TAG, "convert.R", TestScriptMetadata.ISOLATED_TAG, "true");
+        TestScriptGraph graph = graph();
+        List<Object[]> ordered = graph.order(parameters);
+
+        TestScriptGraph.Node estimate = node(ordered, "estimate.R");
+        assertEquals(Arrays.asList("Project/fit.R", "Project/convert.R"), Lists.newArrayList(estimate.getPrerequisites()));
+        assertEquals("Project/fit.R", estimate.getWorkspaceSource());
+        assertTrue(estimate.isDetached());
+        assertEquals("Project/estimate.R", estimate.getLane());
+        assertEquals(Arrays.asList(estimate), graph.getInheritors(node(ordered, "fit.R")));
+        // an isolated test script gets a fresh working directory even if it depends on other test scripts
+        TestScriptGraph.Node fresh = node(ordered, "fresh.R");
+        assertNull(fresh.getWorkspaceSource());
+        assertTrue(fresh.isDetached());
+        assertEquals(Collections.<TestScriptGraph.Node> emptyList(), graph.getInheritors(node(ordered, "convert.R")));
+    }
+
+    @Test
+    public void shouldIgnoreDependenciesOnTestScriptsWhichAreNotExecuted() {
+        script("estimate.R", TestScriptMetadata.DEPENDS_ON_TAG, "excluded.R");
+        script("self.R", TestScriptMetadata.DEPENDS_ON_TAG, "self.R");
+
+        List<Object[]> ordered = graph().order(parameters);
+
+        assertEquals(Arrays.asList("estimate.R", "self.R"), scripts(ordered));
+        TestScriptGraph.Node estimate = node(ordered, "estimate.R");
+        assertTrue(estimate.getPrerequisites().isEmpty());
+        assertNull(estimate.getWorkspaceSource());
+        // declaring a dependency still detaches the test script
+        assertTrue(estimate.isDetached());
+        assertTrue(node(ordered, "self.R").getPrerequisites().isEmpty());
+    }
+
+    @Test
+    public void shouldResolveDependenciesWithinTheTestProject() {
+        Path otherProject = Paths.get("/test-projects/Other");
+        parameters.add(new Object[] { otherProject, "Other", Paths.get("convert.R") });
+        script("estimate.R", TestScriptMetadata.DEPENDS_ON_TAG, "convert.R");
+
+        List<Object[]> ordered = graph().order(parameters);
+
+        assertTrue(node(ordered, "estimate.R").getPrerequisites().isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectCyclicDependencies() {
+        script("a.R", TestScriptMetadata.DEPENDS_ON_TAG, "c.R");
+        script("b.R", TestScriptMetadata.DEPENDS_ON_TAG, "a.R");
+        script("c.R", TestScriptMetadata.DEPENDS_ON_TAG, "b.R");
+        script("independent.R");
+
+        graph().order(parameters);
+    }
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Metadata of a test script - its size, modification time and the tags declared in its header.
+ * <p>
+ * The header is the block of comment (and blank) lines at the beginning of the script, tags are declared in it as
+ * <pre>
+ * # Key: value
+ * </pre>
+ * Instances are immutable.
+ */
+class TestScriptMetadata {
+    static final String TAGS_TAG = "Tags";
+    static final String ORDER_TAG = "Order";
+    static final String DEPENDS_ON_TAG = "DependsOn";
+    static final String ISOLATED_TAG = "Isolated";
+    private static final Pattern HEADER_TAG_PATTERN = Pattern.compile("\\s*#+\\s*([A-Za-z][\\w.-]*):\\s*(.+)");
+    private static final String COMMENT_PREFIX = "#";
+    private static final Splitter TAG_NAMES_SPLITTER = Splitter.onPattern("[,;\\s]+").omitEmptyStrings();
+    private final Path path;
+    private final long size;
+    private final long lastModified;
+    private final Map<String, String> tags;
+    /** Ids (in {@link TagDictionary#GLOBAL}) of the tags listed in 'Tags' tag, never modified */
+    private final BitSet tagIds;
+
+    TestScriptMetadata(Path path, long size, long lastModified, Map<String, String> tags) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.tags = Collections.unmodifiableMap(Maps.newLinkedHashMap(tags));
+        this.tagIds = TagDictionary.GLOBAL.encode(getTagNames());
+    }
+
+    /**
+     * Reads the header block of the given script.
+     */
+    static TestScriptMetadata read(Path script, BasicFileAttributes attrs) {
+        Map<String, String> tags = Maps.newLinkedHashMap();
+        try (BufferedReader reader = Files.newBufferedReader(script, Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                if (!trimmed.startsWith(COMMENT_PREFIX)) {
+                    // end of the header block
+                    break;
+                }
+                Matcher m = HEADER_TAG_PATTERN.matcher(line);
+                if (m.matches() && !tags.containsKey(m.group(1))) {
+                    tags.put(m.group(1), m.group(2).trim());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Could not read test script %s.", script), e);
+        }
+        return new TestScriptMetadata(script, attrs.size(), attrs.lastModifiedTime().toMillis(), tags);
+    }
+
+    /**
+     * @return true if the metadata still describes the script with the given attributes
+     */
+    boolean isUpToDate(BasicFileAttributes attrs) {
+        return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    Map<String, String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return value of the given tag or empty string if the tag is not declared
+     */
+    String getTag(String tag) {
+        return StringUtils.defaultString(tags.get(tag));
+    }
+
+    /**
+     * @return value of 'Order' tag or {@link Integer#MAX_VALUE} if the order is not declared
+     */
+    int getOrder() {
+        String value = getTag(ORDER_TAG);
+        if (StringUtils.isBlank(value)) {
+            return Integer.MAX_VALUE;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * @return tags listed in 'Tags' tag (separated by commas, semicolons or whitespace), empty if the tag is not declared
+     */
+    List<String> getTagNames() {
+        return splitTagNames(getTag(TAGS_TAG));
+    }
+
+    static List<String> splitTagNames(String tags) {
+        return Lists.newArrayList(TAG_NAMES_SPLITTER.split(tags));
+    }
+
+    /**
+     * @param id - id of a tag in {@link TagDictionary#GLOBAL}
+     * @return true if the tag is listed in 'Tags' tag
+     */
+    boolean hasTag(int id) {
+        return tagIds.get(id);
+    }
+
+    /**
+     * @return test scripts (paths relative to the test project) listed in comma separated 'DependsOn' tag, empty if the tag is not declared
+     */
+    List<String> getDependsOn() {
+        return Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(getTag(DEPENDS_ON_TAG)));
+    }
+
+    /**
+     * @return value of 'Isolated' tag, false if it is not declared
+     */
+    boolean isIsolated() {
+        return Boolean.parseBoolean(getTag(ISOLATED_TAG));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TestScriptMetadata [path=%s, size=%s, lastModified=%s, tags=%s]", path, size, lastModified, tags);
+    }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Persistent index of {@link TestScriptMetadata}.
+ * <p>
+ * The index is stored in a file (by default in 'cache.path' directory) and test scripts are re-read only if their size or
+ * modification time differ from the ones recorded in the index.
+ * <p>
+ * The file holds a line per test script with tab-separated fields:
+ * <pre>
+ * path size lastModified [key value]...
+ * </pre>
+ * Instances are thread-safe.
+ */
+class TestScriptMetadataIndex {
+    private static final Logger LOG = Logger.getLogger(TestScriptMetadataIndex.class);
+    static final String INDEX_FILE_NAME = "see-at/test-scripts.index";
+    private static final char FIELD_SEPARATOR = '\t';
+    private final File indexFile;
+    private final ConcurrentMap<Path, TestScriptMetadata> entries = Maps.newConcurrentMap();
+    private final AtomicInteger rereadCount = new AtomicInteger();
+
+    TestScriptMetadataIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Creates index backed by the file located in the given cache directory and loads its contents.
+     */
+    static TestScriptMetadataIndex load(File cacheDirectory) {
+        TestScriptMetadataIndex index = new TestScriptMetadataIndex(new File(cacheDirectory, INDEX_FILE_NAME));
+        index.load();
+        return index;
+    }
+
+    /**
+     * Loads the index file, a corrupted or unreadable index file results in empty index.
+     */
+    void load() {
+        entries.clear();
+        if (!indexFile.exists()) {
+            LOG.debug(String.format("Test scripts index %s does not exist.", indexFile));
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                TestScriptMetadata metadata = parse(line);
+                entries.put(metadata.getPath(), metadata);
+            }
+            LOG.debug(String.format("Loaded %s entries from test scripts index %s.", entries.size(), indexFile));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(String.format("Could not load test scripts index %s, the index will be rebuilt.", indexFile), e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return metadata of the given test script, the script is read only if the index does not hold up-to-date metadata
+     */
+    TestScriptMetadata get(Path script) {
+        Path key = script.toAbsolutePath();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Could not read attributes of test script %s.", script), e);
+        }
+        return get(key, attrs);
+    }
+
+    /**
+     * @return metadata of the given test script with the given attributes,
+     * the script is read only if the index does not hold up-to-date metadata
+     */
+    TestScriptMetadata get(Path script, BasicFileAttributes attrs) {
+        Path key = script.toAbsolutePath();
+        TestScriptMetadata metadata = entries.get(key);
+        if (metadata == null || !metadata.isUpToDate(attrs)) {
+            metadata = TestScriptMetadata.read(key, attrs);
+            entries.put(key, metadata);
+            rereadCount.incrementAndGet();
+        }
+        return metadata;
+    }
+
+    /**
+     * Stores the index in the file, entries of the test scripts that no longer exist are discarded.
+     */
+    synchronized void save() throws IOException {
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException(String.format("Could not create directory %s.", parent));
+        }
+        File tmpFile = new File(parent, indexFile.getName() + ".tmp");
+        int saved = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            for (TestScriptMetadata metadata : entries.values()) {
+                if (!Files.exists(metadata.getPath())) {
+                    continue;
+                }
+                writer.write(format(metadata));
+                writer.newLine();
+                saved++;
+            }
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        LOG.debug(String.format("Saved %s entries to test scripts index %s (%s scripts were (re)read).", saved, indexFile, rereadCount.get()));
+    }
+
+    File getIndexFile() {
+        return indexFile;
+    }
+
+    private static String format(TestScriptMetadata metadata) {
+        List<Object> fields = Lists.newArrayList();
+        fields.add(metadata.getPath());
+        fields.add(metadata.getSize());
+        fields.add(metadata.getLastModified());
+        for (Entry<String, String> en : metadata.getTags().entrySet()) {
+            fields.add(sanitize(en.getKey()));
+            fields.add(sanitize(en.getValue()));
+        }
+        return Joiner.on(FIELD_SEPARATOR).join(fields);
+    }
+
+    private static TestScriptMetadata parse(String line) {
+        List<String> fields = Lists.newArrayList(Splitter.on(FIELD_SEPARATOR).split(line));
+        if (fields.size() < 3 || fields.size() % 2 == 0) {
+            throw new IllegalArgumentException(String.format("Malformed test scripts index entry [%s].", line));
+        }
+        Map<String, String> tags = Maps.newLinkedHashMap();
+        for (int i = 3; i < fields.size(); i += 2) {
+            tags.put(fields.get(i), fields.get(i + 1));
+        }
+        return new TestScriptMetadata(Paths.get(fields.get(0)), Long.parseLong(fields.get(1)), Long.parseLong(fields.get(2)), tags);
+    }
+
+    private static String sanitize(String value) {
+        return value.replace(FIELD_SEPARATOR, ' ');
+    }
+}
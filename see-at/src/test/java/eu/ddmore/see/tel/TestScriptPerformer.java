@@ -15,30 +15,31 @@
  *******************************************************************************/
 package eu.ddmore.see.tel;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.DefaultExecuteResultHandler;
 import org.apache.commons.exec.DefaultExecutor;
-import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.PumpStreamHandler;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.StopWatch;
 import org.apache.log4j.Logger;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
  * Instances of this class are responsible for executing given R script in a given working directory with Rscript.exe
+ * or, if configured, in a pre-initialised R worker (see {@link RWorkerPool}).
  */
 class TestScriptPerformer {
 
@@ -46,14 +47,24 @@ class TestScriptPerformer {
     private static final String STDOUT_FILE_EXT = "stdout";
     private static final String STDERR_FILE_EXT = "stderr";
     static final String PID_FILE_EXT = "PID";
-    private static final String R_TMP_DIRECTORY_SUFFIX = ".Rtmp";
+    static final String RDATA_FILE_EXT = "RData";
+    static final String R_TMP_DIRECTORY_SUFFIX = ".Rtmp";
     private static final String R_TMP_DIR_ENV_VARIABLE = "TMPDIR";
     private static final String OUTPUT_SEPARATOR_LINE = StringUtils.repeat("=", 80);
-    private static Long PROCESS_TIMEOUT = TimeUnit.MINUTES.toMillis(Long.parseLong(System.getProperty("testscript.timeout")));
+    static Long PROCESS_TIMEOUT = TimeUnit.MINUTES.toMillis(Long.parseLong(System.getProperty("testscript.timeout")));
+    private static final ScriptOutput.Config OUTPUT_CONFIG = ScriptOutput.Config.fromSystemProperties();
+    private static final long TERMINATION_GRACE_PERIOD = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("at.process.terminationGracePeriod", "10")));
+    private static final long SAMPLING_INTERVAL = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("at.metrics.interval", "1")));
     private boolean dryRun;
     private File workingDirectory;
     private File scriptPath;
     private File rscriptExecutable;
+    private RWorkerPool workerPool;
+    private ArtifactArchive artifactArchive;
+    private OutputAnalyzer outputAnalyzer;
+    private long timeout = PROCESS_TIMEOUT;
+    private long duration;
+    private ResourceSampler.Usage resourceUsage;
 
     TestScriptPerformer(File scriptPath, File workingDirectory) {
         this.workingDirectory = workingDirectory;
@@ -67,119 +78,149 @@ class TestScriptPerformer {
         Map<String, String> env = Maps.newHashMap();
         env.putAll(System.getenv());
 
-        DefaultExecutor executor = createCommandExecutor();
+        ProcessSupervisor supervisor = new ProcessSupervisor(scriptPath.getName(), TERMINATION_GRACE_PERIOD);
+        DefaultExecutor executor = supervisor.getExecutor();
         executor.setWorkingDirectory(workingDirectory);
         Path relativeScriptLocation = workingDirectory.toPath().relativize(scriptPath.toPath());
         File tmpDir = new File(workingDirectory, relativeScriptLocation.toString() + R_TMP_DIRECTORY_SUFFIX);
-        if (!tmpDir.exists()) {
-            Preconditions.checkState(tmpDir.mkdirs(), String.format("Could not create R tmp directory %s.", tmpDir));
+        // R's temporary directory is set when R starts, R workers use their own one
+        if (workerPool == null) {
+            if (!tmpDir.exists()) {
+                Preconditions.checkState(tmpDir.mkdirs(), String.format("Could not create R tmp directory %s.", tmpDir));
+            }
+            env.put(R_TMP_DIR_ENV_VARIABLE, tmpDir.getAbsolutePath());
         }
-        env.put(R_TMP_DIR_ENV_VARIABLE, tmpDir.getAbsolutePath());
         File stdoutFile = new File(workingDirectory, relativeScriptLocation.toString() + "." + STDOUT_FILE_EXT);
         File stderrFile = new File(workingDirectory, relativeScriptLocation.toString() + "." + STDERR_FILE_EXT);
-        File pidFile = new File(workingDirectory, relativeScriptLocation.toString() + "." + PID_FILE_EXT);
+        File metricsFile = new File(workingDirectory, relativeScriptLocation.toString() + "." + ResourceSampler.METRICS_FILE_EXT);
+        supervisor.setPidFile(new File(workingDirectory, relativeScriptLocation.toString() + "." + PID_FILE_EXT));
+        String consolePrefix = FilenameUtils.separatorsToUnix(relativeScriptLocation.toString());
+        ScriptOutput stdout = new ScriptOutput(stdoutFile, System.out, consolePrefix, OUTPUT_CONFIG);
+        ScriptOutput stderr = new ScriptOutput(stderrFile, System.err, consolePrefix, OUTPUT_CONFIG);
+        boolean passed = false;
         try {
-            try (BufferedOutputStream stdoutOS = new BufferedOutputStream(new TeeOutputStream(new FileOutputStream(stdoutFile), System.out));
-                    BufferedOutputStream stderrOS = new BufferedOutputStream(new TeeOutputStream(new FileOutputStream(stderrFile),
-                            System.err))) {
+            try (ScriptOutput stdoutLog = stdout; ScriptOutput stderrLog = stderr;
+                    OutputStream stdoutOS = analyzed(stdoutLog); OutputStream stderrOS = analyzed(stderrLog)) {
                 PumpStreamHandler pumpStreamHandler = new PumpStreamHandler(stdoutOS, stderrOS);
                 executor.setStreamHandler(pumpStreamHandler);
+                ResourceSampler sampler = SAMPLING_INTERVAL > 0 && !isDryRun() ? new ResourceSampler(SAMPLING_INTERVAL) : null;
                 StopWatch stopWatch = new StopWatch();
                 stopWatch.start();
-                DefaultExecuteResultHandler resultHandler = new DefaultExecuteResultHandler();
                 try {
                     if (isDryRun()) {
                         LOG.debug("Skipping test script execution.");
+                    } else if (workerPool != null) {
+                        LOG.debug(String.format("Executing %s in R worker.", scriptPath));
+                        int result = workerPool.execute(scriptPath, stdoutOS, stderrOS, timeout, sampler, outputAnalyzer);
+                        if (result != 0) {
+                            throw new Exception(String.format("Test script failed in R worker with result %s.", result));
+                        }
                     } else {
-                        executor.execute(cmdLine, env, resultHandler);
-                        monitorProgress(executor, resultHandler, pidFile);
+                        if (sampler != null) {
+                            sampler.start(supervisor);
+                        }
+                        if (outputAnalyzer != null) {
+                            outputAnalyzer.setSupervisor(supervisor);
+                        }
+                        int exitValue = supervisor.execute(cmdLine, env, timeout);
+                        if (exitValue != 0) {
+                            throw new Exception(String.format("External process exited with non-zero exit value %s.", exitValue));
+                        }
                     }
                 } finally {
                     stopWatch.stop();
+                    duration = stopWatch.getTime();
                     LOG.info(String.format("Execution of %s script took %s s.", scriptPath,
                         TimeUnit.MILLISECONDS.toSeconds(stopWatch.getTime())));
+                    if (sampler != null) {
+                        recordResourceUsage(sampler, metricsFile);
+                    }
                 }
             }
+            passed = true;
 
         } catch (Exception e) {
-            throw new Exception(String.format("Error when executing %s.\n STDOUT: [%s]\n[%s]\n[%s]\n STDERR: [%s]\n[%s]\n[%s]\n ", scriptPath,
-                OUTPUT_SEPARATOR_LINE, FileUtils.readFileToString(stdoutFile), OUTPUT_SEPARATOR_LINE, OUTPUT_SEPARATOR_LINE, FileUtils.readFileToString(stderrFile), OUTPUT_SEPARATOR_LINE), e);
+            // only the tail of the output is included, the full output is in the log files
+            throw new Exception(String.format("Error when executing %s.\n STDOUT (%s): [%s]\n[%s]\n[%s]\n STDERR (%s): [%s]\n[%s]\n[%s]\n ", scriptPath,
+                stdout.getLogFile(), OUTPUT_SEPARATOR_LINE, stdout.getTail(), OUTPUT_SEPARATOR_LINE, stderr.getLogFile(), OUTPUT_SEPARATOR_LINE,
+                stderr.getTail(), OUTPUT_SEPARATOR_LINE), e);
+        } finally {
+            if (artifactArchive != null && !isDryRun()) {
+                File rDataFile = new File(workingDirectory, relativeScriptLocation.toString() + "." + RDATA_FILE_EXT);
+                // the log files may be compressed and rotated
+                List<File> artifacts = Lists.newArrayList(rDataFile, tmpDir);
+                artifacts.addAll(stdout.getLogFiles());
+                artifacts.addAll(stderr.getLogFiles());
+                artifactArchive.submit(consolePrefix, passed, artifacts);
+            }
         }
     }
 
     /**
-     * This method performs monitoring of the external process. Since WatchDog can't be relied on this method actively polls
-     * for running process and enforces process destruction if timeout is reached.
-     * This approach is even suggested by https://commons.apache.org/proper/commons-exec/apidocs/org/apache/commons/exec/ExecuteWatchdog.html
-     * @param pidFile 
-     * @param externalProcessInput 
+     * @return the stream the output is pumped to, a copy of the output goes to the output analyzer if it is set
      */
-    private void monitorProgress(DefaultExecutor executor, DefaultExecuteResultHandler resultHandler, File pidFile) throws Exception {
-        boolean monitor = true;
-        long waitedSoFar = 0l;
-        long step = TimeUnit.SECONDS.toMillis(20);
-        while (monitor) {
-            waitedSoFar += step;
-            resultHandler.waitFor(step);
-            if (resultHandler.hasResult()) {
-                break;
-            }
-            if (waitedSoFar > PROCESS_TIMEOUT) {
-                LOG.error("Attempting to destroy external process...");
-                /* We invoke destroyProcess method, but this is not guaranteed to work and sometimes results in a detachment from the external process.
-                 * There is also no easy way of sending SIGINT signal to an external process on Windows platform hence we can't guarantee that
-                 * the external process actually stops.
-                 * 
-                 * Here we can only give some time to an external process to shut down. We accept this resource leak just because
-                 * in this particular case even if the Rscript being run was killed underlying NONMEM execution would still run anyway
-                 * (since DDMoRe connectors do not support cancellation).
-                 */
-                executor.getWatchdog().destroyProcess();
-                if (waitedSoFar > (PROCESS_TIMEOUT + step)) {
-                    monitor = false;
-                    LOG.error("The external process did not stop using Commons Exec.");
-                    killProcess(pidFile);
-                }
-            }
-        }
-        if (executor.getWatchdog().killedProcess()) {
-            throw new IllegalStateException("The process timed out.");
-        } else {
-            if (executor.isFailure(resultHandler.getExitValue())) {
-                throw new Exception("External process exited with non-zero exit value.");
-            }
+    private OutputStream analyzed(ScriptOutput output) {
+        if (outputAnalyzer == null) {
+            // the log stream must be closed only once
+            return new CloseShieldOutputStream(output);
         }
+        return new TeeOutputStream(new CloseShieldOutputStream(output), outputAnalyzer.createStream());
     }
 
-    private void killProcess(File pidFile) {
-        String pid;
-        try {
-            pid = FileUtils.readFileToString(pidFile);
-        } catch (IOException e1) {
-            throw new RuntimeException(String.format("Could not read process PID file %s.", pidFile));
-        }
-        String killCommand = String.format("powershell Stop-Process %s", pid);
-        LOG.info(String.format("Attempting to kill process using command [%s].", killCommand));
+    private void recordResourceUsage(ResourceSampler sampler, File metricsFile) {
+        resourceUsage = sampler.stop();
+        LOG.info(String.format("Resource usage of %s script: %s.", scriptPath, resourceUsage));
         try {
-            DefaultExecutor executor = createCommandExecutor();
-            int exitCode = executor.execute(CommandLine.parse(killCommand));
-            LOG.info(String.format("Kill command returned %s", exitCode));
-        } catch (Exception e) {
-            throw new RuntimeException(String.format("Could not stop process with PID [%s].", pid));
+            resourceUsage.write(metricsFile);
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not write resource usage to %s.", metricsFile), e);
         }
+    }
 
+    public void setRscriptExecutable(File rscriptExecutable) {
+        this.rscriptExecutable = rscriptExecutable;
     }
 
-    private DefaultExecutor createCommandExecutor() {
-        DefaultExecutor executor = new DefaultExecutor();
-        executor.setExitValue(0);
-        ExecuteWatchdog watchdog = new ExecuteWatchdog(ExecuteWatchdog.INFINITE_TIMEOUT);
-        executor.setWatchdog(watchdog);
-        return executor;
+    /**
+     * @param workerPool - if set, the script is executed by one of the pool's R workers rather than by a new Rscript process
+     */
+    public void setWorkerPool(RWorkerPool workerPool) {
+        this.workerPool = workerPool;
     }
 
-    public void setRscriptExecutable(File rscriptExecutable) {
-        this.rscriptExecutable = rscriptExecutable;
+    /**
+     * @param artifactArchive - if set, the script's artifacts are handed over to the archive once the script has finished
+     */
+    public void setArtifactArchive(ArtifactArchive artifactArchive) {
+        this.artifactArchive = artifactArchive;
+    }
+
+    /**
+     * @param outputAnalyzer - if set, the script's output is analysed while it runs and the script is terminated if fatal output is detected
+     */
+    public void setOutputAnalyzer(OutputAnalyzer outputAnalyzer) {
+        this.outputAnalyzer = outputAnalyzer;
+    }
+
+    /**
+     * @param timeout - time (in milliseconds) after which the test script is considered as hanged, {@link #PROCESS_TIMEOUT} by default
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return duration (in milliseconds) of the last execution
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return resource usage of the last execution or null if it was not sampled
+     */
+    public ResourceSampler.Usage getResourceUsage() {
+        return resourceUsage;
     }
 
     public boolean isDryRun() {
@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.junit.runner.Description;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Watch mode of the test harness, for iterating on test projects locally without paying the start-up of the harness and SEE in each iteration.
+ * <p>
+ * The test scripts are discovered and executed once, then the watcher keeps watching the test projects. When files of test projects change,
+ * the changed files are updated in the existing working directories (rather than the working directories being created again) and the
+ * test scripts of the changed test projects are executed again - test scripts of all test projects if a shared test project changed.
+ * Test scripts of a test project are always executed together, since they share the working directory. The fake SEE, the R workers
+ * (at.execution.mode=WORKER_POOL) and the SEE services started before the watcher stay up between the rounds. A pass/fail and timing summary
+ * is logged after each round.
+ * <p>
+ * New test scripts and changes of test scripts' headers are picked up when the watcher is restarted.
+ * <p>
+ * Configured by 'at.watch.*' system properties and the properties of the test harness, see test.properties.
+ * <p>
+ * Usage: TestScriptWatcher, or, from see-at directory: mvn verify -P watch
+ */
+class TestScriptWatcher {
+    private static final Logger LOG = Logger.getLogger(TestScriptWatcher.class);
+    /** Number of changed files listed in a round's summary */
+    private static final int LISTED_CHANGES = 5;
+    private final Path testProjectsLocation;
+    private final List<Object[]> parameters;
+    private final long quietPeriod;
+    private final int maxRounds;
+    private final Pattern skipDirectoryPattern;
+    private final Pattern scriptNamePattern;
+    private final Set<Path> excludedDirectories;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = Maps.newHashMap();
+    private int round = 0;
+
+    /**
+     * @param testProjectsLocation - directory with the test projects
+     * @param parameters - the discovered test scripts, as produced by {@link ExecuteTestProjectAT#getTestProjects()}
+     * @param quietPeriod - time (in milliseconds) without changes after which a round starts, editors save files in several steps
+     * @param maxRounds - number of rounds after which the watcher stops, 0 if it watches until it is interrupted
+     * @param skipDirectoryPattern - regular expression matching names of directories that are not watched
+     * @param excludedDirectories - directories that are not watched, e.g. the working directories if they are within the test projects location
+     */
+    TestScriptWatcher(File testProjectsLocation, List<Object[]> parameters, long quietPeriod, int maxRounds, String skipDirectoryPattern,
+            Collection<File> excludedDirectories) throws IOException {
+        this.testProjectsLocation = testProjectsLocation.getAbsoluteFile().toPath().normalize();
+        this.parameters = parameters;
+        this.quietPeriod = quietPeriod;
+        this.maxRounds = maxRounds;
+        this.skipDirectoryPattern = Pattern.compile(skipDirectoryPattern);
+        this.scriptNamePattern = Pattern.compile(ExecuteTestProjectAT.TEST_SCRIPT_NAME_PATTERN);
+        ImmutableSet.Builder<Path> excluded = ImmutableSet.builder();
+        for (File dir : excludedDirectories) {
+            excluded.add(dir.getAbsoluteFile().toPath().normalize());
+        }
+        this.excludedDirectories = excluded.build();
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Object[]> parameters = Lists.newArrayList(ExecuteTestProjectAT.getTestProjects());
+        if (parameters.isEmpty()) {
+            LOG.info("No test scripts to execute, nothing to watch.");
+            return;
+        }
+        long quietPeriod = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("at.watch.quietPeriod", "2")));
+        int maxRounds = Integer.parseInt(System.getProperty("at.watch.rounds", "0"));
+        Preconditions.checkArgument(maxRounds >= 0, String.format("at.watch.rounds must not be negative, was %s.", maxRounds));
+        TestScriptWatcher watcher = new TestScriptWatcher(new File(System.getProperty("test.projects")), parameters, quietPeriod, maxRounds,
+            System.getProperty("at.discovery.skipDirectories", ExecuteTestProjectAT.SKIP_DIRECTORIES_PATTERN),
+            Lists.newArrayList(new File(ExecuteTestProjectAT.AT_WORKING_DIRECTORY), ExecuteTestProjectAT.getCacheLocation()));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ExecuteTestProjectAT.endRounds();
+                } catch (InterruptedException | IOException e) {
+                    LOG.warn("Could not close the test harness.", e);
+                }
+            }
+        });
+        watcher.watch();
+        ExecuteTestProjectAT.endRounds();
+        // the R workers are stopped by their shutdown hook
+        System.exit(0);
+    }
+
+    /**
+     * Executes all test scripts and then the test scripts affected by changes, until the maximum number of rounds is reached.
+     */
+    void watch() throws IOException, InterruptedException {
+        register(testProjectsLocation);
+        LOG.info(String.format("Watching %s directories of %s.", watchedDirectories.size(), testProjectsLocation));
+        execute(parameters, "all test scripts");
+        while (maxRounds == 0 || round < maxRounds) {
+            SetMultimap<File, Path> changes = awaitChanges();
+            for (Map.Entry<File, Path> change : changes.entries()) {
+                ExecuteTestProjectAT.updateWorkspaces(change.getKey(), change.getValue());
+            }
+            List<Object[]> affected = selectAffected(changes);
+            if (!affected.isEmpty()) {
+                execute(affected, describe(changes));
+            }
+        }
+        watchService.close();
+    }
+
+    private void execute(List<Object[]> roundParameters, String reason) {
+        round++;
+        LOG.info(String.format("Round %s: executing %s test scripts (%s).", round, roundParameters.size(), reason));
+        ExecuteTestProjectAT.startRound(roundParameters);
+        RoundListener listener = new RoundListener();
+        JUnitCore junit = new JUnitCore();
+        junit.addListener(listener);
+        Result result = junit.run(ExecuteTestProjectAT.class);
+        LOG.info(String.format("Round %s (%s): %s passed, %s failed, %s skipped in %s s.\n%s", round, reason, listener.count(Outcome.PASSED),
+            listener.count(Outcome.FAILED), listener.count(Outcome.SKIPPED), TimeUnit.MILLISECONDS.toSeconds(result.getRunTime()),
+            listener.toTable()));
+    }
+
+    /**
+     * Waits for changes in the test projects and collects them until there are no more changes for the quiet period.
+     * @return the changed test projects and the paths (relative to the test project) of their changed files
+     */
+    private SetMultimap<File, Path> awaitChanges() throws IOException, InterruptedException {
+        SetMultimap<File, Path> changes = LinkedHashMultimap.create();
+        WatchKey key = watchService.take();
+        while (key != null) {
+            Path directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    LOG.warn(String.format("Some changes in %s were lost, restart the watcher if the test projects are out of date.", directory));
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (isSkipped(path)) {
+                        continue;
+                    }
+                    register(path);
+                }
+                Path relative = testProjectsLocation.relativize(path);
+                // files directly in the test projects location don't belong to any test project
+                if (relative.getNameCount() > 1) {
+                    changes.put(testProjectsLocation.resolve(relative.getName(0)).toFile(), relative.subpath(1, relative.getNameCount()));
+                }
+            }
+            if (!key.reset()) {
+                // the directory was deleted
+                watchedDirectories.remove(key);
+            }
+            key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS);
+        }
+        return changes;
+    }
+
+    /**
+     * @return test scripts of the changed test projects, or all test scripts if a shared test project changed, in the execution order
+     */
+    private List<Object[]> selectAffected(SetMultimap<File, Path> changes) {
+        boolean sharedChanged = false;
+        Set<Path> knownScripts = Sets.newHashSet();
+        for (Object[] parameter : parameters) {
+            knownScripts.add(((Path) parameter[0]).resolve((Path) parameter[2]).normalize());
+        }
+        for (Map.Entry<File, Path> change : changes.entries()) {
+            sharedChanged |= ExecuteTestProjectAT.isSharedProject(change.getKey());
+            Path file = change.getKey().toPath().resolve(change.getValue());
+            if (scriptNamePattern.matcher(file.getFileName().toString()).matches() && Files.exists(file) && !knownScripts.contains(file)) {
+                LOG.warn(String.format("Test script %s is not executed, new test scripts are picked up when the watcher is restarted.", file));
+            }
+        }
+        List<Object[]> result = Lists.newArrayList();
+        for (Object[] parameter : parameters) {
+            if (sharedChanged || changes.containsKey(((Path) parameter[0]).toAbsolutePath().normalize().toFile())) {
+                result.add(parameter);
+            }
+        }
+        return result;
+    }
+
+    private static String describe(SetMultimap<File, Path> changes) {
+        List<String> files = Lists.newArrayList();
+        for (Map.Entry<File, Path> change : changes.entries()) {
+            files.add(String.format("%s/%s", change.getKey().getName(), change.getValue()).replace('\\', '/'));
+        }
+        String listed = StringUtils.join(files.subList(0, Math.min(files.size(), LISTED_CHANGES)), ", ");
+        return files.size() > LISTED_CHANGES ? String.format("changed %s and %s more", listed, files.size() - LISTED_CHANGES)
+            : String.format("changed %s", listed);
+    }
+
+    /**
+     * Registers the directory and its sub-directories with the watch service, apart from the skipped directories.
+     */
+    private void register(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(testProjectsLocation) && isSkipped(dir)) {
+                    return SKIP_SUBTREE;
+                }
+                watchedDirectories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return CONTINUE;
+            }
+        });
+    }
+
+    private boolean isSkipped(Path dir) {
+        return skipDirectoryPattern.matcher(dir.getFileName().toString()).matches() || excludedDirectories.contains(dir.normalize());
+    }
+
+    private enum Outcome {
+        PASSED, FAILED, SKIPPED
+    }
+
+    /**
+     * Collects outcomes and durations of the test scripts executed in a round, test scripts of different test projects may be executed
+     * concurrently.
+     */
+    private static class RoundListener extends RunListener {
+        private final Map<Description, Long> started = Maps.newConcurrentMap();
+        private final Map<Description, Outcome> outcomes = Maps.newConcurrentMap();
+        private final Map<Description, String> messages = Maps.newConcurrentMap();
+        /** Lines of the summary, in the order in which the test scripts completed */
+        private final List<String> lines = Lists.newArrayList();
+        private final Map<Outcome, Integer> counts = Maps.newEnumMap(Outcome.class);
+
+        @Override
+        public void testStarted(Description description) {
+            started.put(description, System.currentTimeMillis());
+        }
+
+        @Override
+        public void testFailure(Failure failure) {
+            outcomes.put(failure.getDescription(), Outcome.FAILED);
+            messages.put(failure.getDescription(), StringUtils.abbreviate(StringUtils.substringBefore(
+                StringUtils.defaultString(failure.getMessage(), failure.getException().getClass().getSimpleName()), "\n"), 120));
+        }
+
+        @Override
+        public void testAssumptionFailure(Failure failure) {
+            outcomes.put(failure.getDescription(), Outcome.SKIPPED);
+            messages.put(failure.getDescription(), StringUtils.defaultString(failure.getMessage()));
+        }
+
+        @Override
+        public void testFinished(Description description) {
+            Long start = started.remove(description);
+            long duration = start == null ? 0 : System.currentTimeMillis() - start;
+            Outcome outcome = outcomes.containsKey(description) ? outcomes.get(description) : Outcome.PASSED;
+            String message = messages.containsKey(description) ? "  " + messages.get(description) : "";
+            synchronized (this) {
+                counts.put(outcome, count(outcome) + 1);
+                // the method name is 'shouldSuccessfulyExecuteTestScript[<index>: <project> -> <script>]'
+                lines.add(String.format("  %-7s %8.1f s  %s%s", outcome, duration / 1000.0,
+                    StringUtils.substringAfter(StringUtils.substringBetween(description.getMethodName(), "[", "]"), ": "), message));
+            }
+        }
+
+        synchronized int count(Outcome outcome) {
+            return counts.containsKey(outcome) ? counts.get(outcome) : 0;
+        }
+
+        synchronized String toTable() {
+            return StringUtils.join(lines, "\n");
+        }
+    }
+}
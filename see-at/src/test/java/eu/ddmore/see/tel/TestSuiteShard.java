@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+
+/**
+ * A shard of the acceptance test suite, so that the suite can be split across multiple build nodes, each executing one shard.
+ * <p>
+ * The suite is split at test project granularity (test scripts of a test project share working directory). Test projects are assigned
+ * to shards greedily, the longest first, each to the shard with the least estimated duration so far (the longest processing time
+ * heuristic). Ties are resolved by project name and shard index, so all nodes compute the same partition as long as they see the same
+ * test projects and the same estimates. The partition's fingerprint is written to {@value #PARTITION_FILE_NAME} file next to the timings
+ * report, so that {@link ShardReportMerger} can detect shards which computed different partitions.
+ */
+class TestSuiteShard {
+    static final String INDEX_PROPERTY = "at.shard.index";
+    static final String COUNT_PROPERTY = "at.shard.count";
+    static final String PARTITION_FILE_NAME = "shard.partition";
+    private final int index;
+    private final int count;
+
+    /**
+     * @param index - index of the shard, from 0 to count - 1
+     * @param count - number of shards
+     */
+    TestSuiteShard(int index, int count) {
+        Preconditions.checkArgument(count > 0, String.format("%s must be a positive number, was %s.", COUNT_PROPERTY, count));
+        Preconditions.checkArgument(index >= 0 && index < count, String.format("%s must be between 0 and %s, was %s.", INDEX_PROPERTY, count - 1, index));
+        this.index = index;
+        this.count = count;
+    }
+
+    static TestSuiteShard fromSystemProperties() {
+        return new TestSuiteShard(Integer.parseInt(System.getProperty(INDEX_PROPERTY, "0")), Integer.parseInt(System.getProperty(COUNT_PROPERTY, "1")));
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    boolean isWholeSuite() {
+        return count == 1;
+    }
+
+    /**
+     * @param projectEstimates - estimated durations of all test projects of the suite
+     * @return names of test projects of each shard
+     */
+    List<List<String>> partition(final Map<String, Long> projectEstimates) {
+        List<String> projects = Lists.newArrayList(projectEstimates.keySet());
+        Collections.sort(projects, new Comparator<String>() {
+            @Override
+            public int compare(String left, String right) {
+                int durationOrder = Long.compare(projectEstimates.get(right), projectEstimates.get(left));
+                return durationOrder != 0 ? durationOrder : left.compareTo(right);
+            }
+        });
+        List<List<String>> shards = Lists.newArrayList();
+        long[] loads = new long[count];
+        for (int i = 0; i < count; i++) {
+            shards.add(Lists.<String> newArrayList());
+        }
+        for (String project : projects) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[lightest]) {
+                    lightest = i;
+                }
+            }
+            shards.get(lightest).add(project);
+            loads[lightest] += projectEstimates.get(project);
+        }
+        return shards;
+    }
+
+    /**
+     * @return fingerprint of the partition, the same for the same assignment of test projects to shards
+     */
+    static String fingerprint(List<List<String>> partition) {
+        StringBuilder text = new StringBuilder();
+        for (List<String> projects : partition) {
+            List<String> sorted = Lists.newArrayList(projects);
+            Collections.sort(sorted);
+            text.append(Joiner.on(',').join(sorted)).append('\n');
+        }
+        return Hashing.sha256().hashString(text, Charsets.UTF_8).toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("shard %s of %s", index, count);
+    }
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests {@link TestSuiteShard}
+ */
+public class TestSuiteShardTest {
+    private static final int MAX_SHARDS = 6;
+
+    /**
+     * @return estimates of the test projects, inserted in random order
+     */
+    private static Map<String, Long> estimates(int projects, long seed) {
+        List<Integer> order = Lists.newArrayList();
+        for (int i = 0; i < projects; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(seed));
+        Map<String, Long> result = Maps.newLinkedHashMap();
+        for (int i : order) {
+            // a few duplicate estimates, so that ties have to be resolved
+            result.put(String.format("Project-%02d", i), (long) (1 + (i * 7919) % 50));
+        }
+        return result;
+    }
+
+    @Test
+    public void shouldAssignEachTestProjectToExactlyOneShard() {
+        Map<String, Long> estimates = estimates(25, 0);
+        for (int count = 1; count <= MAX_SHARDS; count++) {
+            List<List<String>> partition = new TestSuiteShard(0, count).partition(estimates);
+            assertEquals(count, partition.size());
+            Set<String> assigned = Sets.newHashSet();
+            int total = 0;
+            for (List<String> shard : partition) {
+                assigned.addAll(shard);
+                total += shard.size();
+            }
+            assertEquals(estimates.keySet(), assigned);
+            assertEquals(estimates.size(), total);
+        }
+    }
+
+    @Test
+    public void shouldComputeTheSamePartitionOnAllShards() {
+        for (int count = 1; count <= MAX_SHARDS; count++) {
+            List<List<String>> expected = new TestSuiteShard(0, count).partition(estimates(25, 0));
+            for (int index = 0; index < count; index++) {
+                // each node may discover the test projects in a different order
+                List<List<String>> partition = new TestSuiteShard(index, count).partition(estimates(25, index + 1));
+                assertEquals(expected, partition);
+                assertEquals(TestSuiteShard.fingerprint(expected), TestSuiteShard.fingerprint(partition));
+            }
+        }
+    }
+
+    @Test
+    public void shouldBalanceTheShards() {
+        Map<String, Long> estimates = estimates(25, 0);
+        long longest = Collections.max(estimates.values());
+        for (int count = 1; count <= MAX_SHARDS; count++) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (List<String> shard : new TestSuiteShard(0, count).partition(estimates)) {
+                long load = 0;
+                for (String project : shard) {
+                    load += estimates.get(project);
+                }
+                min = Math.min(min, load);
+                max = Math.max(max, load);
+            }
+            // a test project is always assigned to the least loaded shard
+            assertTrue(String.format("Shards' loads differ by %s with %s shards.", max - min, count), max - min <= longest);
+        }
+    }
+
+    @Test
+    public void shouldAssignTheLongestTestProjectsFirst() {
+        Map<String, Long> estimates = Maps.newHashMap();
+        estimates.put("a", 5L);
+        estimates.put("b", 3L);
+        estimates.put("c", 3L);
+        estimates.put("d", 2L);
+        estimates.put("e", 2L);
+        estimates.put("f", 1L);
+
+        List<List<String>> partition = new TestSuiteShard(0, 2).partition(estimates);
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "d", "f"), Arrays.asList("b", "c", "e")), partition);
+    }
+
+    @Test
+    public void shouldLeaveShardsEmptyIfThereAreFewerTestProjects() {
+        Map<String, Long> estimates = Maps.newHashMap();
+        estimates.put("a", 1L);
+
+        List<List<String>> partition = new TestSuiteShard(2, 3).partition(estimates);
+
+        assertEquals(Arrays.asList(Arrays.asList("a"), Collections.<String> emptyList(), Collections.<String> emptyList()), partition);
+    }
+
+    @Test
+    public void shouldFingerprintTheAssignmentOfTestProjects() {
+        List<List<String>> partition = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c"));
+
+        assertEquals(TestSuiteShard.fingerprint(partition), TestSuiteShard.fingerprint(Arrays.asList(Arrays.asList("b", "a"), Arrays.asList("c"))));
+        assertNotEquals(TestSuiteShard.fingerprint(partition), TestSuiteShard.fingerprint(Arrays.asList(Arrays.asList("a"), Arrays.asList("b", "c"))));
+        assertNotEquals(TestSuiteShard.fingerprint(partition), TestSuiteShard.fingerprint(Arrays.asList(Arrays.asList("c"), Arrays.asList("a", "b"))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectIndexOutOfRange() {
+        new TestSuiteShard(2, 2);
+    }
+}
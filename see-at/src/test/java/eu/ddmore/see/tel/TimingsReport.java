@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * CSV file recording execution of test scripts (a line per test script, appended as soon as the test script completes):
+ * <pre>
+ * shard,project/script,outcome,duration
+ * </pre>
+ * where duration is in milliseconds and outcome is one of {@link DurationHistory.Outcome} values.
+ * <p>
+ * Instances are thread-safe.
+ */
+class TimingsReport {
+    static final String FILE_NAME = "timings.csv";
+    static final String HEADER = "shard,script,outcome,duration";
+    private final File file;
+
+    TimingsReport(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates a new report file (with the header only).
+     */
+    static TimingsReport create(File file) throws IOException {
+        Files.write(file.toPath(), (HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+        return new TimingsReport(file);
+    }
+
+    synchronized void record(TestSuiteShard shard, File project, File script, DurationHistory.Outcome outcome, long duration) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            writer.write(new Timing(shard.getIndex(), project.getName(), FilenameUtils.separatorsToUnix(script.getPath()), outcome, duration).toString());
+            writer.newLine();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return all timings recorded in the report file
+     */
+    static List<Timing> read(File file) throws IOException {
+        List<Timing> result = Lists.newArrayList();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException(String.format("%s is not a timings report, the header is [%s].", file, line));
+            }
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    result.add(Timing.parse(line));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A test script execution
+     */
+    static class Timing {
+        final int shard;
+        final String project;
+        final String script;
+        final DurationHistory.Outcome outcome;
+        final long duration;
+
+        Timing(int shard, String project, String script, DurationHistory.Outcome outcome, long duration) {
+            this.shard = shard;
+            this.project = project;
+            this.script = script;
+            this.outcome = outcome;
+            this.duration = duration;
+        }
+
+        static Timing parse(String line) {
+            // the script is the only field which may contain commas
+            int first = line.indexOf(',');
+            int last = line.lastIndexOf(',');
+            int outcome = line.lastIndexOf(',', last - 1);
+            int separator = line.indexOf('/', first + 1);
+            if (first < 0 || outcome <= first || separator < 0 || separator > outcome) {
+                throw new IllegalArgumentException(String.format("Malformed timings report line [%s].", line));
+            }
+            return new Timing(Integer.parseInt(line.substring(0, first)), line.substring(first + 1, separator), line.substring(separator + 1, outcome),
+                DurationHistory.Outcome.valueOf(line.substring(outcome + 1, last)), Long.parseLong(line.substring(last + 1)));
+        }
+
+        @Override
+        public String toString() {
+            return Joiner.on(',').join(shard, project + "/" + script, outcome, duration);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.tel;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Populates test projects' working directories (workspaces) with test projects.
+ * <p>
+ * The project under test is always fully copied. Shared projects (the ones with the marker file) are provisioned according to the {@link Mode}
+ * their marker file ({@value #SHARED_MARKER_FILE_NAME}) declares:
+ * <pre>
+ * workspace.mode=&lt;COPY, LINK or SYMLINK, COPY by default&gt;
+ * workspace.copyPatterns=&lt;comma separated glob patterns of files which are copied in LINK mode, in addition to the run's copy patterns&gt;
+ * </pre>
+ * capped by the mode of the run (the most shared mode allowed), so a shared project is linked only if it opted in and the run allows
+ * linking. Linked files are read-only and a test script writing to one fails, so only a shared project whose test scripts don't write to
+ * its files (apart from the ones matching the copy patterns) should declare a linking mode.
+ * <ul>
+ *   <li>{@link Mode#COPY} - shared projects are fully copied into each workspace</li>
+ *   <li>{@link Mode#LINK} - a single pristine snapshot of each shared project is created for the whole run and workspaces are populated
+ *   with hard links to the snapshot's files. Snapshot files are read-only, so a test script can't write to the snapshot through a link
+ *   (unless it changes the file's permissions, which are shared by all links), files matching the copy patterns are always copied so
+ *   test scripts can write to them. The provisioner itself never changes permissions of linked files, apart from deleting them on
+ *   Windows.</li>
+ *   <li>{@link Mode#SYMLINK} - workspaces contain a symbolic link to the snapshot of each shared project. Both files and directories of
+ *   the snapshot are read-only, so test scripts can neither modify nor create files in the shared project. Test scripts which write
+ *   to a shared project need {@link Mode#LINK} with copy patterns or {@link Mode#COPY}. On Windows read-only directories don't prevent
+ *   creating files in them, so the workspaces are isolated only in the other modes.</li>
+ * </ul>
+ * If the file system does not support the links (e.g. the snapshot and the workspace are on different file systems or
+ * creating symbolic links requires privileges the user does not have) the provisioner falls back to hard links and to full copy respectively.
+ * <p>
+ * Changed files of a project can be updated in the workspaces it was provisioned into, see {@link #update(File, Path, Collection, boolean)}.
+ * Snapshot directories are made writable again by {@link #close()}, so that they can be deleted by 'mvn clean'.
+ * <p>
+ * Instances are thread-safe.
+ */
+class WorkspaceProvisioner {
+    private static final Logger LOG = Logger.getLogger(WorkspaceProvisioner.class);
+    static final String SNAPSHOTS_DIRECTORY_NAME = ".snapshots";
+    static final String SHARED_MARKER_FILE_NAME = ".shared";
+    static final String MODE_SETTING = "workspace.mode";
+    static final String COPY_PATTERNS_SETTING = "workspace.copyPatterns";
+
+    /**
+     * Provisioning modes, ordered from the least to the most shared
+     */
+    enum Mode {
+        COPY, LINK, SYMLINK
+    }
+
+    private final File snapshotsDirectory;
+    private final Mode mode;
+    private final List<PathMatcher> copyMatchers = Lists.newArrayList();
+    private final ConcurrentMap<File, FutureTask<File>> snapshots = Maps.newConcurrentMap();
+    private final ConcurrentMap<File, SharedProject> sharedProjects = Maps.newConcurrentMap();
+    private final AtomicBoolean hardLinksSupported = new AtomicBoolean(true);
+    private final AtomicBoolean symbolicLinksSupported = new AtomicBoolean(true);
+
+    /**
+     * @param snapshotsDirectory - directory where shared projects' snapshots are created, should be on the same file system as workspaces
+     * @param mode - the most shared provisioning mode of the run, shared projects are provisioned in the mode they declare up to this one
+     * @param copyPatterns - comma separated glob patterns (relative to the project directory) of files that must be copied rather than linked
+     */
+    WorkspaceProvisioner(File snapshotsDirectory, Mode mode, String copyPatterns) {
+        this.snapshotsDirectory = snapshotsDirectory.getAbsoluteFile();
+        this.mode = mode;
+        copyMatchers.addAll(toMatchers(copyPatterns));
+    }
+
+    private static List<PathMatcher> toMatchers(String patterns) {
+        List<PathMatcher> result = Lists.newArrayList();
+        for (String pattern : Splitter.on(',').trimResults().omitEmptyStrings().split(patterns)) {
+            result.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+        return result;
+    }
+
+    /**
+     * Provisions the given project into the workspace directory.
+     * @param project - the test project
+     * @param workspace - the working directory
+     * @param shared - if the project is a shared project rather than the project under test
+     */
+    void provision(File project, File workspace, boolean shared) throws IOException {
+        File target = new File(workspace, project.getName());
+        if (!shared || getSharedProject(project).mode == Mode.COPY) {
+            FileUtils.copyDirectory(project, target);
+            return;
+        }
+        File snapshot = getSnapshot(project);
+        if (getSharedProject(project).mode == Mode.SYMLINK && createSymbolicLink(target, snapshot)) {
+            return;
+        }
+        linkTree(project, snapshot, target);
+    }
+
+    /**
+     * @return provisioning settings of the shared project, read from its marker file once for the lifetime of this provisioner
+     */
+    private SharedProject getSharedProject(File project) throws IOException {
+        File key = project.getAbsoluteFile();
+        SharedProject result = sharedProjects.get(key);
+        if (result == null) {
+            Properties settings = new Properties();
+            File marker = new File(project, SHARED_MARKER_FILE_NAME);
+            if (marker.isFile()) {
+                try (Reader reader = Files.newBufferedReader(marker.toPath(), StandardCharsets.UTF_8)) {
+                    settings.load(reader);
+                }
+            }
+            Mode declared = Mode.valueOf(settings.getProperty(MODE_SETTING, Mode.COPY.name()).trim().toUpperCase());
+            Mode effective = declared.compareTo(mode) < 0 ? declared : mode;
+            List<PathMatcher> matchers = Lists.newArrayList(copyMatchers);
+            matchers.addAll(toMatchers(settings.getProperty(COPY_PATTERNS_SETTING, "")));
+            result = new SharedProject(effective, matchers);
+            SharedProject existing = sharedProjects.putIfAbsent(key, result);
+            if (existing != null) {
+                result = existing;
+            } else if (effective != Mode.COPY) {
+                LOG.info(String.format("Shared project %s is provisioned in %s mode.", project.getName(), effective));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Brings a file (or directory) of a project provisioned before up to date in the given workspaces, so that the workspaces don't have
+     * to be provisioned again when a few files of the project change. The file is removed from the workspaces if it no longer exists
+     * in the project. If the shared project's snapshot has been created, it is updated as well.
+     * @param project - the test project
+     * @param file - path of the file relative to the project
+     * @param workspaces - the working directories the project was provisioned into
+     * @param shared - if the project is a shared project rather than the project under test
+     */
+    void update(File project, Path file, Collection<File> workspaces, boolean shared) throws IOException {
+        Path source = project.toPath().resolve(file);
+        Path snapshotFile = null;
+        if (shared && snapshots.containsKey(project.getAbsoluteFile())) {
+            Path snapshot = getSnapshot(project).toPath();
+            snapshotFile = snapshot.resolve(file);
+            // the file's directory (and the ones created for it) must be writable while the file is replaced
+            for (Path directory = snapshotFile.getParent(); directory.startsWith(snapshot); directory = directory.getParent()) {
+                directory.toFile().setWritable(true);
+            }
+            replace(source, snapshotFile);
+            setReadOnly(snapshot);
+        }
+        for (File workspace : workspaces) {
+            Path projectTarget = new File(workspace, project.getName()).toPath();
+            if (snapshotFile == null) {
+                replace(source, projectTarget.resolve(file));
+            } else if (!Files.isSymbolicLink(projectTarget)) {
+                // linked to the snapshot's files, a symbolic link to the snapshot needs no update
+                Path target = projectTarget.resolve(file);
+                remove(target);
+                if (Files.isDirectory(snapshotFile)) {
+                    linkTree(project, snapshotFile.toFile(), target.toFile());
+                } else if (Files.exists(snapshotFile)) {
+                    Files.createDirectories(target.getParent());
+                    if (isCopied(project, file) || !createLink(target, snapshotFile)) {
+                        Files.copy(snapshotFile, target);
+                        target.toFile().setWritable(true);
+                    }
+                }
+            }
+        }
+        LOG.debug(String.format("Updated %s of %s in %s workspaces.", file, project.getName(), workspaces.size()));
+    }
+
+    private static void replace(Path source, Path target) throws IOException {
+        remove(target);
+        if (Files.isDirectory(source)) {
+            FileUtils.copyDirectory(source.toFile(), target.toFile());
+        } else if (Files.exists(source)) {
+            FileUtils.copyFile(source.toFile(), target.toFile());
+        }
+    }
+
+    private static void remove(Path path) throws IOException {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            delete(path.toFile());
+        } else if (Files.isSymbolicLink(path)) {
+            Files.delete(path);
+        } else if (Files.exists(path)) {
+            if (SystemUtils.IS_OS_WINDOWS) {
+                // read-only files can't be deleted on Windows
+                path.toFile().setWritable(true);
+            }
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * @return snapshot of the given project, the snapshot is created once for the lifetime of this provisioner
+     */
+    private File getSnapshot(final File project) throws IOException {
+        FutureTask<File> task = new FutureTask<>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return createSnapshot(project);
+            }
+        });
+        FutureTask<File> existing = snapshots.putIfAbsent(project.getAbsoluteFile(), task);
+        if (existing == null) {
+            task.run();
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted when waiting for snapshot of %s.", project), e);
+        } catch (ExecutionException e) {
+            throw new IOException(String.format("Could not create snapshot of %s.", project), e.getCause());
+        }
+    }
+
+    private File createSnapshot(File project) throws IOException {
+        File snapshot = new File(snapshotsDirectory, project.getName());
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        if (snapshot.exists()) {
+            // snapshot from previous run
+            delete(snapshot);
+        }
+        FileUtils.copyDirectory(project, snapshot);
+        setReadOnly(snapshot.toPath());
+        stopWatch.stop();
+        LOG.info(String.format("Created snapshot %s of shared project %s in %s ms.", snapshot, project, stopWatch.getTime()));
+        return snapshot;
+    }
+
+    private boolean createSymbolicLink(File target, File snapshot) {
+        if (!symbolicLinksSupported.get()) {
+            return false;
+        }
+        try {
+            Files.createSymbolicLink(target.toPath(), snapshot.toPath());
+            LOG.debug(String.format("Linked %s to %s.", target, snapshot));
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            if (symbolicLinksSupported.compareAndSet(true, false)) {
+                LOG.warn(String.format("Could not create symbolic link %s, falling back to hard links.", target), e);
+            }
+            return false;
+        }
+    }
+
+    private void linkTree(final File project, final File snapshot, final File target) throws IOException {
+        final Path source = snapshot.toPath();
+        final Path destination = target.toPath();
+        final AtomicInteger linked = new AtomicInteger();
+        final AtomicInteger copied = new AtomicInteger();
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(destination.resolve(source.relativize(dir)));
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relative = source.relativize(file);
+                Path targetFile = destination.resolve(relative);
+                if (!isCopied(project, relative) && createLink(targetFile, file)) {
+                    linked.incrementAndGet();
+                } else {
+                    Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING);
+                    targetFile.toFile().setWritable(true);
+                    copied.incrementAndGet();
+                }
+                return CONTINUE;
+            }
+        });
+        stopWatch.stop();
+        LOG.debug(String.format("Provisioned %s from %s in %s ms (%s files linked, %s files copied).", target, snapshot, stopWatch.getTime(),
+            linked.get(), copied.get()));
+    }
+
+    private boolean isCopied(File project, Path relative) throws IOException {
+        for (PathMatcher matcher : getSharedProject(project).copyMatchers) {
+            if (matcher.matches(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean createLink(Path link, Path existing) {
+        if (!hardLinksSupported.get()) {
+            return false;
+        }
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            if (hardLinksSupported.compareAndSet(true, false)) {
+                LOG.warn(String.format("Could not create hard link %s, falling back to copying files.", link), e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Makes directories of the created snapshots writable again, so that they can be deleted by 'mvn clean'. Their files stay read-only.
+     */
+    void close() throws IOException {
+        for (FutureTask<File> task : snapshots.values()) {
+            File snapshot;
+            try {
+                snapshot = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted when waiting for a snapshot.", e);
+            } catch (ExecutionException e) {
+                // the snapshot was not created
+                continue;
+            }
+            Files.walkFileTree(snapshot.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    dir.toFile().setWritable(true);
+                    return CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes files and directories of the snapshot read-only. Directories are made read-only after their contents.
+     */
+    private static void setReadOnly(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                file.toFile().setReadOnly();
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                dir.toFile().setReadOnly();
+                return CONTINUE;
+            }
+        });
+    }
+
+    private static class SharedProject {
+        private final Mode mode;
+        private final List<PathMatcher> copyMatchers;
+
+        SharedProject(Mode mode, List<PathMatcher> copyMatchers) {
+            this.mode = mode;
+            this.copyMatchers = copyMatchers;
+        }
+    }
+
+    /**
+     * Deletes a snapshot or a workspace. Read-only directories are made writable first, so that their contents can be deleted. Read-only
+     * files can't be deleted on Windows so they are made writable there, elsewhere permissions of files (which may be links to a snapshot's
+     * files) are left intact. Symbolic links are deleted, not followed.
+     */
+    static void delete(File snapshot) throws IOException {
+        Files.walkFileTree(snapshot.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.toFile().setWritable(true);
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (SystemUtils.IS_OS_WINDOWS && !attrs.isSymbolicLink()) {
+                    file.toFile().setWritable(true);
+                }
+                return CONTINUE;
+            }
+        });
+        FileUtils.deleteDirectory(snapshot);
+    }
+}
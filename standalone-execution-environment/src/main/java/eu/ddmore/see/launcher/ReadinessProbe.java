@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A signal that a SEE service is ready to serve requests.
+ */
+abstract class ReadinessProbe {
+
+    /**
+     * Invoked before the service is started, e.g. to remove a stale signal left by a previous run.
+     */
+    void reset() {
+    }
+
+    abstract boolean isReady();
+
+    /**
+     * The service is ready once it has created a file (e.g. FIS writes its trace file when it has started)
+     */
+    static class FileProbe extends ReadinessProbe {
+        private final File file;
+
+        FileProbe(File file) {
+            this.file = file;
+        }
+
+        @Override
+        void reset() {
+            if (file.exists() && !file.delete()) {
+                throw new IllegalStateException(String.format("Could not delete %s.", file));
+            }
+        }
+
+        @Override
+        boolean isReady() {
+            return file.exists();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("file %s", file);
+        }
+    }
+
+    /**
+     * The service is ready once it accepts TCP connections on the port
+     */
+    static class PortProbe extends ReadinessProbe {
+        private static final int TIMEOUT = 2000;
+        private final String host;
+        private final int port;
+
+        PortProbe(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * @param address - [host:]port, the host is localhost by default
+         */
+        static PortProbe parse(String address) {
+            int separator = address.lastIndexOf(':');
+            String host = separator < 0 ? "localhost" : address.substring(0, separator).trim();
+            return new PortProbe(host, Integer.parseInt(address.substring(separator + 1).trim()));
+        }
+
+        @Override
+        boolean isReady() {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+                return true;
+            } catch (IOException e) {
+                // not listening yet
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("port %s:%s", host, port);
+        }
+    }
+
+    /**
+     * Stand-in for a service without any probe, the service is assumed to be ready once the delay after its start elapsed
+     * (as the fixed wait after starting up SEE services used to do). Unlike the other probes it does not tell that the service
+     * is actually ready.
+     */
+    static class DelayProbe extends ReadinessProbe {
+        private final long delay;
+        private volatile long startedAt;
+
+        /**
+         * @param delay - time (in milliseconds) after the start of the service
+         */
+        DelayProbe(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        void reset() {
+            startedAt = System.currentTimeMillis();
+        }
+
+        @Override
+        boolean isReady() {
+            return System.currentTimeMillis() - startedAt >= delay;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("no probe, assumed ready %s s after start", TimeUnit.MILLISECONDS.toSeconds(delay));
+        }
+    }
+
+    /**
+     * The service is ready once it responds to an HTTP GET request to the URL without a server error (status below 500)
+     */
+    static class HttpProbe extends ReadinessProbe {
+        private static final int TIMEOUT = 2000;
+        private final URL url;
+
+        HttpProbe(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        boolean isReady() {
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) url.openConnection();
+                connection.setConnectTimeout(TIMEOUT);
+                connection.setReadTimeout(TIMEOUT);
+                return connection.getResponseCode() < HttpURLConnection.HTTP_INTERNAL_ERROR;
+            } catch (IOException e) {
+                // not listening yet
+                return false;
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("URL %s", url);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.launcher;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts up SEE services and waits until they are ready.
+ * <p>
+ * Services are the directories of SEE installation holding a startup script (see-service-startup.bat on Windows, see-service-startup.sh
+ * elsewhere). A service is started as soon as the services it depends on are ready (by default all services depend on FIS), so independent
+ * services start in parallel. Readiness of a service is checked by its probes (a file the service creates, a TCP port or an HTTP URL it serves),
+ * with exponential backoff. A service without any probe is assumed to be ready once a fixed delay after its start elapsed. The launcher returns
+ * as soon as all services are ready, or fails as soon as any of them fails to start or does not become ready within its timeout. Time each
+ * service took is reported in both cases.
+ * <p>
+ * On Windows the startup scripts are started by 'start' command, which exits straight away, so only the probes tell whether a service
+ * started successfully.
+ * <p>
+ * Services are configured in {@value #CONFIG_FILE_NAME} file in SEE installation directory:
+ * <pre>
+ * timeout=&lt;default timeout in seconds&gt;
+ * unprobedDelay=&lt;default delay in seconds after which a service without probes is assumed to be ready&gt;
+ * &lt;service&gt;.timeout=&lt;timeout in seconds&gt;
+ * &lt;service&gt;.readiness.file=&lt;file relative to SEE installation directory&gt;
+ * &lt;service&gt;.readiness.port=&lt;[host:]port&gt;
+ * &lt;service&gt;.readiness.url=&lt;URL&gt;
+ * &lt;service&gt;.unprobedDelay=&lt;delay in seconds&gt;
+ * &lt;service&gt;.dependsOn=&lt;comma separated names of services&gt;
+ * &lt;service&gt;.enabled=false
+ * </pre>
+ * Usage (from SEE installation directory, with the environment set up by SEE startup script):
+ * <pre>
+ * java -jar see-launcher.jar [arguments of Windows 'start' command, e.g. /B]
+ * </pre>
+ */
+public class SeeLauncher {
+    static final String CONFIG_FILE_NAME = "see-launcher.properties";
+    static final String FIS = "fis";
+    private static final String FIS_TRACE_FILE = "fis/fis.trace";
+    private static final long DEFAULT_TIMEOUT = 60;
+    /** The fixed wait for SEE services used before the launcher existed */
+    private static final long DEFAULT_UNPROBED_DELAY = 20;
+    private static final long INITIAL_POLL_INTERVAL = 100;
+    private static final long MAX_POLL_INTERVAL = 2000;
+    private final List<Service> services;
+    private final List<String> startArguments;
+    private final boolean windows;
+
+    enum Status {
+        STARTING, READY, FAILED, TIMED_OUT, SKIPPED
+    }
+
+    SeeLauncher(List<Service> services, List<String> startArguments, boolean windows) {
+        this.services = services;
+        this.startArguments = startArguments;
+        this.windows = windows;
+    }
+
+    public static void main(String[] args) {
+        File seeHome = new File(System.getProperty("see.home", ".")).getAbsoluteFile().toPath().normalize().toFile();
+        boolean windows = System.getProperty("os.name").toLowerCase(Locale.ENGLISH).startsWith("windows");
+        try {
+            List<Service> services = discover(seeHome, loadConfig(seeHome), windows);
+            System.exit(new SeeLauncher(services, Arrays.asList(args), windows).launch() ? 0 : 1);
+        } catch (IOException | RuntimeException e) {
+            System.err.println(String.format("Failed to start up SEE services: %s", e.getMessage()));
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    static Properties loadConfig(File seeHome) throws IOException {
+        Properties config = new Properties();
+        File configFile = new File(seeHome, CONFIG_FILE_NAME);
+        if (configFile.exists()) {
+            try (InputStream is = configFile.toURI().toURL().openStream()) {
+                config.load(is);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return enabled services of the SEE installation
+     */
+    static List<Service> discover(File seeHome, Properties config, boolean windows) throws IOException {
+        final String scriptName = Service.STARTUP_SCRIPT_NAME + (windows ? ".bat" : ".sh");
+        File[] directories = seeHome.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return new File(file, scriptName).isFile();
+            }
+        });
+        if (directories == null) {
+            throw new IOException(String.format("%s is not a directory.", seeHome));
+        }
+        Arrays.sort(directories);
+        Set<String> names = new HashSet<>();
+        for (File directory : directories) {
+            names.add(directory.getName());
+        }
+        long defaultTimeout = Long.parseLong(config.getProperty("timeout", String.valueOf(DEFAULT_TIMEOUT)));
+        long defaultUnprobedDelay = Long.parseLong(config.getProperty("unprobedDelay", String.valueOf(DEFAULT_UNPROBED_DELAY)));
+        List<Service> result = new ArrayList<>();
+        for (File directory : directories) {
+            String name = directory.getName();
+            if (!Boolean.parseBoolean(config.getProperty(name + ".enabled", "true"))) {
+                continue;
+            }
+            List<ReadinessProbe> probes = new ArrayList<>();
+            String file = config.getProperty(name + ".readiness.file", FIS.equals(name) ? FIS_TRACE_FILE : "").trim();
+            if (!file.isEmpty()) {
+                probes.add(new ReadinessProbe.FileProbe(new File(seeHome, file)));
+            }
+            String port = config.getProperty(name + ".readiness.port", "").trim();
+            if (!port.isEmpty()) {
+                probes.add(ReadinessProbe.PortProbe.parse(port));
+            }
+            String url = config.getProperty(name + ".readiness.url", "").trim();
+            if (!url.isEmpty()) {
+                probes.add(new ReadinessProbe.HttpProbe(new URL(url)));
+            }
+            long unprobedDelay = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty(name + ".unprobedDelay",
+                String.valueOf(defaultUnprobedDelay))));
+            if (probes.isEmpty() && unprobedDelay > 0) {
+                System.out.println(String.format("Service %s has no readiness probe, it is assumed to be ready %s s after its start.", name,
+                    TimeUnit.MILLISECONDS.toSeconds(unprobedDelay)));
+                probes.add(new ReadinessProbe.DelayProbe(unprobedDelay));
+            }
+            List<String> dependencies = new ArrayList<>();
+            String defaultDependencies = !FIS.equals(name) && names.contains(FIS) ? FIS : "";
+            for (String dependency : config.getProperty(name + ".dependsOn", defaultDependencies).split(",")) {
+                if (!dependency.trim().isEmpty()) {
+                    dependencies.add(dependency.trim());
+                }
+            }
+            long timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty(name + ".timeout", String.valueOf(defaultTimeout))));
+            result.add(new Service(name, seeHome, new File(directory, scriptName), probes, dependencies, timeout));
+        }
+        validate(result);
+        return result;
+    }
+
+    /**
+     * Checks that all dependencies exist and there are no dependency cycles
+     */
+    private static void validate(List<Service> services) {
+        Map<String, Service> byName = new LinkedHashMap<>();
+        for (Service service : services) {
+            byName.put(service.getName(), service);
+        }
+        for (Service service : services) {
+            for (String dependency : service.getDependencies()) {
+                if (!byName.containsKey(dependency)) {
+                    throw new IllegalArgumentException(String.format("Service %s depends on %s which does not exist or is not enabled.", service.getName(), dependency));
+                }
+            }
+        }
+        Set<String> resolved = new HashSet<>();
+        while (resolved.size() < services.size()) {
+            boolean progress = false;
+            for (Service service : services) {
+                if (!resolved.contains(service.getName()) && resolved.containsAll(service.getDependencies())) {
+                    resolved.add(service.getName());
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                Set<String> cyclic = new HashSet<>(byName.keySet());
+                cyclic.removeAll(resolved);
+                throw new IllegalArgumentException(String.format("Dependencies of services %s are cyclic.", cyclic));
+            }
+        }
+    }
+
+    /**
+     * Starts the services.
+     *
+     * @return true if all services are ready, false as soon as any of them failed
+     */
+    boolean launch() throws InterruptedException {
+        long started = System.currentTimeMillis();
+        final Map<String, Outcome> outcomes = new LinkedHashMap<>();
+        for (Service service : services) {
+            outcomes.put(service.getName(), new Outcome(service));
+        }
+        final BlockingQueue<Outcome> completed = new LinkedBlockingQueue<>();
+        for (final Service service : services) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Outcome outcome = outcomes.get(service.getName());
+                    try {
+                        startAndAwait(service, outcome, outcomes);
+                    } catch (InterruptedException e) {
+                        outcome.complete(Status.FAILED, "interrupted");
+                    } catch (IOException | RuntimeException e) {
+                        outcome.complete(Status.FAILED, String.format("could not be started: %s", e.getMessage()));
+                    }
+                    completed.add(outcome);
+                }
+            }, String.format("see-service-%s", service.getName()));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        boolean success = true;
+        for (int i = 0; i < services.size() && success; i++) {
+            Outcome outcome = completed.take();
+            success = outcome.status == Status.READY;
+        }
+        System.out.println(String.format("%s SEE services in %.1f s:", success ? "Started up" : "Failed to start up",
+            (System.currentTimeMillis() - started) / 1000.0));
+        for (Outcome outcome : outcomes.values()) {
+            System.out.println("  " + outcome);
+        }
+        return success;
+    }
+
+    private void startAndAwait(Service service, Outcome outcome, Map<String, Outcome> outcomes) throws IOException, InterruptedException {
+        for (String dependency : service.getDependencies()) {
+            Outcome dependencyOutcome = outcomes.get(dependency);
+            dependencyOutcome.await();
+            if (dependencyOutcome.status != Status.READY) {
+                outcome.complete(Status.SKIPPED, String.format("%s is not ready", dependency));
+                return;
+            }
+        }
+        System.out.println(String.format("Starting up %s", service.getName()));
+        outcome.startedAt = System.currentTimeMillis();
+        Process process = service.start(startArguments, windows);
+        long deadline = outcome.startedAt + service.getTimeout();
+        long interval = INITIAL_POLL_INTERVAL;
+        while (true) {
+            if (service.isReady()) {
+                System.out.println(String.format("%s is running", service.getName()));
+                outcome.complete(Status.READY, service.getProbes().isEmpty() ? "started" : String.format("ready by %s", service.getProbes()));
+                return;
+            }
+            // on Windows it is the exit value of 'start' command, which is not zero only if the startup script could not be started
+            Integer exitValue = exitValue(process);
+            if (exitValue != null && exitValue != 0) {
+                outcome.complete(Status.FAILED, String.format("%s exited with %s", windows ? "start command" : "startup script", exitValue));
+                return;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                outcome.complete(Status.TIMED_OUT, String.format("not ready by %s within %s s", service.getProbes(),
+                    TimeUnit.MILLISECONDS.toSeconds(service.getTimeout())));
+                return;
+            }
+            Thread.sleep(Math.min(interval, remaining));
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+        }
+    }
+
+    private static Integer exitValue(Process process) {
+        try {
+            return process.exitValue();
+        } catch (IllegalThreadStateException e) {
+            // still running
+            return null;
+        }
+    }
+
+    /**
+     * State of a service's startup
+     */
+    private static class Outcome {
+        private final Service service;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final long createdAt = System.currentTimeMillis();
+        private volatile Status status = Status.STARTING;
+        private volatile long startedAt;
+        private volatile long completedAt;
+        private volatile String message = "";
+
+        Outcome(Service service) {
+            this.service = service;
+        }
+
+        void complete(Status status, String message) {
+            this.message = message;
+            this.completedAt = System.currentTimeMillis();
+            this.status = status;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            done.await();
+        }
+
+        @Override
+        public String toString() {
+            long end = completedAt > 0 ? completedAt : System.currentTimeMillis();
+            String waited = startedAt > 0 && !service.getDependencies().isEmpty()
+                ? String.format(", waited %.1f s for %s", (startedAt - createdAt) / 1000.0, service.getDependencies()) : "";
+            String took = startedAt > 0 ? String.format("%.1f s", (end - startedAt) / 1000.0) : "-";
+            String text = startedAt == 0 && message.isEmpty() ? "not started" : message;
+            return String.format("%-20s %-10s %8s  %s%s", service.getName(), status, took, text, waited);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Mango Business Solutions Ltd, http://www.mango-solutions.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/agpl-3.0.html>.
+ *******************************************************************************/
+package eu.ddmore.see.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SEE service, i.e. a directory of SEE installation holding a service startup script.
+ */
+class Service {
+    static final String STARTUP_SCRIPT_NAME = "see-service-startup";
+    static final String LOG_FILE_NAME = "see-service.log";
+    private final String name;
+    private final File seeHome;
+    private final File script;
+    private final List<ReadinessProbe> probes;
+    private final List<String> dependencies;
+    private final long timeout;
+
+    /**
+     * @param name - name of the service (its directory)
+     * @param seeHome - the SEE installation directory
+     * @param script - the service startup script
+     * @param probes - signals of the service being ready, if there are none the service is considered ready once started
+     * @param dependencies - names of services which must be ready before the service is started
+     * @param timeout - time (in milliseconds) the service has to become ready
+     */
+    Service(String name, File seeHome, File script, List<ReadinessProbe> probes, List<String> dependencies, long timeout) {
+        this.name = name;
+        this.seeHome = seeHome;
+        this.script = script;
+        this.probes = probes;
+        this.dependencies = dependencies;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts the service's startup script.
+     * <p>
+     * On Windows the script is started by 'start' command (with the given arguments, e.g. /B), in the same way as by SEE startup.bat,
+     * so the 'start' command exits straight away. Elsewhere the script is executed by 'sh' with output written to the service's log file.
+     */
+    Process start(List<String> startArguments, boolean windows) throws IOException {
+        for (ReadinessProbe probe : probes) {
+            probe.reset();
+        }
+        String relativeScript = seeHome.toURI().relativize(script.toURI()).getPath();
+        List<String> command = new ArrayList<>();
+        ProcessBuilder builder = new ProcessBuilder(command).directory(seeHome);
+        if (windows) {
+            command.add("cmd");
+            command.add("/c");
+            command.add("start");
+            command.addAll(startArguments);
+            command.add(relativeScript.replace('/', '\\'));
+            builder.inheritIO();
+        } else {
+            command.add("sh");
+            command.add(relativeScript);
+            File log = new File(script.getParentFile(), LOG_FILE_NAME);
+            builder.redirectErrorStream(true).redirectOutput(Redirect.appendTo(log)).redirectInput(Redirect.from(new File("/dev/null")));
+        }
+        return builder.start();
+    }
+
+    boolean isReady() {
+        for (ReadinessProbe probe : probes) {
+            if (!probe.isReady()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    List<ReadinessProbe> getProbes() {
+        return probes;
+    }
+
+    List<String> getDependencies() {
+        return dependencies;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+}
@@ -43,49 +43,12 @@ setlocal DisableDelayedExpansion
 REM setting up environment for services
 for %%a in (*-see-env-setup.bat) do call "%%a"
 
-SET FIS_DIR=fis
-
-:startupFis
-SET FIS_TRACE_FILE="%FIS_DIR%\fis.trace"
-IF EXIST "%FIS_TRACE_FILE%" (
-	DEL "%FIS_TRACE_FILE%"
-)
-CALL start %CMD_ARGS% %FIS_DIR%\see-service-startup.bat
-
-if NOT ERRORLEVEL 0 (
-	echo Failed to execute %FIS_DIR%\see-service-startup.bat
-	pause
-	exit 1
-)
-
-FOR /L %%i in (1,1,60) do (
-	if EXIST "%FIS_TRACE_FILE%" (
-		echo FIS is running
-		goto :startupServices
-	)
-	echo FIS is not running
-	REM Wait for *about* one second, we can't use 'TIMEOUT' command since it results in errors when run in batch mode, SLEEP command comes with 2003 Resource Kit
-	REM which may not be available.
-	REM We ping an address from TEST-NET-1 address block (192.0.2.0/24) which should never be routable.
-	ping 192.0.2.1 -n 2 -w 1000 > nul
-)
-
-echo Failed to start up FIS
-goto :fail
-:startupServices
-REM Starting up services
-for /D %%d in (*) do (
-	if NOT [%%d] == [%FIS_DIR%] (
-		if exist %%d\see-service-startup.bat (
-			call start %CMD_ARGS% %%d\see-service-startup.bat
-			
-			if NOT ERRORLEVEL 0 (
-				echo Failed to execute %%d\see-service-startup.bat
-				pause
-				exit 1
-			)
-		)
-	)
+REM Starting up services. The launcher starts FIS first and then the other services in parallel, and returns once they are all ready
+REM (readiness checks, timeouts and dependencies of the services are configured in see-launcher.properties).
+java -jar see-launcher.jar %CMD_ARGS%
+IF ERRORLEVEL 1 (
+	echo Failed to start up SEE services
+	goto :fail
 )
 :complete
 exit 0
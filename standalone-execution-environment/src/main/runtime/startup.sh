@@ -0,0 +1,35 @@
+#!/bin/sh
+#
+# Starts up SEE services on Linux (the equivalent of startup.bat), services' startup scripts are see-service-startup.sh files
+# and their output is written to see-service.log files in the services' directories.
+
+SEE_HOME=$(cd "$(dirname "$0")" && pwd)
+cd "$SEE_HOME" || exit 1
+
+# SEE is usually delivered with JRE so if it is there use it to launch SEE services.
+if [ -d "$SEE_HOME/MDL_IDE/jre" ]; then
+    echo "Java installation included in MDL IDE was found."
+    JAVA_HOME="$SEE_HOME/MDL_IDE/jre"
+    PATH="$JAVA_HOME/bin:$PATH"
+    export JAVA_HOME PATH
+else
+    echo "JRE installed in the environment will be used."
+fi
+# JAVA_OPTS should be used to reduce the memory footprint of SEE services if it is required, e.g. JAVA_OPTS="-Xms128m -Xmx512m"
+JAVA_OPTS=
+export JAVA_OPTS
+
+# setting up environment for services
+for setup in *-see-env-setup.sh; do
+    if [ -f "$setup" ]; then
+        . "./$setup"
+    fi
+done
+
+# The launcher starts FIS first and then the other services in parallel, and returns once they are all ready
+# (readiness checks, timeouts and dependencies of the services are configured in see-launcher.properties).
+if ! java -jar see-launcher.jar; then
+    echo "Failed to start up SEE services"
+    exit 1
+fi
+exit 0